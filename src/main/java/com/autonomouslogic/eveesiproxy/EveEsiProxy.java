@@ -1,6 +1,7 @@
 package com.autonomouslogic.eveesiproxy;
 
 import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.autonomouslogic.eveesiproxy.http.CacheStoreInterceptor;
 import com.autonomouslogic.eveesiproxy.http.OkHttpExec;
 import com.autonomouslogic.eveesiproxy.inject.DaggerMainComponent;
 import io.helidon.http.HeaderNames;
@@ -27,13 +28,18 @@ public class EveEsiProxy {
 	@Inject
 	protected WebServer server;
 
+	@Inject
+	protected CacheStoreInterceptor cacheStoreInterceptor;
+
 	@Inject
 	protected EveEsiProxy() {}
 
 	public static void main(String[] args) {
 		log.debug("Starting proxy");
 		var component = DaggerMainComponent.create();
-		component.createMain().start();
+		var proxy = component.createMain();
+		Runtime.getRuntime().addShutdownHook(new Thread(proxy::stop));
+		proxy.start();
 		testProtocol(component.createOkHttpClient());
 	}
 
@@ -44,6 +50,7 @@ public class EveEsiProxy {
 
 	public void stop() {
 		server.stop();
+		cacheStoreInterceptor.close();
 	}
 
 	public int port() {
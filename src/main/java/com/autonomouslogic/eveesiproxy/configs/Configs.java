@@ -40,6 +40,27 @@ public class Configs {
 			.type(Long.class)
 			.build();
 
+	/**
+	 * The disk cache implementation to use.
+	 * <code>okhttp</code> uses OkHttp's own cache, while <code>segmented</code> uses {@link
+	 * com.autonomouslogic.eveesiproxy.http.SegmentedCacheStore}.
+	 */
+	public static final Config<String> HTTP_CACHE_STORE = Config.<String>builder()
+			.name("HTTP_CACHE_STORE")
+			.defaultValue("okhttp")
+			.type(String.class)
+			.build();
+
+	/**
+	 * The maximum size in bytes of the in-memory cache kept in front of the disk cache.
+	 * Set to zero to disable.
+	 */
+	public static final Config<Long> HTTP_MEMORY_CACHE_MAX_SIZE = Config.<Long>builder()
+			.name("HTTP_MEMORY_CACHE_MAX_SIZE")
+			.defaultValue(0L)
+			.type(Long.class)
+			.build();
+
 	public static final Config<Double> ESI_RATE_LIMIT_PER_S = Config.<Double>builder()
 			.name("ESI_RATE_LIMIT_PER_S")
 			.defaultValue(100.0)
@@ -58,6 +79,16 @@ public class Configs {
 			.type(Double.class)
 			.build();
 
+	/**
+	 * Whether to track the tokens left in each ESI rate limit group from the <code>x-ratelimit-*</code> response headers
+	 * and hold requests back before the group runs out.
+	 */
+	public static final Config<Boolean> ESI_RATE_LIMIT_GROUP_PACING = Config.<Boolean>builder()
+			.name("ESI_RATE_LIMIT_GROUP_PACING")
+			.defaultValue(true)
+			.type(Boolean.class)
+			.build();
+
 	public static final Config<String> CONFIG_DIR =
 			Config.<String>builder().name("CONFIG_DIR").type(String.class).build();
 
@@ -147,15 +178,301 @@ public class Configs {
 			.type(Duration.class)
 			.build();
 
+	/**
+	 * How far apart to release requests held back by a 420 or 429 once the limit resets.
+	 */
+	public static final Config<Duration> HTTP_STOP_RELEASE_INTERVAL = Config.<Duration>builder()
+			.name("HTTP_STOP_RELEASE_INTERVAL")
+			.defaultValue(Duration.parse("PT0.05S"))
+			.type(Duration.class)
+			.build();
+
 	public static final Config<Integer> HTTP_MAX_CONCURRENT_PAGES = Config.<Integer>builder()
 			.name("HTTP_MAX_CONCURRENT_PAGES")
 			.defaultValue(8)
 			.type(Integer.class)
 			.build();
 
+	/**
+	 * The maximum size in bytes of the cache of merged page responses.
+	 * Set to zero to disable.
+	 */
+	public static final Config<Long> HTTP_MERGED_PAGES_CACHE_MAX_SIZE = Config.<Long>builder()
+			.name("HTTP_MERGED_PAGES_CACHE_MAX_SIZE")
+			.defaultValue(0L)
+			.type(Long.class)
+			.build();
+
+	/**
+	 * Whether to stream merged pages to the client as they are fetched, rather than buffering the full response.
+	 * This applies to both numbered and cursor pages.
+	 * When enabled, failures on later pages will abort the response instead of returning the error.
+	 */
+	public static final Config<Boolean> HTTP_STREAM_MERGED_PAGES = Config.<Boolean>builder()
+			.name("HTTP_STREAM_MERGED_PAGES")
+			.defaultValue(false)
+			.type(Boolean.class)
+			.build();
+
+	/**
+	 * Whether to coalesce identical concurrent GET and HEAD requests into a single request to the ESI.
+	 */
+	public static final Config<Boolean> HTTP_COALESCE_REQUESTS = Config.<Boolean>builder()
+			.name("HTTP_COALESCE_REQUESTS")
+			.defaultValue(false)
+			.type(Boolean.class)
+			.build();
+
+	/**
+	 * Whether to adapt the number of pages fetched concurrently to the observed latency and errors for each rate limit
+	 * group. {@link #HTTP_MAX_CONCURRENT_PAGES} is then used as the starting point.
+	 */
+	public static final Config<Boolean> HTTP_ADAPTIVE_CONCURRENT_PAGES = Config.<Boolean>builder()
+			.name("HTTP_ADAPTIVE_CONCURRENT_PAGES")
+			.defaultValue(false)
+			.type(Boolean.class)
+			.build();
+
+	/**
+	 * The upper bound for the adaptive page concurrency.
+	 */
+	public static final Config<Integer> HTTP_ADAPTIVE_MAX_CONCURRENT_PAGES = Config.<Integer>builder()
+			.name("HTTP_ADAPTIVE_MAX_CONCURRENT_PAGES")
+			.defaultValue(32)
+			.type(Integer.class)
+			.build();
+
+	/**
+	 * Whether to request further pages at the same time as the first page, based on the number of pages last seen for
+	 * the same URL.
+	 */
+	public static final Config<Boolean> HTTP_PREFETCH_PAGES = Config.<Boolean>builder()
+			.name("HTTP_PREFETCH_PAGES")
+			.defaultValue(false)
+			.type(Boolean.class)
+			.build();
+
+	/**
+	 * Whether to remember the cursors seen when following cursor pages, and request them in parallel the next time the
+	 * same URL is requested.
+	 */
+	public static final Config<Boolean> HTTP_SPECULATIVE_CURSORS = Config.<Boolean>builder()
+			.name("HTTP_SPECULATIVE_CURSORS")
+			.defaultValue(false)
+			.type(Boolean.class)
+			.build();
+
+	/**
+	 * The maximum size in bytes of the cursor state kept for incremental cursor syncs.
+	 * Set to zero to disable.
+	 */
+	public static final Config<Long> HTTP_CURSOR_STATE_MAX_SIZE = Config.<Long>builder()
+			.name("HTTP_CURSOR_STATE_MAX_SIZE")
+			.defaultValue(0L)
+			.type(Long.class)
+			.build();
+
+	/**
+	 * Directory to snapshot cursor state to, so incremental cursor syncs survive restarts.
+	 */
+	public static final Config<String> HTTP_CURSOR_STATE_DIR = Config.<String>builder()
+			.name("HTTP_CURSOR_STATE_DIR")
+			.type(String.class)
+			.build();
+
+	/**
+	 * Whether to also snapshot cursor state for authed requests to {@link #HTTP_CURSOR_STATE_DIR}.
+	 * This writes private ESI data to disk.
+	 */
+	public static final Config<Boolean> HTTP_CURSOR_STATE_SNAPSHOT_AUTHED = Config.<Boolean>builder()
+			.name("HTTP_CURSOR_STATE_SNAPSHOT_AUTHED")
+			.defaultValue(false)
+			.type(Boolean.class)
+			.build();
+
+	/**
+	 * How many bytes of a request body to keep in order to send it again when waiting out rate and error limits.
+	 * Larger bodies are streamed to the ESI once and fail if they need to be sent again.
+	 */
+	public static final Config<Integer> HTTP_REQUEST_REPLAY_BUFFER_SIZE = Config.<Integer>builder()
+			.name("HTTP_REQUEST_REPLAY_BUFFER_SIZE")
+			.defaultValue(1024 * 1024)
+			.type(Integer.class)
+			.build();
+
+	/**
+	 * The maximum number of concurrent requests to the ESI.
+	 */
 	public static final Config<Integer> HTTP_MAX_CONCURRENT_REQUESTS = Config.<Integer>builder()
 			.name("HTTP_MAX_CONCURRENT_REQUESTS")
 			.defaultValue(64)
 			.type(Integer.class)
 			.build();
+
+	/**
+	 * The maximum number of concurrent requests to the ESI for each rate limit group.
+	 */
+	public static final Config<Integer> HTTP_MAX_CONCURRENT_REQUESTS_PER_GROUP = Config.<Integer>builder()
+			.name("HTTP_MAX_CONCURRENT_REQUESTS_PER_GROUP")
+			.defaultValue(32)
+			.type(Integer.class)
+			.build();
+
+	/**
+	 * The share of concurrent requests and of the rate limits given to interactive requests, relative to bulk requests
+	 * when both are waiting.
+	 */
+	public static final Config<Integer> HTTP_INTERACTIVE_PRIORITY_WEIGHT = Config.<Integer>builder()
+			.name("HTTP_INTERACTIVE_PRIORITY_WEIGHT")
+			.defaultValue(4)
+			.type(Integer.class)
+			.build();
+
+	/**
+	 * The maximum rate of requests each tenant can make to the proxy, by proxy key or user agent.
+	 * Set to zero to disable.
+	 */
+	public static final Config<Double> HTTP_TENANT_RATE_LIMIT_PER_S = Config.<Double>builder()
+			.name("HTTP_TENANT_RATE_LIMIT_PER_S")
+			.defaultValue(0.0)
+			.type(Double.class)
+			.build();
+
+	/**
+	 * The maximum number of concurrent requests each tenant can make to the proxy, by proxy key or user agent.
+	 * Set to zero to disable.
+	 */
+	public static final Config<Integer> HTTP_TENANT_MAX_CONCURRENT_REQUESTS = Config.<Integer>builder()
+			.name("HTTP_TENANT_MAX_CONCURRENT_REQUESTS")
+			.defaultValue(0)
+			.type(Integer.class)
+			.build();
+
+	/**
+	 * Comma-separated <code>key=rate</code> pairs overriding {@link #HTTP_TENANT_RATE_LIMIT_PER_S} for tenants with
+	 * the given proxy key or user agent. Set the rate to zero to disable the limit for a tenant.
+	 */
+	public static final Config<String> HTTP_TENANT_RATE_LIMIT_OVERRIDES = Config.<String>builder()
+			.name("HTTP_TENANT_RATE_LIMIT_OVERRIDES")
+			.type(String.class)
+			.build();
+
+	/**
+	 * Comma-separated <code>key=limit</code> pairs overriding {@link #HTTP_TENANT_MAX_CONCURRENT_REQUESTS} for tenants
+	 * with the given proxy key or user agent. Set the limit to zero to disable it for a tenant.
+	 */
+	public static final Config<String> HTTP_TENANT_MAX_CONCURRENT_REQUESTS_OVERRIDES = Config.<String>builder()
+			.name("HTTP_TENANT_MAX_CONCURRENT_REQUESTS_OVERRIDES")
+			.type(String.class)
+			.build();
+
+	/**
+	 * Comma-separated proxy keys whose requests are treated as bulk, unless the request sets a priority itself.
+	 */
+	public static final Config<String> HTTP_BULK_PROXY_KEYS = Config.<String>builder()
+			.name("HTTP_BULK_PROXY_KEYS")
+			.type(String.class)
+			.build();
+
+	/**
+	 * The number of requests for a URL within {@link #HTTP_REFRESH_AHEAD_WINDOW} for it to be refreshed ahead of its
+	 * expiry. Set to zero to disable.
+	 */
+	public static final Config<Integer> HTTP_REFRESH_AHEAD_MIN_REQUESTS = Config.<Integer>builder()
+			.name("HTTP_REFRESH_AHEAD_MIN_REQUESTS")
+			.defaultValue(0)
+			.type(Integer.class)
+			.build();
+
+	/**
+	 * The window requests are counted over for {@link #HTTP_REFRESH_AHEAD_MIN_REQUESTS}.
+	 */
+	public static final Config<Duration> HTTP_REFRESH_AHEAD_WINDOW = Config.<Duration>builder()
+			.name("HTTP_REFRESH_AHEAD_WINDOW")
+			.defaultValue(Duration.parse("PT5M"))
+			.type(Duration.class)
+			.build();
+
+	/**
+	 * How long before a cached response expires to refresh it.
+	 */
+	public static final Config<Duration> HTTP_REFRESH_AHEAD_LEAD = Config.<Duration>builder()
+			.name("HTTP_REFRESH_AHEAD_LEAD")
+			.defaultValue(Duration.parse("PT5S"))
+			.type(Duration.class)
+			.build();
+
+	/**
+	 * The maximum rate of refresh-ahead requests. Refreshes over this rate are skipped.
+	 */
+	public static final Config<Double> HTTP_REFRESH_AHEAD_RATE_LIMIT_PER_S = Config.<Double>builder()
+			.name("HTTP_REFRESH_AHEAD_RATE_LIMIT_PER_S")
+			.defaultValue(1.0)
+			.type(Double.class)
+			.build();
+
+	/**
+	 * Regular expression for the ESI paths served stale-while-revalidate.
+	 * Stale cached responses are served immediately, and revalidated in the background.
+	 */
+	public static final Config<String> HTTP_STALE_WHILE_REVALIDATE_ROUTES = Config.<String>builder()
+			.name("HTTP_STALE_WHILE_REVALIDATE_ROUTES")
+			.type(String.class)
+			.build();
+
+	/**
+	 * Regular expression for the ESI paths served stale-if-error.
+	 * Stale cached responses are served if the ESI returns a server error or can't be reached.
+	 */
+	public static final Config<String> HTTP_STALE_IF_ERROR_ROUTES = Config.<String>builder()
+			.name("HTTP_STALE_IF_ERROR_ROUTES")
+			.type(String.class)
+			.build();
+
+	/**
+	 * How long past their expiry cached responses may be served stale.
+	 */
+	public static final Config<Duration> HTTP_STALE_MAX_AGE = Config.<Duration>builder()
+			.name("HTTP_STALE_MAX_AGE")
+			.defaultValue(Duration.parse("PT24H"))
+			.type(Duration.class)
+			.build();
+
+	/**
+	 * Whether to relay gzip compressed ESI responses as they are to clients which accept gzip, rather than
+	 * decompressing them. Compressed responses are cached as they are, and merged pages are compressed once.
+	 */
+	public static final Config<Boolean> HTTP_COMPRESSED_PASSTHROUGH = Config.<Boolean>builder()
+			.name("HTTP_COMPRESSED_PASSTHROUGH")
+			.defaultValue(false)
+			.type(Boolean.class)
+			.build();
+
+	/**
+	 * Whether to serve HTTP/2 cleartext (h2c) on the proxy listener, both as an upgrade from HTTP/1.1 and with prior
+	 * knowledge. HTTP/1.1 is always served.
+	 */
+	public static final Config<Boolean> PROXY_HTTP2_ENABLED = Config.<Boolean>builder()
+			.name("PROXY_HTTP2_ENABLED")
+			.defaultValue(false)
+			.type(Boolean.class)
+			.build();
+
+	/**
+	 * The maximum number of concurrent HTTP/2 streams per client connection.
+	 */
+	public static final Config<Long> PROXY_HTTP2_MAX_CONCURRENT_STREAMS = Config.<Long>builder()
+			.name("PROXY_HTTP2_MAX_CONCURRENT_STREAMS")
+			.defaultValue(256L)
+			.type(Long.class)
+			.build();
+
+	/**
+	 * The initial HTTP/2 flow-control window size in bytes, for each stream sent to clients.
+	 */
+	public static final Config<Integer> PROXY_HTTP2_INITIAL_WINDOW_SIZE = Config.<Integer>builder()
+			.name("PROXY_HTTP2_INITIAL_WINDOW_SIZE")
+			.defaultValue(1024 * 1024)
+			.type(Integer.class)
+			.build();
 }
@@ -0,0 +1,65 @@
+package com.autonomouslogic.eveesiproxy.handler;
+
+import com.autonomouslogic.eveesiproxy.http.AdaptiveConcurrencyLimit;
+import com.autonomouslogic.eveesiproxy.http.PageConcurrencyLimiter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.helidon.http.HeaderNames;
+import io.helidon.webserver.http.Handler;
+import io.helidon.webserver.http.HttpRules;
+import io.helidon.webserver.http.HttpService;
+import io.helidon.webserver.http.ServerRequest;
+import io.helidon.webserver.http.ServerResponse;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Exposes the proxy's internal state as JSON.
+ */
+@Singleton
+@Log4j2
+public class MetricsService implements HttpService, Handler {
+	@Inject
+	protected StandardHeaders standardHeaders;
+
+	@Inject
+	protected ObjectMapper objectMapper;
+
+	@Inject
+	protected PageConcurrencyLimiter pageConcurrencyLimiter;
+
+	@Inject
+	protected MetricsService() {}
+
+	@Override
+	public void routing(HttpRules httpRules) {
+		log.trace("Configuring routing for {}", this.getClass().getSimpleName());
+		httpRules.get("/metrics", this);
+		httpRules.any("/metrics", StandardHandlers.HTTP_METHOD_NOT_ALLOWED);
+	}
+
+	@Override
+	public void handle(ServerRequest req, ServerResponse res) throws Exception {
+		var metrics = objectMapper.createObjectNode();
+		var pageConcurrency = metrics.putObject("pageConcurrency");
+		pageConcurrencyLimiter.getLimits().forEach((group, limit) -> pageConcurrency.set(group, toJson(limit)));
+		standardHeaders
+				.apply(res)
+				.header(HeaderNames.CONTENT_TYPE.lowerCase(), "application/json")
+				.send(objectMapper.writeValueAsBytes(metrics));
+	}
+
+	private ObjectNode toJson(AdaptiveConcurrencyLimit limit) {
+		var json = objectMapper.createObjectNode();
+		json.put("limit", limit.getLimit());
+		json.put("inFlight", limit.getInFlight());
+		var latency = limit.getLatency();
+		if (latency == null) {
+			json.putNull("latencyMillis");
+		} else {
+			json.put("latencyMillis", latency.toMillis());
+		}
+		return json;
+	}
+}
@@ -1,6 +1,7 @@
 package com.autonomouslogic.eveesiproxy.handler;
 
 import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.autonomouslogic.eveesiproxy.http.PageConcurrencyLimiter;
 import com.autonomouslogic.eveesiproxy.oauth.AuthManager;
 import com.autonomouslogic.eveesiproxy.oauth.AuthedCharacter;
 import com.autonomouslogic.eveesiproxy.oauth.EsiAuthHelper;
@@ -39,6 +40,9 @@ public class UiService implements HttpService {
 	@Inject
 	protected TemplateUtil templateUtil;
 
+	@Inject
+	protected PageConcurrencyLimiter pageConcurrencyLimiter;
+
 	private final int port = Configs.PROXY_PORT.getRequired();
 
 	@Inject
@@ -59,7 +63,13 @@ public class UiService implements HttpService {
 		@Override
 		public void handle(ServerRequest req, ServerResponse res) throws Exception {
 			var authedCharacters = authManager.getAuthedCharacters();
-			var html = templateUtil.render("index", Map.of("authedCharacters", authedCharacters));
+			var html = templateUtil.render(
+					"index",
+					Map.of(
+							"authedCharacters",
+							authedCharacters,
+							"pageConcurrency",
+							pageConcurrencyLimiter.getLimits()));
 			standardHeaders
 					.apply(res)
 					.header(HeaderNames.CONTENT_TYPE.lowerCase(), "text/html")
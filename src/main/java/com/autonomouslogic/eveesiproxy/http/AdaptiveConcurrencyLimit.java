@@ -0,0 +1,128 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.time.Duration;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.SneakyThrows;
+
+/**
+ * Concurrency limit which adapts to the observed latency and error rate, using additive increase, multiplicative
+ * decrease.
+ * <p>
+ * Every successful request grows the limit by roughly one per round-trip, as long as latency stays near its long-term
+ * baseline. When latency rises above twice the baseline, the limit is reduced by one. Throttled or failed requests
+ * halve the limit. Decreases happen at most once per round-trip, so a burst of errors from requests which were
+ * already in flight only counts once.
+ */
+public class AdaptiveConcurrencyLimit {
+	private static final double LATENCY_ALPHA = 0.2;
+	private static final double BASELINE_ALPHA = 0.01;
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	private final int minLimit;
+	private final int maxLimit;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+
+	private double limit;
+	private int inFlight = 0;
+	private double latencyNanos = -1;
+	private double baselineNanos = -1;
+	private long lastDecrease = 0;
+
+	public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException("Invalid limits: " + minLimit + " to " + maxLimit);
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = clamp(initialLimit);
+	}
+
+	/**
+	 * Blocks until a request can be made within the current limit.
+	 */
+	@SneakyThrows
+	public void acquire() {
+		lock.lock();
+		try {
+			while (inFlight >= (int) limit) {
+				available.await();
+			}
+			inFlight++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases a request previously acquired and updates the limit based on its outcome.
+	 * @param throttled whether the request was throttled or failed on the server side
+	 * @param latency the time the request took
+	 */
+	public void release(boolean throttled, Duration latency) {
+		lock.lock();
+		try {
+			inFlight--;
+			var now = System.nanoTime();
+			var sample = (double) latency.toNanos();
+			if (throttled) {
+				decrease(now, limit / 2.0);
+			} else {
+				latencyNanos = latencyNanos < 0 ? sample : latencyNanos + LATENCY_ALPHA * (sample - latencyNanos);
+				baselineNanos = baselineNanos < 0 ? sample : baselineNanos + BASELINE_ALPHA * (sample - baselineNanos);
+				if (latencyNanos > baselineNanos * LATENCY_TOLERANCE) {
+					decrease(now, limit - 1.0);
+				} else {
+					limit = clamp(limit + 1.0 / limit);
+				}
+			}
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void decrease(long now, double newLimit) {
+		if (lastDecrease != 0 && now - lastDecrease < latencyNanos) {
+			return;
+		}
+		limit = clamp(newLimit);
+		lastDecrease = now;
+	}
+
+	private double clamp(double value) {
+		return Math.max(minLimit, Math.min(maxLimit, value));
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the smoothed latency of recent requests, or null if no requests have completed yet
+	 */
+	public Duration getLatency() {
+		lock.lock();
+		try {
+			return latencyNanos < 0 ? null : Duration.ofNanos((long) latencyNanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,7 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+/**
+ * Tags requests made by the proxy itself to refresh cached responses, so they aren't counted or handled as client
+ * requests.
+ */
+class BackgroundRefresh {}
@@ -0,0 +1,163 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import io.helidon.http.HeaderNames;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Helpers for interpreting cache headers on ESI responses, used by the caches kept by the proxy itself.
+ */
+public class CacheHeaders {
+	/**
+	 * Whether a response may be stored in a cache shared between clients.
+	 * Only public <code>200 OK</code> responses which don't require revalidation are storable.
+	 */
+	public static boolean isStorable(Response response) {
+		return response.code() == 200 && isShareable(response);
+	}
+
+	/**
+	 * Whether the cache headers on a response allow it to be shared between clients without revalidation,
+	 * regardless of the status code.
+	 */
+	public static boolean isShareable(Response response) {
+		var cacheControl = response.cacheControl();
+		if (cacheControl.noStore() || cacheControl.noCache() || cacheControl.isPrivate()) {
+			return false;
+		}
+		return !getVaryFields(response).contains("*");
+	}
+
+	/**
+	 * Calculates when the response will no longer be fresh, based on <code>max-age</code> or <code>Expires</code>,
+	 * adjusted for the age of the response when it was received.
+	 * @return the time in epoch millis, or empty if the response has no explicit freshness lifetime
+	 */
+	public static Optional<Long> getExpiresAt(Response response) {
+		var cacheControl = response.cacheControl();
+		var headers = response.headers();
+		var received = response.receivedResponseAtMillis();
+		var served = Optional.ofNullable(headers.getDate(HeaderNames.DATE.lowerCase()))
+				.map(Date::getTime);
+		long lifetime;
+		if (cacheControl.sMaxAgeSeconds() >= 0) {
+			lifetime = TimeUnit.SECONDS.toMillis(cacheControl.sMaxAgeSeconds());
+		} else if (cacheControl.maxAgeSeconds() >= 0) {
+			lifetime = TimeUnit.SECONDS.toMillis(cacheControl.maxAgeSeconds());
+		} else {
+			var expires = headers.getDate(HeaderNames.EXPIRES.lowerCase());
+			if (expires == null) {
+				return Optional.empty();
+			}
+			lifetime = expires.getTime() - served.orElse(received);
+		}
+		return Optional.of(received + lifetime - getInitialAge(response));
+	}
+
+	/**
+	 * Calculates the current age of a response, from the age it was received with and how long it has been stored.
+	 * @return the age in seconds
+	 */
+	public static long getAgeSeconds(Response response, long now) {
+		var stored = Math.max(0, now - response.receivedResponseAtMillis());
+		return TimeUnit.MILLISECONDS.toSeconds(getInitialAge(response) + stored);
+	}
+
+	/**
+	 * @return the age of the response when it was received in millis, based on the <code>Age</code> and
+	 * <code>Date</code> headers
+	 */
+	private static long getInitialAge(Response response) {
+		var headers = response.headers();
+		var age = Optional.ofNullable(headers.get(HeaderNames.AGE.lowerCase()))
+				.flatMap(CacheHeaders::parseSeconds)
+				.map(TimeUnit.SECONDS::toMillis)
+				.orElse(0L);
+		var served = headers.getDate(HeaderNames.DATE.lowerCase());
+		if (served != null) {
+			age = Math.max(age, response.receivedResponseAtMillis() - served.getTime());
+		}
+		return age;
+	}
+
+	/**
+	 * The key to store a response under in the proxy's own caches.
+	 * Responses relayed compressed are stored separately from decompressed ones, regardless of <code>Vary</code>.
+	 */
+	public static String getCacheKey(Request request) {
+		var key = request.url().toString();
+		return ContentEncoding.isGzipRequested(request) ? key + " " + ContentEncoding.GZIP : key;
+	}
+
+	/**
+	 * The cache key along with the request's values for the headers the response varies by, identifying the variant of
+	 * the response the request gets.
+	 */
+	public static String getVariantKey(Request request, Response response) {
+		var key = new StringBuilder(getCacheKey(request));
+		var varyFields = getVaryFields(response);
+		var varyValues = getVaryValues(request, varyFields);
+		for (int i = 0; i < varyFields.size(); i++) {
+			key.append(' ').append(varyFields.get(i)).append('=').append(String.join(",", varyValues.get(i)));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the lower-cased names of the request headers the response varies by
+	 */
+	public static List<String> getVaryFields(Response response) {
+		return response.headers(HeaderNames.VARY.lowerCase()).stream()
+				.flatMap(value -> Arrays.stream(value.split(",")))
+				.map(field -> field.trim().toLowerCase())
+				.filter(field -> !field.isEmpty())
+				.distinct()
+				.toList();
+	}
+
+	/**
+	 * @return the values of the supplied headers on the request, in the same order
+	 */
+	public static List<List<String>> getVaryValues(Request request, List<String> varyFields) {
+		return varyFields.stream().map(request::headers).toList();
+	}
+
+	/**
+	 * Checks the request has the same values for the headers a stored response varies by.
+	 */
+	public static boolean varyMatches(Request request, List<String> varyFields, List<List<String>> varyValues) {
+		return Objects.equals(getVaryValues(request, varyFields), varyValues);
+	}
+
+	/**
+	 * Whether the client made the request conditional, in which case it expects a <code>304</code> rather than a
+	 * stored response.
+	 */
+	public static boolean isConditional(Request request) {
+		return request.header(HeaderNames.IF_NONE_MATCH.lowerCase()) != null
+				|| request.header(HeaderNames.IF_MODIFIED_SINCE.lowerCase()) != null;
+	}
+
+	/**
+	 * Whether the request doesn't accept a stored response without it first being revalidated with the ESI,
+	 * due to <code>no-cache</code> or <code>max-age=0</code>.
+	 */
+	public static boolean requiresRevalidation(Request request) {
+		var cacheControl = request.cacheControl();
+		return cacheControl.noCache() || cacheControl.maxAgeSeconds() == 0;
+	}
+
+	private static Optional<Long> parseSeconds(String value) {
+		try {
+			return Optional.of(Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			return Optional.empty();
+		}
+	}
+}
@@ -17,6 +17,9 @@ public class CacheStatusInterceptor implements Interceptor {
 	public Response intercept(@NotNull Interceptor.Chain chain) throws IOException {
 		var req = chain.request();
 		final var response = chain.proceed(req);
+		if (response.header(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS) != null) {
+			return response;
+		}
 		final var networkResponse = response.networkResponse();
 		final var cacheResponse = response.cacheResponse();
 		var cached = cacheResponse != null && networkResponse == null;
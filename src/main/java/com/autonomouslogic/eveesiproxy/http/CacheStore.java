@@ -0,0 +1,19 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.io.Closeable;
+import java.util.Optional;
+
+/**
+ * Storage for complete responses, used by {@link CacheStoreInterceptor} in place of OkHttp's own cache.
+ * The store is closed when the proxy stops.
+ */
+public interface CacheStore extends Closeable {
+	/**
+	 * @return the response stored for the key, if any
+	 */
+	Optional<StoredResponse> get(String key);
+
+	void put(String key, StoredResponse response);
+
+	void remove(String key);
+}
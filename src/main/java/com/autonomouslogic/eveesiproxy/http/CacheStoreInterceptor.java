@@ -0,0 +1,246 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import io.helidon.http.HeaderNames;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Cache;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Okio;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Caches responses in a {@link CacheStore} instead of OkHttp's own cache, when enabled by
+ * {@link Configs#HTTP_CACHE_STORE}. Otherwise, requests pass straight through to OkHttp's cache.
+ * <p>
+ * Only public <code>GET</code> responses are stored, following the same rules as {@link MemoryCacheInterceptor}.
+ * Responses with validators are stored even without an explicit freshness lifetime, and are revalidated with the ESI
+ * once stale.
+ * <p>
+ * The store is closed by {@link #close()} when the proxy stops, after which requests pass straight through.
+ */
+@Singleton
+@Log4j2
+public class CacheStoreInterceptor implements Interceptor {
+	public static final String STORE_OKHTTP = "okhttp";
+	public static final String STORE_SEGMENTED = "segmented";
+
+	@Inject
+	protected Cache cache;
+
+	private volatile CacheStore store;
+	private long maxEntrySize;
+
+	@Inject
+	protected CacheStoreInterceptor() {}
+
+	@Inject
+	@SneakyThrows
+	protected void init() {
+		var type = Configs.HTTP_CACHE_STORE.getRequired();
+		switch (type) {
+			case STORE_OKHTTP -> {}
+			case STORE_SEGMENTED -> {
+				var dir = new File(cache.directory(), "segments");
+				log.info("Using segmented cache store in {}", dir);
+				store = new SegmentedCacheStore(
+						dir, Configs.HTTP_CACHE_MAX_SIZE.getRequired(), SegmentedCacheStore.DEFAULT_SEGMENT_SIZE);
+				maxEntrySize = SegmentedCacheStore.DEFAULT_SEGMENT_SIZE / 2;
+			}
+			default -> throw new IllegalArgumentException("Unknown cache store: " + type);
+		}
+	}
+
+	/**
+	 * Closes the cache store, if used, so it's checkpointed and doesn't need to be replayed at the next startup.
+	 */
+	public void close() {
+		var closing = store;
+		store = null;
+		if (closing == null) {
+			return;
+		}
+		try {
+			closing.close();
+		} catch (IOException e) {
+			log.warn("Failed closing the cache store", e);
+		}
+	}
+
+	/**
+	 * @return whether OkHttp's own cache should be used
+	 */
+	public static boolean isOkHttpCacheEnabled() {
+		return Configs.HTTP_CACHE_STORE.getRequired().equals(STORE_OKHTTP);
+	}
+
+	@NotNull
+	@Override
+	public Response intercept(@NotNull Chain chain) throws IOException {
+		var request = chain.request();
+		var store = this.store;
+		if (store == null
+				|| !request.method().equals("GET")
+				|| request.header(HeaderNames.AUTHORIZATION.lowerCase()) != null
+				|| request.cacheControl().noStore()) {
+			return chain.proceed(request);
+		}
+		var key = CacheHeaders.getCacheKey(request);
+		var stored = CacheHeaders.isConditional(request)
+				? Optional.<StoredResponse>empty()
+				: store.get(key).filter(s -> s.matches(request));
+		if (stored.isPresent() && isServable(stored.get(), request)) {
+			log.trace("Serving {} from the cache store", request.url());
+			return stored.get().toResponse(request);
+		}
+		if (request.cacheControl().onlyIfCached()) {
+			return unsatisfiable(request);
+		}
+		var networkRequest = stored.map(s -> addValidators(request, s)).orElse(request);
+		var response = chain.proceed(networkRequest);
+		if (networkRequest != request && response.code() == 304) {
+			response.close();
+			return revalidated(store, key, request, stored.get(), response);
+		}
+		if (!CacheHeaders.isStorable(response)) {
+			if (stored.isPresent()) {
+				store.remove(key);
+			}
+			return response;
+		}
+		var expiresAt = CacheHeaders.getExpiresAt(response).orElse(0L);
+		if (expiresAt <= System.currentTimeMillis() && !hasValidators(response.headers())) {
+			return response;
+		}
+		var body = response.body();
+		var source = new CacheWritingSource(
+				body.source(),
+				maxEntrySize,
+				bytes -> store.put(key, StoredResponse.create(request, response, expiresAt, ByteBuffer.wrap(bytes))));
+		return response.newBuilder()
+				.body(ResponseBody.create(Okio.buffer(source), body.contentType(), body.contentLength()))
+				.build();
+	}
+
+	/**
+	 * Updates a stored response with the headers from a <code>304 Not Modified</code> response and serves it.
+	 */
+	private static Response revalidated(
+			CacheStore store, String key, Request request, StoredResponse stored, Response networkResponse) {
+		var headers = mergeHeaders(stored.getHeaders(), networkResponse.headers());
+		var merged = stored.builder(request)
+				.headers(headers)
+				.sentRequestAtMillis(networkResponse.sentRequestAtMillis())
+				.receivedResponseAtMillis(networkResponse.receivedResponseAtMillis())
+				.build();
+		var expiresAt = CacheHeaders.getExpiresAt(merged).orElse(0L);
+		var updated = new StoredResponse(
+				stored.getProtocol(),
+				stored.getCode(),
+				stored.getMessage(),
+				headers,
+				stored.getVaryFields(),
+				stored.getVaryValues(),
+				networkResponse.sentRequestAtMillis(),
+				networkResponse.receivedResponseAtMillis(),
+				expiresAt,
+				stored.getBody());
+		store.put(key, updated);
+		log.trace("Revalidated {} in the cache store", request.url());
+		return updated.builder(request)
+				.body(updated.createBody())
+				.cacheResponse(stored.builder(request).build())
+				.networkResponse(networkResponse
+						.newBuilder()
+						.body(ResponseBody.create(new byte[0], null))
+						.networkResponse(null)
+						.cacheResponse(null)
+						.priorResponse(null)
+						.build())
+				.build();
+	}
+
+	/**
+	 * Whether a stored response can be served without revalidation, including stale responses if the request allows
+	 * them with <code>max-stale</code>.
+	 */
+	private static boolean isServable(StoredResponse stored, Request request) {
+		if (CacheHeaders.requiresRevalidation(request)) {
+			return false;
+		}
+		var maxStale = request.cacheControl().maxStaleSeconds();
+		return stored.isFresh() || (maxStale > 0 && stored.isFresh(TimeUnit.SECONDS.toMillis(maxStale)));
+	}
+
+	/**
+	 * The response for <code>only-if-cached</code> requests which can't be served from the store, the same as OkHttp's
+	 * cache.
+	 */
+	private static Response unsatisfiable(Request request) {
+		return new Response.Builder()
+				.request(request)
+				.protocol(Protocol.HTTP_1_1)
+				.code(504)
+				.message("Unsatisfiable Request (only-if-cached)")
+				.body(ResponseBody.create(new byte[0], null))
+				.sentRequestAtMillis(-1L)
+				.receivedResponseAtMillis(System.currentTimeMillis())
+				.build();
+	}
+
+	private static Request addValidators(Request request, StoredResponse stored) {
+		var etag = stored.getHeaders().get(HeaderNames.ETAG.lowerCase());
+		var lastModified = stored.getHeaders().get(HeaderNames.LAST_MODIFIED.lowerCase());
+		if (etag != null) {
+			return request.newBuilder()
+					.header(HeaderNames.IF_NONE_MATCH.lowerCase(), etag)
+					.build();
+		}
+		if (lastModified != null) {
+			return request.newBuilder()
+					.header(HeaderNames.IF_MODIFIED_SINCE.lowerCase(), lastModified)
+					.build();
+		}
+		return request;
+	}
+
+	private static boolean hasValidators(Headers headers) {
+		return headers.get(HeaderNames.ETAG.lowerCase()) != null
+				|| headers.get(HeaderNames.LAST_MODIFIED.lowerCase()) != null;
+	}
+
+	/**
+	 * Headers on the <code>304</code> replace the stored ones, except those describing the stored body.
+	 */
+	private static Headers mergeHeaders(Headers stored, Headers network) {
+		var builder = stored.newBuilder();
+		for (var name : network.names()) {
+			if (isContentHeader(name)) {
+				continue;
+			}
+			builder.removeAll(name);
+			for (var value : network.values(name)) {
+				builder.addUnsafeNonAscii(name, value);
+			}
+		}
+		return builder.build();
+	}
+
+	private static boolean isContentHeader(String name) {
+		return name.equalsIgnoreCase(HeaderNames.CONTENT_LENGTH.lowerCase())
+				|| name.equalsIgnoreCase(HeaderNames.CONTENT_ENCODING.lowerCase())
+				|| name.equalsIgnoreCase(HeaderNames.CONTENT_TYPE.lowerCase());
+	}
+}
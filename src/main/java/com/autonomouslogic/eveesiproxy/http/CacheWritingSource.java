@@ -0,0 +1,48 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Source;
+
+/**
+ * Copies a response body as it is read, and hands it to the listener once it has been read fully.
+ * This lets the proxy's own caches store responses without buffering them ahead of being sent on.
+ * Bodies larger than the maximum size are discarded, and bodies which aren't read fully are never stored.
+ */
+@Log4j2
+class CacheWritingSource extends ForwardingSource {
+	private final long maxSize;
+	private final Consumer<byte[]> listener;
+	private Buffer copy = new Buffer();
+
+	CacheWritingSource(Source delegate, long maxSize, Consumer<byte[]> listener) {
+		super(delegate);
+		this.maxSize = maxSize;
+		this.listener = listener;
+	}
+
+	@Override
+	public long read(@NonNull Buffer sink, long byteCount) throws IOException {
+		var read = super.read(sink, byteCount);
+		if (copy == null) {
+			return read;
+		}
+		if (read == -1) {
+			var bytes = copy.readByteArray();
+			copy = null;
+			listener.accept(bytes);
+			return read;
+		}
+		sink.copyTo(copy, sink.size() - read, read);
+		if (copy.size() > maxSize) {
+			log.trace("Response too large to store in the cache");
+			copy.clear();
+			copy = null;
+		}
+		return read;
+	}
+}
@@ -0,0 +1,122 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import io.helidon.http.HeaderNames;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import lombok.SneakyThrows;
+import okhttp3.Headers;
+import okhttp3.Request;
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+/**
+ * Helpers for relaying compressed responses, used when {@link com.autonomouslogic.eveesiproxy.configs.Configs#HTTP_COMPRESSED_PASSTHROUGH}
+ * is enabled.
+ * <p>
+ * OkHttp only decompresses responses transparently if it added <code>Accept-Encoding</code> itself.
+ * Requests for clients accepting gzip are sent with an explicit <code>Accept-Encoding: gzip</code>, so the compressed
+ * bytes are relayed and cached as they are, and only decoded where the proxy needs to read the body.
+ */
+public class ContentEncoding {
+	public static final String GZIP = "gzip";
+
+	private static final List<String> GZIP_CODINGS = List.of(GZIP, "x-gzip");
+	private static final String ANY = "*";
+
+	/**
+	 * Whether an <code>Accept-Encoding</code> request header allows gzip.
+	 * An explicit gzip coding takes precedence over <code>*</code>, and codings with <code>q=0</code> aren't
+	 * accepted.
+	 */
+	public static boolean acceptsGzip(List<String> acceptEncoding) {
+		Double gzipQuality = null;
+		Double anyQuality = null;
+		for (var value : acceptEncoding) {
+			for (var coding : value.split(",")) {
+				var parts = coding.split(";");
+				var name = parts[0].trim().toLowerCase();
+				if (GZIP_CODINGS.contains(name)) {
+					gzipQuality = Math.max(gzipQuality == null ? 0.0 : gzipQuality, getQuality(parts));
+				} else if (name.equals(ANY)) {
+					anyQuality = getQuality(parts);
+				}
+			}
+		}
+		if (gzipQuality != null) {
+			return gzipQuality > 0.0;
+		}
+		return anyQuality != null && anyQuality > 0.0;
+	}
+
+	private static double getQuality(String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			var param = parts[i].trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Double.parseDouble(param.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0.0;
+				}
+			}
+		}
+		return 1.0;
+	}
+
+	/**
+	 * Adds <code>Accept-Encoding</code> to the values of a <code>Vary</code> header, unless already covered.
+	 * Used for relayed responses when whether they're compressed depends on the request.
+	 */
+	public static List<String> varyOnAcceptEncoding(List<String> vary) {
+		var covered = vary.stream()
+				.flatMap(value -> Arrays.stream(value.split(",")))
+				.map(String::trim)
+				.anyMatch(field ->
+						field.equals(ANY) || field.equalsIgnoreCase(HeaderNames.ACCEPT_ENCODING.defaultCase()));
+		if (covered) {
+			return vary;
+		}
+		var updated = new ArrayList<>(vary);
+		updated.add(HeaderNames.ACCEPT_ENCODING.defaultCase());
+		return updated;
+	}
+
+	/**
+	 * Whether the ESI request asks for the response to be relayed compressed.
+	 */
+	public static boolean isGzipRequested(Request request) {
+		return GZIP.equalsIgnoreCase(request.header(HeaderNames.ACCEPT_ENCODING.lowerCase()));
+	}
+
+	/**
+	 * Whether the response body is gzip compressed.
+	 */
+	public static boolean isGzip(Headers headers) {
+		return GZIP.equalsIgnoreCase(headers.get(HeaderNames.CONTENT_ENCODING.lowerCase()));
+	}
+
+	/**
+	 * Decompresses a response body if it's gzip compressed according to the headers.
+	 */
+	public static byte[] decode(Headers headers, byte[] body) throws IOException {
+		if (!isGzip(headers) || body.length == 0) {
+			return body;
+		}
+		try (var source = Okio.buffer(new GzipSource(new Buffer().write(body)))) {
+			return source.readByteArray();
+		}
+	}
+
+	@SneakyThrows
+	public static byte[] gzip(byte[] body) {
+		var out = new ByteArrayOutputStream(body.length / 4 + 64);
+		try (var gzip = new GZIPOutputStream(out)) {
+			gzip.write(body);
+		}
+		return out.toByteArray();
+	}
+}
@@ -1,18 +1,30 @@
 package com.autonomouslogic.eveesiproxy.http;
 
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.helidon.http.HeaderNames;
+import io.helidon.webserver.http.ServerResponse;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
+import okhttp3.Headers;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
@@ -20,15 +32,107 @@ import okhttp3.ResponseBody;
 @Singleton
 @Log4j2
 public class CursorFetcher {
+	private static final String BEFORE = "before";
+	private static final String AFTER = "after";
+	private static final String CURSOR = "cursor";
+	private static final String ID = "id";
+
 	@Inject
 	protected OkHttpClient client;
 
 	@Inject
 	protected ObjectMapper objectMapper;
 
+	@Inject
+	protected CursorStateStore cursorStateStore;
+
+	private final boolean speculativeCursors = Configs.HTTP_SPECULATIVE_CURSORS.getRequired();
+	private final int maxConcurrentPages = Configs.HTTP_MAX_CONCURRENT_PAGES.getRequired();
+
+	/**
+	 * The <code>before</code> cursors last followed for each URL and authorization, used for speculative fetching.
+	 */
+	private final Cache<String, List<String>> knownCursors =
+			CacheBuilder.newBuilder().maximumSize(10_000).build();
+
 	@Inject
 	protected CursorFetcher() {}
 
+	/**
+	 * Syncs a previously walked URL incrementally, by following <code>after</code> cursors from where the last sync
+	 * ended and merging the newer records with the stored ones.
+	 * Records with the same <code>id</code> as a newer record are replaced.
+	 * @return the merged response, or empty if there's no state for the request and the full history must be walked
+	 */
+	@SneakyThrows
+	public Optional<Response> fetchIncremental(Request esiRequest) {
+		if (!esiRequest.method().equals("GET") || hasCursorParameter(esiRequest)) {
+			return Optional.empty();
+		}
+		var state = cursorStateStore.get(esiRequest);
+		if (state.isEmpty()) {
+			return Optional.empty();
+		}
+		log.trace("Request for {} has stored cursor state, following 'after' tokens", esiRequest.url());
+		var newPages = new ArrayList<ObjectNode>();
+		var after = state.get().getAfter();
+		Headers headers;
+		while (true) {
+			try (var response = OkHttpExec.execute(client.newCall(buildCursorRequest(esiRequest, AFTER, after)))) {
+				headers = response.headers();
+				var page = response.code() == 200 ? parseResponse(response) : null;
+				if (page == null) {
+					log.debug(
+							"Failed syncing {} from stored cursor with status {}, walking full history",
+							esiRequest.url(),
+							response.code());
+					cursorStateStore.remove(esiRequest);
+					return Optional.empty();
+				}
+				if (!hasRecords(page)) {
+					break;
+				}
+				newPages.add(page);
+				var next = getCursor(page, AFTER);
+				if (next == null || next.equals(after)) {
+					break;
+				}
+				after = next;
+			}
+		}
+
+		var storedPage = (ObjectNode) objectMapper.readTree(state.get().getBody());
+		var mergedPage = newPages.isEmpty() ? storedPage : mergeNewerPages(storedPage, newPages);
+		if (!newPages.isEmpty()) {
+			cursorStateStore.put(
+					esiRequest,
+					new CursorStateStore.CursorState(
+							after, state.get().getWalkedAt(), objectMapper.writeValueAsBytes(mergedPage)));
+		}
+		mergedPage.set(CURSOR, objectMapper.createObjectNode().put(AFTER, after));
+		return Optional.of(new Response.Builder()
+				.request(esiRequest)
+				.protocol(Protocol.HTTP_1_1)
+				.message("merged cursor pages")
+				.code(200)
+				.headers(mergedHeaders(headers))
+				.body(ResponseBody.create(
+						objectMapper.writeValueAsBytes(mergedPage), MediaType.get("application/json")))
+				.build());
+	}
+
+	/**
+	 * Keeps the headers from the latest ESI response on a merged response, except those describing the original body.
+	 */
+	private static Headers mergedHeaders(Headers headers) {
+		return headers.newBuilder()
+				.removeAll(HeaderNames.CONTENT_LENGTH.lowerCase())
+				.removeAll(HeaderNames.CONTENT_ENCODING.lowerCase())
+				.removeAll(HeaderNames.CONTENT_TYPE.lowerCase())
+				.removeAll(HeaderNames.ETAG.lowerCase())
+				.build();
+	}
+
 	public boolean shouldFetchCursors(Request esiRequest, Response esiResponse) {
 		if (esiResponse.code() != 200) {
 			return false;
@@ -41,30 +145,57 @@ public class CursorFetcher {
 	}
 
 	public Response fetchCursorPages(Request esiRequest, Response esiResponse) {
+		return fetchCursorPages(esiRequest, esiResponse, null).orElseThrow();
+	}
+
+	/**
+	 * Like {@link #fetchCursorPages(Request, Response)}, but writes the merged response directly to the supplied server
+	 * response as the pages arrive, so only one page is held in memory at a time.
+	 * This is only possible when the first page has a single array field, as each page contributes to every array
+	 * field and the merged fields are written one after another.
+	 * Otherwise, and when the merged response is needed for incremental syncs, the pages are buffered as normal.
+	 * As the status and headers are sent before all the pages are fetched, any failures after the first page will
+	 * result in the response being aborted.
+	 * @return the response to send, or empty if it was streamed
+	 */
+	public Optional<Response> streamCursorPages(Request esiRequest, Response esiResponse, ServerResponse res) {
+		return fetchCursorPages(esiRequest, esiResponse, res);
+	}
+
+	private Optional<Response> fetchCursorPages(Request esiRequest, Response esiResponse, ServerResponse res) {
 		byte[] bodyBytes;
 		ObjectNode firstPage;
 		try {
 			var body = esiResponse.body();
 			if (body == null) {
-				return esiResponse;
+				return Optional.of(esiResponse);
 			}
 			bodyBytes = body.bytes();
-			var json = objectMapper.readTree(bodyBytes);
+			// Compressed bodies are relayed as they are, unless the pages are merged.
+			var json = objectMapper.readTree(ContentEncoding.decode(esiResponse.headers(), bodyBytes));
 			if (!json.isObject()) {
-				return recreateResponse(esiResponse, bodyBytes);
+				return Optional.of(recreateResponse(esiResponse, bodyBytes));
 			}
 			firstPage = (ObjectNode) json;
 		} catch (IOException e) {
-			return esiResponse;
+			return Optional.of(esiResponse);
 		}
 
 		String beforeCursor = getBeforeCursor(firstPage);
 		if (beforeCursor == null) {
-			return recreateResponse(esiResponse, bodyBytes);
+			var page = firstPage.deepCopy();
+			page.remove(CURSOR);
+			storeState(esiRequest, firstPage, page);
+			return Optional.of(recreateResponse(esiResponse, bodyBytes));
 		}
 
 		log.trace("Request for {} has cursor-based pagination, following 'before' tokens", esiRequest.url());
-		return fetchPages(esiRequest, esiResponse, firstPage, beforeCursor);
+		var arrayField = getStreamableField(firstPage);
+		if (res != null && arrayField != null && !cursorStateStore.isEnabled()) {
+			streamPages(esiRequest, firstPage, beforeCursor, arrayField, res);
+			return Optional.empty();
+		}
+		return Optional.of(fetchPages(esiRequest, esiResponse, firstPage, beforeCursor));
 	}
 
 	private boolean hasCursorParameter(Request request) {
@@ -111,7 +242,7 @@ public class CursorFetcher {
 		if (body == null) {
 			return null;
 		}
-		var bytes = body.bytes();
+		var bytes = ContentEncoding.decode(response.headers(), body.bytes());
 		var json = objectMapper.readTree(bytes);
 		if (!json.isObject()) {
 			return null;
@@ -120,15 +251,19 @@ public class CursorFetcher {
 	}
 
 	private String getBeforeCursor(ObjectNode page) {
-		var cursor = page.get("cursor");
+		return getCursor(page, BEFORE);
+	}
+
+	private String getCursor(ObjectNode page, String direction) {
+		var cursor = page.get(CURSOR);
 		if (cursor == null || !cursor.isObject()) {
 			return null;
 		}
-		var before = cursor.get("before");
-		if (before == null || !before.isTextual()) {
+		var token = cursor.get(direction);
+		if (token == null || !token.isTextual()) {
 			return null;
 		}
-		return before.asText();
+		return token.asText();
 	}
 
 	@SneakyThrows
@@ -137,25 +272,13 @@ public class CursorFetcher {
 		var pages = new ArrayList<ObjectNode>();
 		pages.add(firstPage);
 
-		var nextCursor = beforeCursor;
-		while (nextCursor != null) {
-			var nextRequest = buildCursorRequest(firstRequest, nextCursor);
-			try (var nextResponse = OkHttpExec.execute(client.newCall(nextRequest))) {
-				if (nextResponse.code() != 200) {
-					return nextResponse;
-				}
-
-				var nextPage = parseResponse(nextResponse);
-				if (nextPage == null) {
-					return nextResponse;
-				}
-
-				pages.add(nextPage);
-				nextCursor = getBeforeCursor(nextPage);
-			}
+		var failedResponse = walkPages(firstRequest, beforeCursor, pages::add);
+		if (failedResponse.isPresent()) {
+			return failedResponse.get();
 		}
 
 		var mergedPage = mergePages(pages);
+		storeState(firstRequest, firstPage, mergedPage);
 		preserveAfterCursor(firstPage, mergedPage);
 
 		return new Response.Builder()
@@ -168,11 +291,171 @@ public class CursorFetcher {
 				.build();
 	}
 
-	private Request buildCursorRequest(Request originalRequest, String cursor) {
+	/**
+	 * Writes the merged response as the pages arrive.
+	 * The non-array fields are taken from the first page and written first, followed by the array field, which is
+	 * written incrementally, and finally the <code>after</code> cursor from the first page.
+	 */
+	@SneakyThrows
+	private void streamPages(
+			Request firstRequest, ObjectNode firstPage, String beforeCursor, String arrayField, ServerResponse res) {
+		log.trace("Streaming cursor pages for {}", firstRequest.url());
+		res.status(200);
+		res.header(HeaderNames.CONTENT_TYPE.lowerCase(), "application/json");
+		try (var out = res.outputStream();
+				var generator = objectMapper
+						.getFactory()
+						.createGenerator(out)
+						.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT)) {
+			generator.writeStartObject();
+			for (var field : firstPage.properties()) {
+				if (!field.getKey().equals(CURSOR) && !field.getKey().equals(arrayField)) {
+					generator.writeFieldName(field.getKey());
+					generator.writeTree(field.getValue());
+				}
+			}
+			generator.writeArrayFieldStart(arrayField);
+			writeElements(generator, firstPage.get(arrayField));
+			generator.flush();
+			var failedResponse = walkPages(firstRequest, beforeCursor, page -> {
+				writeElements(generator, page.get(arrayField));
+				generator.flush();
+			});
+			if (failedResponse.isPresent()) {
+				throw new IOException("Failed fetching cursor pages for %s after response was started: %s"
+						.formatted(firstRequest.url(), failedResponse.get().code()));
+			}
+			generator.writeEndArray();
+			var after = getCursor(firstPage, AFTER);
+			if (after != null) {
+				generator.writeObjectFieldStart(CURSOR);
+				generator.writeStringField(AFTER, after);
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+		}
+	}
+
+	private static void writeElements(JsonGenerator generator, JsonNode array) throws IOException {
+		if (array == null || !array.isArray()) {
+			return;
+		}
+		for (var element : array) {
+			generator.writeTree(element);
+		}
+	}
+
+	/**
+	 * @return the name of the only array field on the page, or null if there are none or several
+	 */
+	private static String getStreamableField(ObjectNode page) {
+		String arrayField = null;
+		for (var field : page.properties()) {
+			if (field.getKey().equals(CURSOR) || !field.getValue().isArray()) {
+				continue;
+			}
+			if (arrayField != null) {
+				return null;
+			}
+			arrayField = field.getKey();
+		}
+		return arrayField;
+	}
+
+	/**
+	 * Follows the <code>before</code> cursors from the first page, handing each page to the consumer in order.
+	 * @return the failed response, if a page couldn't be fetched
+	 */
+	private Optional<Response> walkPages(Request firstRequest, String beforeCursor, PageConsumer consumer)
+			throws IOException {
+		var cursors = new ArrayList<String>();
+		try (var prefetch = new CursorPrefetch(firstRequest)) {
+			var nextCursor = beforeCursor;
+			while (nextCursor != null) {
+				cursors.add(nextCursor);
+				var cursor = nextCursor;
+				try (var nextResponse = prefetch.take(cursor)
+						.flatMap(PagePrefetch::join)
+						.orElseGet(() ->
+								OkHttpExec.execute(client.newCall(buildCursorRequest(firstRequest, BEFORE, cursor))))) {
+					if (nextResponse.code() != 200) {
+						return Optional.of(nextResponse);
+					}
+
+					var nextPage = parseResponse(nextResponse);
+					if (nextPage == null) {
+						return Optional.of(nextResponse);
+					}
+
+					consumer.accept(nextPage);
+					nextCursor = getBeforeCursor(nextPage);
+				}
+			}
+		}
+		if (speculativeCursors) {
+			knownCursors.put(cursorsKey(firstRequest), cursors);
+		}
+		return Optional.empty();
+	}
+
+	private interface PageConsumer {
+		void accept(ObjectNode page) throws IOException;
+	}
+
+	private static String cursorsKey(Request request) {
+		return request.url() + " " + request.header(HeaderNames.AUTHORIZATION.lowerCase());
+	}
+
+	/**
+	 * Requests the cursors followed last time for the same URL in parallel, keeping at most
+	 * {@link Configs#HTTP_MAX_CONCURRENT_PAGES} of them in flight.
+	 * Cursors are only used if the walk reaches them, so speculation never changes the result.
+	 */
+	private class CursorPrefetch implements AutoCloseable {
+		private final Request firstRequest;
+		private final List<String> cursors;
+		private final PagePrefetch<String> prefetch = new PagePrefetch<>();
+		private int launched = 0;
+
+		CursorPrefetch(Request firstRequest) {
+			this.firstRequest = firstRequest;
+			cursors = speculativeCursors
+					? Optional.ofNullable(knownCursors.getIfPresent(cursorsKey(firstRequest)))
+							.orElse(List.of())
+					: List.of();
+			if (!cursors.isEmpty()) {
+				log.debug("Speculatively fetching {} known cursors for {}", cursors.size(), firstRequest.url());
+			}
+			launch();
+		}
+
+		Optional<CompletableFuture<Response>> take(String cursor) {
+			var response = prefetch.take(cursor);
+			launch();
+			return response;
+		}
+
+		private void launch() {
+			while (launched < cursors.size() && prefetch.size() < maxConcurrentPages) {
+				var cursor = cursors.get(launched++);
+				prefetch.add(
+						cursor,
+						buildCursorRequest(firstRequest, BEFORE, cursor),
+						request -> OkHttpExec.execute(client.newCall(request)));
+			}
+		}
+
+		@Override
+		public void close() {
+			prefetch.close();
+		}
+	}
+
+	private Request buildCursorRequest(Request originalRequest, String direction, String cursor) {
 		var newUrl = originalRequest
 				.url()
 				.newBuilder()
-				.setQueryParameter("before", cursor)
+				.setQueryParameter(direction, cursor)
 				.build();
 
 		return originalRequest.newBuilder().url(newUrl).build();
@@ -213,6 +496,69 @@ public class CursorFetcher {
 		return result;
 	}
 
+	/**
+	 * Stores the result of a full walk, so the next request can continue from the <code>after</code> cursor on the
+	 * first page.
+	 */
+	@SneakyThrows
+	private void storeState(Request esiRequest, ObjectNode firstPage, ObjectNode mergedPage) {
+		var after = getCursor(firstPage, AFTER);
+		if (after == null || !cursorStateStore.isEnabled()) {
+			return;
+		}
+		cursorStateStore.put(
+				esiRequest,
+				new CursorStateStore.CursorState(
+						after, System.currentTimeMillis(), objectMapper.writeValueAsBytes(mergedPage)));
+	}
+
+	private static boolean hasRecords(ObjectNode page) {
+		for (var field : page.properties()) {
+			if (field.getValue().isArray() && !field.getValue().isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Merges pages fetched by following <code>after</code> cursors into previously merged pages.
+	 * The newer records are placed first, newest page first, matching the order of a full walk.
+	 */
+	private ObjectNode mergeNewerPages(ObjectNode storedPage, List<ObjectNode> newPages) {
+		var result = objectMapper.createObjectNode();
+		for (var field : storedPage.properties()) {
+			var fieldName = field.getKey();
+			var fieldValue = field.getValue();
+			if (!fieldValue.isArray()) {
+				result.set(fieldName, fieldValue);
+				continue;
+			}
+			var mergedArray = objectMapper.createArrayNode();
+			var ids = new HashSet<JsonNode>();
+			for (var page : newPages.reversed()) {
+				var pageField = page.get(fieldName);
+				if (pageField != null && pageField.isArray()) {
+					for (var record : pageField) {
+						mergedArray.add(record);
+						getRecordId(record).ifPresent(ids::add);
+					}
+				}
+			}
+			for (var record : fieldValue) {
+				if (getRecordId(record).filter(ids::contains).isEmpty()) {
+					mergedArray.add(record);
+				}
+			}
+			result.set(fieldName, mergedArray);
+		}
+		return result;
+	}
+
+	private static Optional<JsonNode> getRecordId(JsonNode record) {
+		return Optional.ofNullable(record.isObject() ? record.get(ID) : null);
+	}
+
 	private void preserveAfterCursor(ObjectNode firstPage, ObjectNode mergedPage) {
 		var cursor = firstPage.get("cursor");
 		if (cursor == null || !cursor.isObject()) {
@@ -0,0 +1,284 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.helidon.http.HeaderNames;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Request;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Keeps the merged result of walking cursor pages, along with the latest <code>after</code> cursor, so later requests
+ * for the same URL only need to fetch newer records.
+ * <p>
+ * State is kept per URL, the character the request is authorized as, and the request headers which change the
+ * response body. Characters are resolved the same way as for rate limits, see {@link RateLimitKeyResolver}, so state
+ * survives access tokens being refreshed. Keys are hashed, so tokens are never written to disk.
+ * <p>
+ * If a snapshot directory is configured, state is also written there and read back after a restart.
+ * Snapshots are deleted when their state is evicted from memory, and on startup, snapshots due a full sync or beyond
+ * {@link Configs#HTTP_CURSOR_STATE_MAX_SIZE} are deleted, so the snapshots are bounded the same as the memory.
+ * State for authed requests is only snapshotted if {@link Configs#HTTP_CURSOR_STATE_SNAPSHOT_AUTHED} is set.
+ * <p>
+ * Only paths which have returned cursor pages are looked up, so other requests don't pay for hashing the key or
+ * checking for a snapshot. The paths are also written to the snapshot directory.
+ */
+@Singleton
+@Log4j2
+public class CursorStateStore {
+	/**
+	 * How often to walk the full history again, in case older records have changed.
+	 */
+	private static final Duration FULL_SYNC_INTERVAL = Duration.ofDays(1);
+
+	private static final String TOKEN = "token";
+	private static final String PATHS_FILE = "paths.txt";
+	private static final List<String> KEY_HEADERS = List.of(
+			HeaderNames.ACCEPT_LANGUAGE.lowerCase(), HeaderNames.ACCEPT_ENCODING.lowerCase(), "x-compatibility-date");
+
+	@Inject
+	protected ObjectMapper objectMapper;
+
+	@Inject
+	protected ProxyKeyInterceptor proxyKeyInterceptor;
+
+	@Inject
+	protected RateLimitKeyResolver rateLimitKeyResolver;
+
+	private final long maxSize = Configs.HTTP_CURSOR_STATE_MAX_SIZE.getRequired();
+	private final Optional<File> snapshotDir =
+			Configs.HTTP_CURSOR_STATE_DIR.get().map(File::new);
+	private final boolean snapshotAuthed = Configs.HTTP_CURSOR_STATE_SNAPSHOT_AUTHED.getRequired();
+
+	private final Cache<String, CursorState> states = maxSize <= 0
+			? null
+			: Caffeine.newBuilder()
+					.maximumWeight(maxSize)
+					.weigher((String key, CursorState state) -> state.getBody().length)
+					.evictionListener(this::onEviction)
+					.executor(Runnable::run)
+					.build();
+
+	private final Set<String> cursorPaths = ConcurrentHashMap.newKeySet();
+
+	@Inject
+	protected CursorStateStore() {
+		if (states != null) {
+			readPaths();
+			pruneSnapshots();
+		}
+	}
+
+	public boolean isEnabled() {
+		return states != null;
+	}
+
+	/**
+	 * @return the state for the request, unless it's due a full sync
+	 */
+	public Optional<CursorState> get(Request esiRequest) {
+		if (states == null || !cursorPaths.contains(esiRequest.url().encodedPath())) {
+			return Optional.empty();
+		}
+		var identity = getIdentity(esiRequest);
+		var key = createKey(esiRequest, identity);
+		var state = Optional.ofNullable(states.getIfPresent(key))
+				.or(() -> isSnapshotted(identity) ? readSnapshot(key) : Optional.empty());
+		return state.filter(s -> System.currentTimeMillis() - s.getWalkedAt() < FULL_SYNC_INTERVAL.toMillis());
+	}
+
+	public void put(Request esiRequest, CursorState state) {
+		if (states == null) {
+			return;
+		}
+		var identity = getIdentity(esiRequest);
+		var key = createKey(esiRequest, identity);
+		// The snapshot is written first, so it's deleted if the state is evicted straight away.
+		if (isSnapshotted(identity)) {
+			writeSnapshot(key, state);
+		}
+		states.put(key, state);
+		var path = esiRequest.url().encodedPath();
+		if (cursorPaths.add(path)) {
+			writePath(path);
+		}
+	}
+
+	public void remove(Request esiRequest) {
+		if (states == null) {
+			return;
+		}
+		var key = createKey(esiRequest, getIdentity(esiRequest));
+		states.invalidate(key);
+		snapshotFile(key).ifPresent(File::delete);
+	}
+
+	/**
+	 * @return the character the request is authorized as, or empty for public requests
+	 */
+	private Optional<String> getIdentity(Request esiRequest) {
+		var token = ProxyKeyInterceptor.getBearerToken(esiRequest)
+				.or(() -> Optional.ofNullable(esiRequest.url().queryParameter(TOKEN)));
+		return token.map(t -> proxyKeyInterceptor
+				.getCharacterForProxyKey(t)
+				.map(character -> "character:" + character.getCharacterId())
+				.orElseGet(() -> rateLimitKeyResolver.getTokenIdentity(t)));
+	}
+
+	private boolean isSnapshotted(Optional<String> identity) {
+		return snapshotDir.isPresent() && (identity.isEmpty() || snapshotAuthed);
+	}
+
+	private String createKey(Request esiRequest, Optional<String> identity) {
+		var url = esiRequest.url().newBuilder().removeAllQueryParameters(TOKEN).build();
+		var key = new StringBuilder().append(url).append("\n").append(identity.orElse("public"));
+		for (var header : KEY_HEADERS) {
+			key.append("\n").append(header).append(": ").append(esiRequest.headers(header));
+		}
+		return DigestUtils.sha256Hex(key.toString());
+	}
+
+	private void readPaths() {
+		var file = snapshotDir.map(dir -> new File(dir, PATHS_FILE)).filter(File::exists);
+		if (file.isEmpty()) {
+			return;
+		}
+		try {
+			cursorPaths.addAll(Files.readAllLines(file.get().toPath()));
+			log.trace("Read {} cursor paths from {}", cursorPaths.size(), file.get());
+		} catch (IOException e) {
+			log.warn("Failed reading cursor paths {}", file.get(), e);
+		}
+	}
+
+	private synchronized void writePath(String path) {
+		var file = snapshotDir.map(dir -> new File(dir, PATHS_FILE));
+		if (file.isEmpty()) {
+			return;
+		}
+		try {
+			Files.writeString(file.get().toPath(), path + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			log.warn("Failed writing cursor paths {}", file.get(), e);
+		}
+	}
+
+	private void onEviction(String key, CursorState state, RemovalCause cause) {
+		snapshotFile(key).filter(File::exists).ifPresent(file -> {
+			log.trace("Deleting evicted cursor state snapshot {}", file);
+			file.delete();
+		});
+	}
+
+	/**
+	 * Deletes snapshots which are due a full sync, and the oldest snapshots beyond the maximum size.
+	 */
+	private void pruneSnapshots() {
+		var files = snapshotDir.map(dir -> dir.listFiles((d, name) -> name.endsWith(".json")));
+		if (files.isEmpty() || files.get() == null) {
+			return;
+		}
+		var cutoff = System.currentTimeMillis() - FULL_SYNC_INTERVAL.toMillis();
+		var size = 0L;
+		var sorted = Arrays.stream(files.get())
+				.sorted(Comparator.comparingLong(File::lastModified).reversed())
+				.toList();
+		for (var file : sorted) {
+			if (file.lastModified() >= cutoff) {
+				size += file.length();
+				if (size <= maxSize) {
+					continue;
+				}
+			}
+			log.trace("Deleting cursor state snapshot {}", file);
+			file.delete();
+		}
+	}
+
+	private Optional<File> snapshotFile(String key) {
+		return snapshotDir.map(dir -> new File(dir, key + ".json"));
+	}
+
+	private Optional<CursorState> readSnapshot(String key) {
+		var file = snapshotFile(key).filter(File::exists);
+		if (file.isEmpty()) {
+			return Optional.empty();
+		}
+		try {
+			var json = (ObjectNode) objectMapper.readTree(file.get());
+			var state = new CursorState(
+					json.get("after").asText(),
+					json.get("walked_at").asLong(),
+					objectMapper.writeValueAsBytes(json.get("page")));
+			log.trace("Read cursor state snapshot {}", file.get());
+			states.put(key, state);
+			return Optional.of(state);
+		} catch (IOException | RuntimeException e) {
+			log.warn("Failed reading cursor state snapshot {}", file.get(), e);
+			return Optional.empty();
+		}
+	}
+
+	private void writeSnapshot(String key, CursorState state) {
+		var file = snapshotFile(key);
+		if (file.isEmpty()) {
+			return;
+		}
+		try {
+			var dir = file.get().getParentFile();
+			if (!dir.exists() && !dir.mkdirs()) {
+				throw new IOException("Failed creating cursor state directory " + dir);
+			}
+			var json = objectMapper.createObjectNode();
+			json.put("after", state.getAfter());
+			json.put("walked_at", state.getWalkedAt());
+			json.set("page", objectMapper.readTree(state.getBody()));
+			var temp = new File(dir, key + ".tmp");
+			objectMapper.writeValue(temp, json);
+			Files.move(
+					temp.toPath(),
+					file.get().toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("Failed writing cursor state snapshot {}", file.get(), e);
+		}
+	}
+
+	@Value
+	public static class CursorState {
+		/**
+		 * The newest <code>after</code> cursor seen.
+		 */
+		String after;
+
+		/**
+		 * When the full history was last walked, in epoch millis.
+		 */
+		long walkedAt;
+
+		/**
+		 * The merged page, without its cursor.
+		 */
+		byte[] body;
+	}
+}
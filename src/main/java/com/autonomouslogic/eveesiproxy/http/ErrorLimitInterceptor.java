@@ -1,18 +1,18 @@
 package com.autonomouslogic.eveesiproxy.http;
 
+import com.autonomouslogic.eveesiproxy.configs.Configs;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicBoolean;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
 import okhttp3.Interceptor;
 import okhttp3.Response;
-import okhttp3.ResponseBody;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -27,7 +27,9 @@ public class ErrorLimitInterceptor implements Interceptor {
 	public static final String ERROR_LIMIT_RESET = "x-esi-error-limit-reset";
 	public static final String ERROR_LIMIT_REMAIN = "x-esi-error-limit-remain";
 
-	private static final AtomicBoolean globalStop = new AtomicBoolean();
+	private static final long MAX_CHECKED_BODY_SIZE = 8 * 1024;
+
+	private final StopGate globalStop = new StopGate(Configs.HTTP_STOP_RELEASE_INTERVAL.getRequired());
 
 	@Inject
 	protected ErrorLimitInterceptor() {}
@@ -36,32 +38,28 @@ public class ErrorLimitInterceptor implements Interceptor {
 	@Override
 	@SneakyThrows
 	public Response intercept(@NotNull Chain chain) throws IOException {
+		if (StaleCacheInterceptor.isLookup(chain.request())) {
+			return chain.proceed(chain.request());
+		}
 		var success = false;
+		var released = false;
 		Response response;
 		do {
-			respectGlobalStop();
-			response = chain.proceed(chain.request());
-			var body = "";
-			// If body is small, consume it so it can be checked later.
-			if (response.body().contentLength() < 8 * 1024) {
-				body = response.body().string();
-				// Reconstruct.
-				response = response.newBuilder()
-						.body(ResponseBody.create(response.body().contentType(), body))
-						.build();
+			if (!released) {
+				respectGlobalStop();
 			}
+			released = false;
+			response = chain.proceed(chain.request());
+			var body = peekBody(response);
 			if (response.code() == 420 || body.contains(ESI_420_TEXT)) {
-				// @todo there's a race condition here on concurrent requests, though it might not matter in practice.
-				globalStop.set(true);
-				try {
-					var resetTime = parseResetTime(Optional.ofNullable(response.header(ERROR_LIMIT_RESET))
-							.orElse("10"));
-					log.warn(String.format("ESI 420, waiting for %s", resetTime));
-					response.close();
-					Thread.sleep(resetTime.plusSeconds(1).toMillis());
-				} finally {
-					globalStop.set(false);
-				}
+				var resetTime = parseResetTime(
+						Optional.ofNullable(response.header(ERROR_LIMIT_RESET)).orElse("10"));
+				log.warn(String.format("ESI 420, waiting for %s", resetTime));
+				response.close();
+				// Wait in line with the other stopped requests rather than sleeping separately.
+				globalStop.stop(resetTime.plusSeconds(1));
+				globalStop.await();
+				released = true;
 			} else {
 				success = true;
 			}
@@ -69,12 +67,28 @@ public class ErrorLimitInterceptor implements Interceptor {
 		return response;
 	}
 
+	/**
+	 * Reads small bodies so they can be checked, without consuming them.
+	 * Bodies of unknown length are only checked if they turn out to be small, so larger bodies can still be streamed
+	 * to the client as they're read.
+	 */
+	private static String peekBody(Response response) throws IOException {
+		var contentLength = response.body().contentLength();
+		if (contentLength >= MAX_CHECKED_BODY_SIZE) {
+			return "";
+		}
+		var bytes = response.peekBody(MAX_CHECKED_BODY_SIZE).bytes();
+		if (bytes.length >= MAX_CHECKED_BODY_SIZE) {
+			return "";
+		}
+		return new String(ContentEncoding.decode(response.headers(), bytes), StandardCharsets.UTF_8);
+	}
+
 	@SneakyThrows
 	private void respectGlobalStop() {
 		var start = Instant.now();
-		while (globalStop.get()) {
-			log.debug(String.format("Waiting for ESI 420: %s", Duration.between(start, Instant.now())));
-			Thread.sleep(1000);
+		if (globalStop.await()) {
+			log.debug(String.format("Waited for ESI 420: %s", Duration.between(start, Instant.now())));
 		}
 	}
 
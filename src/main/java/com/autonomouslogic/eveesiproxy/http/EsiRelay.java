@@ -1,6 +1,7 @@
 package com.autonomouslogic.eveesiproxy.http;
 
 import com.autonomouslogic.eveesiproxy.configs.Configs;
+import io.helidon.http.HeaderNames;
 import io.helidon.http.HttpPrologue;
 import io.helidon.webserver.http.ServerRequest;
 import io.helidon.webserver.http.ServerResponse;
@@ -10,15 +11,15 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.List;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
 import okhttp3.HttpUrl;
-import okhttp3.OkHttpClient;
+import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import org.apache.commons.io.IOUtils;
 import org.jetbrains.annotations.Nullable;
 
 /**
@@ -29,9 +30,14 @@ import org.jetbrains.annotations.Nullable;
 public class EsiRelay {
 	private static final List<String> BLOCKED_HEADERS =
 			List.of("Host", "Accept-Encoding").stream().map(String::toLowerCase).toList();
+	private static final List<String> BLOCKED_RESPONSE_HEADERS =
+			List.of("Transfer-Encoding").stream().map(String::toLowerCase).toList();
 
-	@Inject
-	protected OkHttpClient client;
+	/**
+	 * Size of the buffer used when relaying response bodies.
+	 * Bodies smaller than this are sent in one go, larger bodies are streamed through it.
+	 */
+	private static final int RELAY_BUFFER_SIZE = 16 * 1024;
 
 	@Inject
 	protected PageFetcher pageFetcher;
@@ -39,7 +45,19 @@ public class EsiRelay {
 	@Inject
 	protected CursorFetcher cursorFetcher;
 
+	@Inject
+	protected RequestCoalescer requestCoalescer;
+
+	@Inject
+	protected RequestPriorityResolver requestPriorityResolver;
+
+	@Inject
+	protected TenantQuotas tenantQuotas;
+
 	private final URL esiBaseUrl;
+	private final boolean streamMergedPages = Configs.HTTP_STREAM_MERGED_PAGES.getRequired();
+	private final int maxRequestReplaySize = Configs.HTTP_REQUEST_REPLAY_BUFFER_SIZE.getRequired();
+	private final boolean compressedPassthrough = Configs.HTTP_COMPRESSED_PASSTHROUGH.getRequired();
 
 	@Inject
 	@SneakyThrows
@@ -57,11 +75,55 @@ public class EsiRelay {
 	 */
 	@SneakyThrows
 	public void relayRequest(ServerRequest proxyRequest, ServerResponse res) {
-		var esiRequest = createEsiRequest(proxyRequest).build();
-		try (var esiResponse = OkHttpExec.execute(client.newCall(esiRequest))) {
+		var esiRequest = requestPriorityResolver.tagPriority(
+				createEsiRequest(proxyRequest).build());
+		var tenant = tenantQuotas.getTenant(esiRequest);
+		esiRequest =
+				esiRequest.newBuilder().tag(TenantQuotas.Tenant.class, tenant).build();
+		try (var permit = tenantQuotas.tryAcquire(tenant)) {
+			if (!permit.isAdmitted()) {
+				res.status(429)
+						.header(
+								RateLimitGroupStopInterceptor.RETRY_AFTER,
+								Long.toString(permit.getRetryAfter().toSeconds()))
+						.send("Proxy quota exceeded");
+				return;
+			}
+			relayEsiRequest(esiRequest, res);
+		}
+	}
+
+	private void relayEsiRequest(Request esiRequest, ServerResponse res) throws IOException {
+		if (compressedPassthrough) {
+			// Whether the response is compressed depends on the client's Accept-Encoding, including for merged pages.
+			res.header(HeaderNames.VARY, HeaderNames.ACCEPT_ENCODING.defaultCase());
+		}
+		var cachedPages = pageFetcher.getCachedPages(esiRequest).or(() -> cursorFetcher.fetchIncremental(esiRequest));
+		if (cachedPages.isPresent()) {
+			try (var cachedResponse = cachedPages.get()) {
+				sendResponse(cachedResponse, res);
+			}
+			return;
+		}
+		try (var prefetch = pageFetcher.prefetchPages(esiRequest);
+				var esiResponse = requestCoalescer.execute(esiRequest)) {
+			if (!esiResponse.isSuccessful()) {
+				// The prefetched pages would most likely fail the same way, adding to the error limit.
+				prefetch.close();
+			}
+			pageFetcher.learnPages(esiRequest, esiResponse);
 			Response finalResponse;
-			if (pageFetcher.shouldFetchPages(esiRequest, esiResponse)) {
-				finalResponse = pageFetcher.fetchSubPages(esiRequest, esiResponse);
+			if (streamMergedPages && pageFetcher.shouldFetchPages(esiRequest, esiResponse)) {
+				pageFetcher.streamSubPages(esiRequest, esiResponse, prefetch, res);
+				return;
+			} else if (pageFetcher.shouldFetchPages(esiRequest, esiResponse)) {
+				finalResponse = pageFetcher.fetchSubPages(esiRequest, esiResponse, prefetch);
+			} else if (streamMergedPages && cursorFetcher.shouldFetchCursors(esiRequest, esiResponse)) {
+				var unstreamed = cursorFetcher.streamCursorPages(esiRequest, esiResponse, res);
+				if (unstreamed.isEmpty()) {
+					return;
+				}
+				finalResponse = unstreamed.get();
 			} else if (cursorFetcher.shouldFetchCursors(esiRequest, esiResponse)) {
 				finalResponse = cursorFetcher.fetchCursorPages(esiRequest, esiResponse);
 			} else {
@@ -71,10 +133,51 @@ public class EsiRelay {
 		}
 	}
 
-	private static void sendResponse(Response esiResponse, ServerResponse res) throws IOException {
+	/**
+	 * Relays the ESI response to the client.
+	 * Small bodies are sent directly, while larger bodies are streamed from the OkHttp source without being fully read
+	 * into memory first. For responses served from the cache, this means reading straight from the cache file.
+	 */
+	private void sendResponse(Response esiResponse, ServerResponse res) throws IOException {
 		res.status(esiResponse.code());
-		esiResponse.headers().forEach(pair -> res.header(pair.getFirst(), pair.getSecond()));
-		res.send(esiResponse.body().bytes());
+		esiResponse.headers().forEach(pair -> {
+			if (BLOCKED_RESPONSE_HEADERS.contains(pair.getFirst().toLowerCase())
+					|| pair.getFirst().equalsIgnoreCase(HeaderNames.VARY.defaultCase())) {
+				return;
+			}
+			res.header(pair.getFirst(), pair.getSecond());
+		});
+		var vary = esiResponse.headers(HeaderNames.VARY.lowerCase());
+		if (compressedPassthrough) {
+			vary = ContentEncoding.varyOnAcceptEncoding(vary);
+		}
+		if (!vary.isEmpty()) {
+			res.header(HeaderNames.VARY, vary.toArray(String[]::new));
+		}
+		var body = esiResponse.body();
+		var contentLength = body.contentLength();
+		if (esiResponse.request().method().equals("HEAD")
+				|| (contentLength >= 0 && contentLength <= RELAY_BUFFER_SIZE)) {
+			res.send(body.bytes());
+			return;
+		}
+		var buffer = new byte[RELAY_BUFFER_SIZE];
+		try (var in = body.byteStream()) {
+			var read = in.readNBytes(buffer, 0, buffer.length);
+			if (read < buffer.length) {
+				// The whole body fit in the buffer, so the length is known.
+				res.send(Arrays.copyOf(buffer, read));
+				return;
+			}
+			if (contentLength >= 0) {
+				res.header(HeaderNames.CONTENT_LENGTH, Long.toString(contentLength));
+			}
+			try (var out = res.outputStream()) {
+				do {
+					out.write(buffer, 0, read);
+				} while ((read = in.read(buffer)) != -1);
+			}
+		}
 	}
 
 	private Request.Builder createEsiRequest(ServerRequest proxyRequest) throws MalformedURLException {
@@ -92,11 +195,12 @@ public class EsiRelay {
 				esiBaseUrl + prologue.uriPath().toString() + prologue.query().toString());
 		var esiUrl = HttpUrl.get(url);
 		esiUrl = pageFetcher.removeInvalidPageQueryString(esiUrl);
+		esiUrl = pageFetcher.canonicalizePageQueryString(esiUrl);
 		esiUrl = cursorFetcher.removeInvalidCursorParameters(esiUrl);
 		return esiUrl;
 	}
 
-	private static void copyHeaders(ServerRequest proxyRequest, Request.Builder esiRequestBuilder, HttpUrl esiUrl) {
+	private void copyHeaders(ServerRequest proxyRequest, Request.Builder esiRequestBuilder, HttpUrl esiUrl) {
 		esiRequestBuilder.header("Host", esiUrl.host() + ":" + esiUrl.port());
 		proxyRequest.headers().forEach(header -> {
 			if (BLOCKED_HEADERS.contains(header.name().toLowerCase())) {
@@ -104,21 +208,24 @@ public class EsiRelay {
 			}
 			esiRequestBuilder.addHeader(header.name(), header.get());
 		});
+		// Setting Accept-Encoding explicitly stops OkHttp from decompressing the response.
+		if (compressedPassthrough
+				&& ContentEncoding.acceptsGzip(proxyRequest.headers().all(HeaderNames.ACCEPT_ENCODING, List::of))) {
+			esiRequestBuilder.header(HeaderNames.ACCEPT_ENCODING.lowerCase(), ContentEncoding.GZIP);
+		}
 	}
 
-	@SneakyThrows
-	private static RequestBody createRequestBody(ServerRequest proxyRequest) {
+	private RequestBody createRequestBody(ServerRequest proxyRequest) {
 		var content = proxyRequest.content();
 		if (content == null || !content.hasEntity()) {
 			return null;
 		}
-		byte[] bytes;
-		try (var in = proxyRequest.content().inputStream()) {
-			bytes = IOUtils.toByteArray(in);
-		}
-		if (bytes == null) {
-			return null;
-		}
-		return RequestBody.create(bytes);
+		var contentType = proxyRequest
+				.headers()
+				.first(HeaderNames.CONTENT_TYPE)
+				.map(MediaType::parse)
+				.orElse(null);
+		var contentLength = proxyRequest.headers().contentLength().orElse(-1L);
+		return new StreamingRequestBody(content.inputStream(), contentType, contentLength, maxRequestReplaySize);
 	}
 }
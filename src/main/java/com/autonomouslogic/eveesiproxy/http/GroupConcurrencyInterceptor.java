@@ -0,0 +1,79 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Limits the number of concurrent requests to the ESI, both in total and for each rate limit group.
+ * URLs without a group share one limit.
+ * <p>
+ * Calls run on virtual threads, so the number of threads doesn't limit anything by itself.
+ * Limiting each group separately means slow requests in one group don't use up the total capacity for the others.
+ * A group permit is acquired before the global one, so requests waiting on their group don't hold a global permit.
+ * Requests waiting on a stop, or served from the cache, never get this far, as the stops and caches are application
+ * interceptors. This runs after {@link RateLimitInterceptor} and {@link RateLimitBucketInterceptor}, so requests being
+ * paced don't hold a permit either.
+ * <p>
+ * Each {@link RequestPriority} has its own queue within a group, and gets a weighted share of the group's requests
+ * when several classes are waiting, both within the group and for the global limit. Within a class, the tenants set by
+ * {@link TenantQuotas} take turns, see {@link PriorityLimiter}.
+ */
+@Singleton
+@Log4j2
+public class GroupConcurrencyInterceptor implements Interceptor {
+	private static final String NO_GROUP = "";
+	private static final String NO_TENANT = "";
+
+	private final int maxConcurrentRequestsPerGroup = Configs.HTTP_MAX_CONCURRENT_REQUESTS_PER_GROUP.getRequired();
+	private final Map<RequestPriority, Integer> weights = RequestPriority.getWeights();
+
+	private final PriorityLimiter globalLimiter =
+			new PriorityLimiter(Configs.HTTP_MAX_CONCURRENT_REQUESTS.getRequired(), weights);
+	private final ConcurrentHashMap<String, PriorityLimiter> limiters = new ConcurrentHashMap<>();
+
+	@Inject
+	protected EsiUrlGroupResolver urlGroupResolver;
+
+	@Inject
+	protected GroupConcurrencyInterceptor() {}
+
+	@NotNull
+	@Override
+	@SneakyThrows
+	public Response intercept(@NotNull Chain chain) throws IOException {
+		var request = chain.request();
+		var group = urlGroupResolver.resolveGroup(request.url().encodedPath()).orElse(NO_GROUP);
+		var priority = RequestPriorityResolver.getPriority(request);
+		var tenant = Optional.ofNullable(request.tag(TenantQuotas.Tenant.class))
+				.map(TenantQuotas.Tenant::getId)
+				.orElse(NO_TENANT);
+		var limiter = limiters.computeIfAbsent(group, k -> new PriorityLimiter(maxConcurrentRequestsPerGroup, weights));
+		if (!limiter.tryAcquire(priority)) {
+			log.trace("Waiting for a concurrent request slot in group '{}' ({})", group, priority);
+			limiter.acquire(priority, tenant);
+		}
+		try {
+			if (!globalLimiter.tryAcquire(priority)) {
+				log.trace("Waiting for a concurrent request slot ({})", priority);
+				globalLimiter.acquire(priority, tenant);
+			}
+			try {
+				return chain.proceed(request);
+			} finally {
+				globalLimiter.release();
+			}
+		} finally {
+			limiter.release();
+		}
+	}
+}
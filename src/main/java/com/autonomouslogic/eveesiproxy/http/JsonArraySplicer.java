@@ -0,0 +1,104 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import lombok.NonNull;
+
+/**
+ * Merges multiple JSON arrays into a single array by splicing their elements together at the byte level.
+ * The elements themselves are never parsed, only the enclosing brackets are located and stripped.
+ */
+public class JsonArraySplicer {
+	private final OutputStream out;
+	private boolean started = false;
+	private boolean empty = true;
+
+	public JsonArraySplicer(@NonNull OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Appends the elements of the supplied JSON array to the output.
+	 * @param array the raw bytes of a JSON array
+	 * @return the number of bytes of elements appended, not including any separator
+	 * @throws IOException if the bytes do not look like a JSON array
+	 */
+	public int append(byte[] array) throws IOException {
+		start();
+		var start = firstNonWhitespace(array);
+		var end = lastNonWhitespace(array);
+		if (start < 0 || array[start] != '[' || array[end] != ']' || start == end) {
+			throw new IOException("Page is not a JSON array");
+		}
+		var from = firstNonWhitespace(array, start + 1, end);
+		if (from < 0) {
+			return 0;
+		}
+		var to = lastNonWhitespace(array, from, end);
+		appendElements(array, from, to - from + 1);
+		return to - from + 1;
+	}
+
+	/**
+	 * Appends elements previously extracted from a JSON array, without the enclosing brackets.
+	 * @param bytes the buffer containing the elements
+	 * @param offset the offset of the first element
+	 * @param length the length of the elements, or zero if there are none
+	 */
+	public void appendElements(byte[] bytes, int offset, int length) throws IOException {
+		start();
+		if (length == 0) {
+			return;
+		}
+		if (!empty) {
+			out.write(',');
+		}
+		out.write(bytes, offset, length);
+		empty = false;
+	}
+
+	/**
+	 * Writes the closing bracket of the merged array.
+	 */
+	public void finish() throws IOException {
+		start();
+		out.write(']');
+	}
+
+	private void start() throws IOException {
+		if (!started) {
+			out.write('[');
+			started = true;
+		}
+	}
+
+	private static int firstNonWhitespace(byte[] bytes) {
+		return firstNonWhitespace(bytes, 0, bytes.length);
+	}
+
+	private static int lastNonWhitespace(byte[] bytes) {
+		return lastNonWhitespace(bytes, 0, bytes.length);
+	}
+
+	private static int firstNonWhitespace(byte[] bytes, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (!isWhitespace(bytes[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int lastNonWhitespace(byte[] bytes, int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (!isWhitespace(bytes[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+}
@@ -0,0 +1,178 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.helidon.http.HeaderNames;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Okio;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * In-memory cache of complete responses, kept in front of OkHttp's disk cache.
+ * Hot public endpoints are served directly from memory without touching the disk.
+ * <p>
+ * The cache is bounded by the total size of the stored responses.
+ * Caffeine's W-TinyLFU admission policy is used, so a burst of one-off requests won't evict frequently used entries.
+ * <p>
+ * Only public <code>GET</code> responses with an explicit freshness lifetime are stored.
+ * Authed requests are never looked up or stored, and neither are responses marked <code>no-store</code> by
+ * {@link PrivateCacheInterceptor} or {@link AuthorizationNoStoreCacheInterceptor}.
+ * Entries are evicted once they expire, at which point requests fall through to the disk cache, which will revalidate
+ * them with the ESI.
+ * Responses are stored as they are read by the caller, so they're never buffered ahead of being sent on.
+ */
+@Singleton
+@Log4j2
+public class MemoryCacheInterceptor implements Interceptor {
+	/**
+	 * Responses larger than this fraction of the total size are not stored.
+	 */
+	private static final int MAX_ENTRY_FRACTION = 16;
+
+	private final long maxSize = Configs.HTTP_MEMORY_CACHE_MAX_SIZE.getRequired();
+	private final long maxEntrySize = maxSize / MAX_ENTRY_FRACTION;
+
+	private final Cache<String, Entry> cache = maxSize <= 0
+			? null
+			: Caffeine.newBuilder()
+					.maximumWeight(maxSize)
+					.weigher((String url, Entry entry) -> entry.weight())
+					.expireAfter(new EntryExpiry())
+					.build();
+
+	@Inject
+	protected MemoryCacheInterceptor() {}
+
+	@NotNull
+	@Override
+	public Response intercept(@NotNull Chain chain) throws IOException {
+		var request = chain.request();
+		if (cache == null
+				|| !request.method().equals("GET")
+				|| request.header(HeaderNames.AUTHORIZATION.lowerCase()) != null) {
+			return chain.proceed(request);
+		}
+		var key = CacheHeaders.getCacheKey(request);
+		var requestCacheControl = request.cacheControl();
+		if (!CacheHeaders.requiresRevalidation(request)
+				&& !requestCacheControl.noStore()
+				&& !CacheHeaders.isConditional(request)) {
+			var entry = cache.getIfPresent(key);
+			if (entry != null && entry.isFresh() && entry.matches(request)) {
+				log.trace("Serving {} from memory", request.url());
+				return entry.toResponse(request);
+			}
+		}
+		var response = chain.proceed(request);
+		if (requestCacheControl.noStore() || !CacheHeaders.isStorable(response)) {
+			return response;
+		}
+		var expiresAt = CacheHeaders.getExpiresAt(response);
+		if (expiresAt.isEmpty() || expiresAt.get() <= System.currentTimeMillis()) {
+			return response;
+		}
+		var body = response.body();
+		var source = new CacheWritingSource(
+				body.source(),
+				maxEntrySize,
+				bytes -> cache.put(key, createEntry(request, response, bytes, expiresAt.get())));
+		return response.newBuilder()
+				.body(ResponseBody.create(Okio.buffer(source), body.contentType(), body.contentLength()))
+				.build();
+	}
+
+	private static Entry createEntry(Request request, Response response, byte[] body, long expiresAt) {
+		var varyFields = CacheHeaders.getVaryFields(response);
+		var varyValues = CacheHeaders.getVaryValues(request, varyFields);
+		return new Entry(
+				response.protocol(),
+				response.code(),
+				response.message(),
+				response.headers(),
+				body,
+				response.body().contentType(),
+				varyFields,
+				varyValues,
+				response.sentRequestAtMillis(),
+				response.receivedResponseAtMillis(),
+				expiresAt);
+	}
+
+	@Value
+	private static class Entry {
+		Protocol protocol;
+		int code;
+		String message;
+		Headers headers;
+		byte[] body;
+		MediaType contentType;
+		List<String> varyFields;
+		List<List<String>> varyValues;
+		long sentRequestAtMillis;
+		long receivedResponseAtMillis;
+		long expiresAt;
+
+		boolean isFresh() {
+			return expiresAt > System.currentTimeMillis();
+		}
+
+		boolean matches(Request request) {
+			return CacheHeaders.varyMatches(request, varyFields, varyValues);
+		}
+
+		int weight() {
+			return (int) Math.min(Integer.MAX_VALUE, body.length + headers.byteCount());
+		}
+
+		Response toResponse(Request request) {
+			var cacheResponse = builder(request).build();
+			return builder(request)
+					.body(ResponseBody.create(body, contentType))
+					.cacheResponse(cacheResponse)
+					.build();
+		}
+
+		private Response.Builder builder(Request request) {
+			return new Response.Builder()
+					.request(request)
+					.protocol(protocol)
+					.code(code)
+					.message(message)
+					.headers(headers)
+					.sentRequestAtMillis(sentRequestAtMillis)
+					.receivedResponseAtMillis(receivedResponseAtMillis);
+		}
+	}
+
+	private static class EntryExpiry implements Expiry<String, Entry> {
+		@Override
+		public long expireAfterCreate(String url, Entry entry, long currentTime) {
+			return TimeUnit.MILLISECONDS.toNanos(Math.max(0, entry.getExpiresAt() - System.currentTimeMillis()));
+		}
+
+		@Override
+		public long expireAfterUpdate(String url, Entry entry, long currentTime, long currentDuration) {
+			return expireAfterCreate(url, entry, currentTime);
+		}
+
+		@Override
+		public long expireAfterRead(String url, Entry entry, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.helidon.http.HeaderNames;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Request;
+
+/**
+ * Caches the merged responses built by {@link PageFetcher}, so requests for all pages can be served without looking up
+ * and splicing each page again.
+ * <p>
+ * A merged response is only stored if every page was publicly cacheable, and is served until the first of the pages
+ * expires. Authed requests are never looked up or stored.
+ * <p>
+ * Expired entries are kept for a while longer along with the ETag and position of each page within the merged body,
+ * so they can be revalidated page by page.
+ * <p>
+ * The body is stored uncompressed, and shared by all clients regardless of <code>Accept-Encoding</code>.
+ */
+@Singleton
+@Log4j2
+public class MergedPageCache {
+	private static final String TOKEN = "token";
+
+	/**
+	 * How long to keep entries after they expire, for revalidation.
+	 */
+	private static final long REVALIDATION_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final long maxSize = Configs.HTTP_MERGED_PAGES_CACHE_MAX_SIZE.getRequired();
+
+	private final Cache<String, Entry> cache = maxSize <= 0
+			? null
+			: Caffeine.newBuilder()
+					.maximumWeight(maxSize)
+					.weigher((String url, Entry entry) -> entry.getBody().length)
+					.expireAfter(new EntryExpiry())
+					.build();
+
+	@Inject
+	protected MergedPageCache() {}
+
+	/**
+	 * Whether merged responses for the request may be looked up in or stored to the cache.
+	 */
+	public boolean isCacheable(Request esiRequest) {
+		if (cache == null
+				|| !esiRequest.method().equals("GET")
+				|| esiRequest.header(HeaderNames.AUTHORIZATION.lowerCase()) != null
+				|| esiRequest.url().queryParameter(TOKEN) != null) {
+			return false;
+		}
+		var cacheControl = esiRequest.cacheControl();
+		return !cacheControl.noCache() && !cacheControl.noStore() && !CacheHeaders.isConditional(esiRequest);
+	}
+
+	/**
+	 * @return the merged response for the request, if one is stored and still fresh
+	 */
+	public Optional<Entry> get(Request esiRequest) {
+		if (!isCacheable(esiRequest)) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable(cache.getIfPresent(esiRequest.url().toString()))
+				.filter(Entry::isFresh)
+				.filter(entry -> entry.matches(esiRequest));
+	}
+
+	/**
+	 * @return the expired merged response for the request, if one is stored with ETags for all of its pages
+	 */
+	public Optional<Entry> getExpired(Request esiRequest) {
+		if (!isCacheable(esiRequest)) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable(cache.getIfPresent(esiRequest.url().toString()))
+				.filter(entry -> !entry.isFresh())
+				.filter(entry -> entry.getEtags().stream().allMatch(Objects::nonNull))
+				.filter(entry -> entry.matches(esiRequest));
+	}
+
+	/**
+	 * Stores a merged response.
+	 * @param esiRequest the request for the first page
+	 * @param varyFields the request headers the pages vary by
+	 * @param body the merged body
+	 * @param etags the ETag of each page, null for pages without one
+	 * @param lengths the length of the elements from each page within the merged body
+	 * @param expiresAt when the first of the pages expires
+	 * @return the stored entry, or null if the merged response couldn't be stored
+	 */
+	public Entry put(
+			Request esiRequest,
+			List<String> varyFields,
+			byte[] body,
+			List<String> etags,
+			int[] lengths,
+			long expiresAt) {
+		if (!isCacheable(esiRequest) || expiresAt <= System.currentTimeMillis()) {
+			return null;
+		}
+		log.trace("Storing {} merged pages for {}", etags.size(), esiRequest.url());
+		var entry = new Entry(
+				body, etags, lengths, expiresAt, varyFields, CacheHeaders.getVaryValues(esiRequest, varyFields));
+		cache.put(esiRequest.url().toString(), entry);
+		return entry;
+	}
+
+	@Value
+	static class Entry {
+		byte[] body;
+		List<String> etags;
+		int[] lengths;
+		long expiresAt;
+		List<String> varyFields;
+		List<List<String>> varyValues;
+
+		/**
+		 * The merged body compressed with gzip, for clients accepting it.
+		 * This is only compressed once, when first requested.
+		 */
+		@Getter(lazy = true)
+		private final byte[] gzipBody = ContentEncoding.gzip(body);
+
+		int getPages() {
+			return etags.size();
+		}
+
+		boolean isFresh() {
+			return expiresAt > System.currentTimeMillis();
+		}
+
+		boolean matches(Request esiRequest) {
+			return CacheHeaders.varyMatches(esiRequest, varyFields, varyValues);
+		}
+
+		/**
+		 * Calculates where the elements from each page start within the merged body.
+		 * This follows the layout written by {@link JsonArraySplicer}: an opening bracket, then the elements of each
+		 * non-empty page separated by commas.
+		 */
+		int[] getOffsets() {
+			var offsets = new int[lengths.length];
+			var position = 1;
+			var first = true;
+			for (int i = 0; i < lengths.length; i++) {
+				if (lengths[i] > 0 && !first) {
+					position++;
+				}
+				offsets[i] = position;
+				position += lengths[i];
+				if (lengths[i] > 0) {
+					first = false;
+				}
+			}
+			return offsets;
+		}
+	}
+
+	private static class EntryExpiry implements Expiry<String, Entry> {
+		@Override
+		public long expireAfterCreate(String url, Entry entry, long currentTime) {
+			return TimeUnit.MILLISECONDS.toNanos(
+					Math.max(0, entry.getExpiresAt() + REVALIDATION_RETENTION_MILLIS - System.currentTimeMillis()));
+		}
+
+		@Override
+		public long expireAfterUpdate(String url, Entry entry, long currentTime, long currentDuration) {
+			return expireAfterCreate(url, entry, currentTime);
+		}
+
+		@Override
+		public long expireAfterRead(String url, Entry entry, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+	}
+}
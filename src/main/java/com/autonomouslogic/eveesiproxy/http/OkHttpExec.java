@@ -2,6 +2,7 @@ package com.autonomouslogic.eveesiproxy.http;
 
 import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
+import lombok.SneakyThrows;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
@@ -9,11 +10,29 @@ import org.jetbrains.annotations.NotNull;
 
 public class OkHttpExec {
 	/**
-	 * Executes the supplied call using OkHttp's async API and blocks the current thread to wait for it.
+	 * Executes the supplied call and waits for it.
+	 * <p>
+	 * On virtual threads, which Helidon handles requests on, the call is executed directly on the current thread.
+	 * Any waiting done by the interceptors, such as for rate limits, retries, and 420 or 429 stops, then only parks
+	 * the virtual thread.
+	 * Elsewhere, the call is executed using OkHttp's async API and the current thread blocks to wait for it.
 	 * @param call
 	 * @return
 	 */
+	@SneakyThrows
 	public static Response execute(Call call) {
+		if (!Thread.currentThread().isVirtual()) {
+			return executeAsync(call).join();
+		}
+		return call.execute();
+	}
+
+	/**
+	 * Executes the supplied call using OkHttp's async API.
+	 * @param call
+	 * @return a future completing with the response
+	 */
+	public static CompletableFuture<Response> executeAsync(Call call) {
 		var future = new CompletableFuture<Response>();
 		call.enqueue(new Callback() {
 			@Override
@@ -26,6 +45,6 @@ public class OkHttpExec {
 				future.complete(response);
 			}
 		});
-		return future.join();
+		return future;
 	}
 }
@@ -0,0 +1,53 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Getter;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Keeps an {@link AdaptiveConcurrencyLimit} for page fetches to each rate limit group.
+ * URLs without a rate limit group share a single limit.
+ */
+@Singleton
+public class PageConcurrencyLimiter {
+	public static final String UNGROUPED = "ungrouped";
+
+	@Inject
+	protected EsiUrlGroupResolver urlGroupResolver;
+
+	@Getter
+	private final boolean enabled = Configs.HTTP_ADAPTIVE_CONCURRENT_PAGES.getRequired();
+
+	@Getter
+	private final int maxLimit = Configs.HTTP_ADAPTIVE_MAX_CONCURRENT_PAGES.getRequired();
+
+	private final int initialLimit = Configs.HTTP_MAX_CONCURRENT_PAGES.getRequired();
+
+	private final Map<String, AdaptiveConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+	@Inject
+	protected PageConcurrencyLimiter() {}
+
+	public AdaptiveConcurrencyLimit getLimit(Request request) {
+		var group = urlGroupResolver.resolveGroup(request.url().encodedPath()).orElse(UNGROUPED);
+		return limits.computeIfAbsent(
+				group, k -> new AdaptiveConcurrencyLimit(Math.min(initialLimit, maxLimit), 1, maxLimit));
+	}
+
+	/**
+	 * @return the current limits, keyed by group
+	 */
+	public Map<String, AdaptiveConcurrencyLimit> getLimits() {
+		return new TreeMap<>(limits);
+	}
+
+	public static boolean isThrottled(Response response) {
+		return response.code() == 420 || response.code() == 429 || response.code() / 100 == 5;
+	}
+}
@@ -2,40 +2,119 @@ package com.autonomouslogic.eveesiproxy.http;
 
 import com.autonomouslogic.eveesiproxy.configs.Configs;
 import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.helidon.http.HeaderNames;
+import io.helidon.webserver.http.ServerResponse;
 import io.reactivex.rxjava3.core.Flowable;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 import lombok.SneakyThrows;
+import lombok.Value;
 import lombok.extern.log4j.Log4j2;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
-import org.jetbrains.annotations.NotNull;
 
 @Singleton
 @Log4j2
 public class PageFetcher {
+	private static final MediaType JSON = MediaType.get("application/json");
+
+	@Inject
+	protected PageConcurrencyLimiter concurrencyLimiter;
+
 	@Inject
-	protected OkHttpClient client;
+	protected RequestCoalescer requestCoalescer;
 
 	@Inject
-	protected ObjectMapper objectMapper;
+	protected MergedPageCache mergedPageCache;
 
 	private final int maxConcurrentPages = Configs.HTTP_MAX_CONCURRENT_PAGES.getRequired();
+	private final boolean prefetchPages = Configs.HTTP_PREFETCH_PAGES.getRequired();
+
+	/**
+	 * The last seen number of pages for each URL, used for prefetching.
+	 */
+	private final Cache<HttpUrl, Integer> knownPages =
+			CacheBuilder.newBuilder().maximumSize(10_000).build();
 
 	@Inject
 	protected PageFetcher() {}
 
+	/**
+	 * Speculatively requests pages 2 and onwards, based on the number of pages last seen for the same URL.
+	 * Pages are requested the same way as other pages, so they're coalesced and limited by the adaptive concurrency
+	 * limit.
+	 * The prefetch must be closed once the request is complete, which will discard any pages not used.
+	 * If the first page fails, it should be closed straight away, as the other pages would most likely fail too.
+	 */
+	public PagePrefetch<Integer> prefetchPages(Request esiRequest) {
+		var prefetch = new PagePrefetch<Integer>();
+		if (!prefetchPages
+				|| !esiRequest.method().equals("GET")
+				|| getRequestedPage(esiRequest).isPresent()) {
+			return prefetch;
+		}
+		var pages = knownPages.getIfPresent(esiRequest.url());
+		if (pages == null || pages <= 1) {
+			return prefetch;
+		}
+		var lastPage = Math.min(pages, 1 + maxConcurrentPages);
+		log.debug("Prefetching pages 2 to {} for {}", lastPage, esiRequest.url());
+		for (int page = 2; page <= lastPage; page++) {
+			prefetch.add(page, pageRequest(esiRequest, page), this::executePage);
+		}
+		return prefetch;
+	}
+
+	/**
+	 * Records the number of pages seen on a response for use when prefetching.
+	 */
+	public void learnPages(Request esiRequest, Response esiResponse) {
+		if (!prefetchPages
+				|| esiResponse.code() != 200
+				|| getRequestedPage(esiRequest).isPresent()) {
+			return;
+		}
+		knownPages.put(esiRequest.url(), getResponsePages(esiResponse));
+	}
+
+	/**
+	 * Returns a previously merged response for the request, if all of its pages are still fresh.
+	 * If the merged response has expired, the pages are revalidated and the response rebuilt from it.
+	 */
+	@SneakyThrows
+	public Optional<Response> getCachedPages(Request esiRequest) {
+		if (getRequestedPage(esiRequest).isPresent()) {
+			return Optional.empty();
+		}
+		var fresh = mergedPageCache.get(esiRequest);
+		if (fresh.isPresent()) {
+			var entry = fresh.get();
+			log.debug("Serving {} merged pages for {} from cache", entry.getPages(), esiRequest.url());
+			return Optional.of(mergedResponse(esiRequest, Protocol.HTTP_1_1, entry.getPages(), entry.getBody(), entry)
+					.header(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_HIT)
+					.build());
+		}
+		var expired = mergedPageCache.getExpired(esiRequest);
+		if (expired.isPresent()) {
+			return revalidatePages(esiRequest, expired.get());
+		}
+		return Optional.empty();
+	}
+
 	public boolean shouldFetchPages(Request esiRequest, Response esiResponse) {
 		if (esiResponse.code() != 200) {
 			return false;
@@ -46,12 +125,12 @@ public class PageFetcher {
 		return getResponsePages(esiResponse) > 1;
 	}
 
-	public Response fetchSubPages(Request esiRequest, Response esiResponse) {
+	public Response fetchSubPages(Request esiRequest, Response esiResponse, PagePrefetch<Integer> prefetch) {
 		log.debug(
 				"Request for {} did not contain a page query parameter, {} pages seen",
 				esiRequest.url(),
 				getResponsePages(esiResponse));
-		return fetch(esiRequest, esiResponse, getResponsePages(esiResponse));
+		return fetch(esiRequest, esiResponse, getResponsePages(esiResponse), prefetch);
 	}
 
 	private static Optional<Integer> getRequestedPage(Request esiRequest) {
@@ -71,88 +150,293 @@ public class PageFetcher {
 				.orElse(1);
 	}
 
+	/**
+	 * Fetches all pages and writes the merged array directly to the supplied server response as the pages arrive.
+	 * Pages are written in order, so at most {@link Configs#HTTP_MAX_CONCURRENT_PAGES} pages are held in memory at
+	 * once.
+	 * As the status and headers are sent before all the pages are fetched, any failures after the first page will
+	 * result in the response being aborted.
+	 */
 	@SneakyThrows
-	private Response fetch(Request firstRequest, Response firstResponse, int pages) {
-		final var pageResults = new ConcurrentHashMap<Integer, ArrayNode>(pages);
-		readResponse(firstResponse, 1, pageResults);
+	public void streamSubPages(
+			Request esiRequest, Response esiResponse, PagePrefetch<Integer> prefetch, ServerResponse res) {
+		var pages = getResponsePages(esiResponse);
+		log.debug("Request for {} did not contain a page query parameter, streaming {} pages", esiRequest.url(), pages);
+		res.status(200);
+		res.header(ProxyHeaderNames.X_EVE_ESI_PAGES_FETCHED, Integer.toString(pages));
+		res.header(HeaderNames.CONTENT_TYPE.lowerCase(), JSON.toString());
+		var gzip = ContentEncoding.isGzipRequested(esiRequest);
+		if (gzip) {
+			res.header(HeaderNames.CONTENT_ENCODING.lowerCase(), ContentEncoding.GZIP);
+		}
+		try (var out = gzip ? new GZIPOutputStream(res.outputStream(), true) : res.outputStream()) {
+			var splicer = new JsonArraySplicer(out);
+			var failedResponse = fetch(esiRequest, esiResponse, pages, prefetch, splicer, page -> out.flush());
+			if (failedResponse.isPresent()) {
+				try (var failed = failedResponse.get()) {
+					throw new IOException("Failed fetching pages for %s after response was started: %s"
+							.formatted(esiRequest.url(), failed.code()));
+				}
+			}
+			splicer.finish();
+		}
+	}
 
-		var failure = new AtomicBoolean(false);
-		var failedResponses = Flowable.range(2, pages - 1)
-				.takeWhile(i -> !failure.get())
-				.parallel(maxConcurrentPages, 1)
-				.runOn(VirtualThreads.SCHEDULER)
-				.flatMapIterable(page -> {
-					if (failure.get()) {
-						return List.of();
-					}
-					var nextResponse = nextRequest(firstRequest, page);
-					if (nextResponse.code() != 200) {
-						failure.set(true);
-						return List.of(nextResponse);
-					}
-					readResponse(nextResponse, page, pageResults);
-					return List.of();
-				})
-				.sequential()
-				.toList()
-				.blockingGet();
-
-		var failedResponse = getFailedResponse(failedResponses);
+	@SneakyThrows
+	private Response fetch(Request firstRequest, Response firstResponse, int pages, PagePrefetch<Integer> prefetch) {
+		var out = new ByteArrayOutputStream();
+		var splicer = new JsonArraySplicer(out);
+		var merged = new MergedPages();
+		var failedResponse = fetch(firstRequest, firstResponse, pages, prefetch, splicer, merged);
 		if (failedResponse.isPresent()) {
 			return failedResponse.get();
 		}
+		splicer.finish();
+
+		var body = out.toByteArray();
+		var entry = merged.store(firstRequest, CacheHeaders.getVaryFields(firstResponse), body);
+		return mergedResponse(firstRequest, firstResponse.protocol(), pages, body, entry)
+				.build();
+	}
+
+	/**
+	 * Revalidates an expired merged response by requesting every page with the ETag it had last time.
+	 * Pages which haven't changed are copied from the previous merged body without being read again, while pages
+	 * which have changed are spliced in their place.
+	 * @return the merged response, or empty if the pages couldn't be revalidated and must be fetched as normal
+	 */
+	private Optional<Response> revalidatePages(Request esiRequest, MergedPageCache.Entry entry) throws IOException {
+		var pages = entry.getPages();
+		log.debug("Revalidating {} merged pages for {}", pages, esiRequest.url());
+		var out = new ByteArrayOutputStream(entry.getBody().length);
+		var splicer = new JsonArraySplicer(out);
+		var merged = new MergedPages();
+		var offsets = entry.getOffsets();
+
+		var failure = new AtomicBoolean(false);
+		var results = Flowable.range(1, pages)
+				.concatMapEager(
+						page -> Flowable.fromCallable(() -> revalidatePage(esiRequest, page, entry, failure))
+								.subscribeOn(VirtualThreads.SCHEDULER),
+						getMaxConcurrency(),
+						1)
+				.takeUntil(result -> result.getFailedResponse() != null)
+				.blockingIterable(1);
+		var page = 0;
+		for (var result : results) {
+			if (result == PageResult.SKIPPED) {
+				return Optional.empty();
+			}
+			if (result.getFailedResponse() != null) {
+				try (var failed = result.getFailedResponse()) {
+					log.debug(
+							"Failed revalidating page {} of {} with status {}, fetching all pages",
+							page + 1,
+							esiRequest.url(),
+							failed.code());
+				}
+				return Optional.empty();
+			}
+			int length;
+			if (result.getBody() == null) {
+				length = entry.getLengths()[page];
+				splicer.appendElements(entry.getBody(), offsets[page], length);
+			} else {
+				length = splicer.append(result.getBody());
+			}
+			merged.pageWritten(new PageInfo(result.getExpiresAt(), result.getEtag(), length));
+			page++;
+		}
+		splicer.finish();
+
+		var body = out.toByteArray();
+		var updated = merged.store(esiRequest, entry.getVaryFields(), body);
+		return Optional.of(mergedResponse(esiRequest, Protocol.HTTP_1_1, pages, body, updated)
+				.build());
+	}
 
-		var result = mergePages(pages, pageResults);
+	/**
+	 * Requests a page conditionally.
+	 * @return a result without a body if the page hasn't changed
+	 */
+	private PageResult revalidatePage(Request esiRequest, int page, MergedPageCache.Entry entry, AtomicBoolean failure)
+			throws IOException {
+		if (failure.get()) {
+			return PageResult.SKIPPED;
+		}
+		var etag = entry.getEtags().get(page - 1);
+		var request = (page == 1 ? esiRequest : pageRequest(esiRequest, page))
+				.newBuilder()
+				.header(HeaderNames.IF_NONE_MATCH.lowerCase(), etag)
+				.build();
+		try (var response = executePage(request)) {
+			var notModified = response.code() == 304;
+			if ((!notModified && response.code() != 200) || (page == 1 && pagesChanged(response, entry))) {
+				failure.set(true);
+				return new PageResult(null, null, null, detach(response));
+			}
+			var expiresAt = CacheHeaders.isShareable(response)
+					? CacheHeaders.getExpiresAt(response).orElse(null)
+					: null;
+			var newEtag = Optional.ofNullable(response.header(HeaderNames.ETAG.lowerCase()))
+					.orElse(notModified ? etag : null);
+			return new PageResult(notModified ? null : readPage(response), expiresAt, newEtag, null);
+		}
+	}
 
-		return new Response.Builder()
+	/**
+	 * Checks whether the number of pages has changed since the merged response was stored.
+	 * Not modified responses may leave out the page count, in which case it's assumed to be the same.
+	 */
+	private static boolean pagesChanged(Response firstResponse, MergedPageCache.Entry entry) {
+		if (firstResponse.code() == 304 && firstResponse.header(ProxyHeaderNames.X_PAGES) == null) {
+			return false;
+		}
+		return getResponsePages(firstResponse) != entry.getPages();
+	}
+
+	/**
+	 * Builds a merged response, compressed if the request asks for it.
+	 * @param entry the cache entry for the merged body, if stored, whose compressed body is reused
+	 */
+	private static Response.Builder mergedResponse(
+			Request firstRequest, Protocol protocol, int pages, byte[] body, MergedPageCache.Entry entry) {
+		var builder = new Response.Builder()
 				.request(firstRequest)
-				.protocol(firstResponse.protocol())
+				.protocol(protocol)
 				.message("merged pages")
 				.code(200)
-				.header(ProxyHeaderNames.X_EVE_ESI_PAGES_FETCHED, Integer.toString(pages))
-				.body(ResponseBody.create(objectMapper.writeValueAsBytes(result), MediaType.get("application/json")))
-				.build();
+				.header(ProxyHeaderNames.X_EVE_ESI_PAGES_FETCHED, Integer.toString(pages));
+		if (!ContentEncoding.isGzipRequested(firstRequest)) {
+			return builder.body(ResponseBody.create(body, JSON));
+		}
+		var compressed = entry == null ? ContentEncoding.gzip(body) : entry.getGzipBody();
+		return builder.header(HeaderNames.CONTENT_ENCODING.lowerCase(), ContentEncoding.GZIP)
+				.body(ResponseBody.create(compressed, JSON));
 	}
 
-	private ArrayNode mergePages(int responsePages, Map<Integer, ArrayNode> pageResults) {
-		var result = objectMapper.createArrayNode();
-		for (int i = 0; i < responsePages; i++) {
-			result.addAll(pageResults.get(i));
+	/**
+	 * Fetches pages 2 to <code>pages</code> and appends them to the splicer in page order.
+	 * Pages are requested concurrently, but are only buffered until it's their turn to be written.
+	 * @return the first failed response, if any
+	 */
+	private Optional<Response> fetch(
+			Request firstRequest,
+			Response firstResponse,
+			int pages,
+			PagePrefetch<Integer> prefetch,
+			JsonArraySplicer splicer,
+			PageListener listener)
+			throws IOException {
+		var firstExpiresAt = getStorableExpiresAt(firstResponse);
+		var firstEtag = firstResponse.header(HeaderNames.ETAG.lowerCase());
+		var firstLength = splicer.append(readPage(firstResponse));
+		listener.pageWritten(new PageInfo(firstExpiresAt, firstEtag, firstLength));
+
+		var failure = new AtomicBoolean(false);
+		var results = Flowable.range(2, pages - 1)
+				.concatMapEager(
+						page -> Flowable.fromCallable(() -> fetchPage(firstRequest, page, prefetch, failure))
+								.subscribeOn(VirtualThreads.SCHEDULER),
+						getMaxConcurrency(),
+						1)
+				.takeUntil(result -> result.getFailedResponse() != null)
+				.blockingIterable(1);
+		for (var result : results) {
+			if (result == PageResult.SKIPPED) {
+				continue;
+			}
+			if (result.getFailedResponse() != null) {
+				return Optional.of(result.getFailedResponse());
+			}
+			var length = splicer.append(result.getBody());
+			listener.pageWritten(new PageInfo(result.getExpiresAt(), result.getEtag(), length));
 		}
-		return result;
+		return Optional.empty();
 	}
 
-	private static Optional<Response> getFailedResponse(List<Response> failedResponses) {
-		if (!failedResponses.isEmpty()) {
-			if (failedResponses.size() > 1) {
-				for (int i = 1; i < failedResponses.size(); i++) {
-					failedResponses.get(i).close();
-				}
+	private PageResult fetchPage(Request firstRequest, int page, PagePrefetch<Integer> prefetch, AtomicBoolean failure)
+			throws IOException {
+		if (failure.get()) {
+			return PageResult.SKIPPED;
+		}
+		try (var nextResponse = prefetch.take(page)
+				.flatMap(PagePrefetch::join)
+				.orElseGet(() -> executePage(pageRequest(firstRequest, page)))) {
+			if (nextResponse.code() != 200) {
+				failure.set(true);
+				return new PageResult(null, null, null, detach(nextResponse));
 			}
-			return Optional.of(failedResponses.getFirst());
+			var expiresAt = getStorableExpiresAt(nextResponse);
+			var etag = nextResponse.header(HeaderNames.ETAG.lowerCase());
+			return new PageResult(readPage(nextResponse), expiresAt, etag, null);
 		}
-		return Optional.empty();
 	}
 
-	@SneakyThrows
-	private @NotNull Response nextRequest(Request firstRequest, Integer page) {
-		var nextRequest = firstRequest
+	private int getMaxConcurrency() {
+		return concurrencyLimiter.isEnabled() ? concurrencyLimiter.getMaxLimit() : maxConcurrentPages;
+	}
+
+	/**
+	 * Executes a page request, within the adaptive concurrency limit if enabled.
+	 * Page requests are coalesced with identical requests in flight, including explicit page requests from clients.
+	 */
+	private Response executePage(Request request) {
+		if (!concurrencyLimiter.isEnabled()) {
+			return requestCoalescer.execute(request);
+		}
+		var limit = concurrencyLimiter.getLimit(request);
+		limit.acquire();
+		var start = System.nanoTime();
+		var throttled = true;
+		try {
+			var response = requestCoalescer.execute(request);
+			throttled = PageConcurrencyLimiter.isThrottled(response);
+			return response;
+		} finally {
+			// Cancelled prefetches fail without the ESI being at fault.
+			throttled &= !PagePrefetch.isCancelled(request);
+			limit.release(throttled, Duration.ofNanos(System.nanoTime() - start));
+		}
+	}
+
+	private static Request pageRequest(Request firstRequest, int page) {
+		return firstRequest
 				.newBuilder()
 				.url(firstRequest
 						.url()
 						.newBuilder()
 						.setQueryParameter("page", Integer.toString(page))
-						.build());
-		try (var nextResponse = OkHttpExec.execute(client.newCall(nextRequest.build()))) {
-			return nextResponse;
+						.build())
+				.build();
+	}
+
+	/**
+	 * Reads the body of the supplied response into memory, so it can be returned after the original is closed.
+	 */
+	private static Response detach(Response response) throws IOException {
+		var body = response.body();
+		return response.newBuilder()
+				.body(ResponseBody.create(body.bytes(), body.contentType()))
+				.build();
+	}
+
+	/**
+	 * @return when the page expires, or null if it can't be stored in a shared cache
+	 */
+	private static Long getStorableExpiresAt(Response response) {
+		if (!CacheHeaders.isStorable(response)) {
+			return null;
 		}
+		return CacheHeaders.getExpiresAt(response).orElse(null);
 	}
 
-	@SneakyThrows
-	private void readResponse(Response response, int page, Map<Integer, ArrayNode> pageResults) {
-		try (var in = response.body().byteStream()) {
-			var array = (ArrayNode) objectMapper.readTree(in);
-			pageResults.put(page - 1, array);
+	/**
+	 * Reads the body of a page, decompressing it if it was relayed compressed.
+	 */
+	private static byte[] readPage(Response response) throws IOException {
+		try (var body = response.body()) {
+			return ContentEncoding.decode(response.headers(), body.bytes());
 		}
 	}
 
@@ -163,4 +447,83 @@ public class PageFetcher {
 		}
 		return esiUrl;
 	}
+
+	/**
+	 * Moves the page query parameter to the end of the URL, matching the URLs used when fetching pages.
+	 * This way, explicit page requests share cache entries and in-flight requests with merged page fetches.
+	 */
+	public HttpUrl canonicalizePageQueryString(HttpUrl esiUrl) {
+		var page = esiUrl.queryParameter("page");
+		if (page == null) {
+			return esiUrl;
+		}
+		return esiUrl.newBuilder()
+				.removeAllQueryParameters("page")
+				.addQueryParameter("page", page)
+				.build();
+	}
+
+	private interface PageListener {
+		void pageWritten(PageInfo page) throws IOException;
+	}
+
+	/**
+	 * Details of a page written to a merged response.
+	 */
+	@Value
+	private static class PageInfo {
+		/**
+		 * When the page expires, or null if it can't be stored in a shared cache.
+		 */
+		Long expiresAt;
+
+		String etag;
+
+		/**
+		 * The length of the page's elements within the merged body.
+		 */
+		int length;
+	}
+
+	/**
+	 * Collects the details needed to store a merged response in the {@link MergedPageCache}.
+	 */
+	private class MergedPages implements PageListener {
+		private final List<String> etags = new ArrayList<>();
+		private final List<Integer> lengths = new ArrayList<>();
+		private boolean storable = true;
+		private long expiresAt = Long.MAX_VALUE;
+
+		@Override
+		public void pageWritten(PageInfo page) {
+			etags.add(page.getEtag());
+			lengths.add(page.getLength());
+			if (page.getExpiresAt() == null) {
+				storable = false;
+			} else {
+				expiresAt = Math.min(expiresAt, page.getExpiresAt());
+			}
+		}
+
+		/**
+		 * @return the stored entry, or null if the merged response couldn't be stored
+		 */
+		MergedPageCache.Entry store(Request esiRequest, List<String> varyFields, byte[] body) {
+			if (!storable) {
+				return null;
+			}
+			var lengthArray = lengths.stream().mapToInt(Integer::intValue).toArray();
+			return mergedPageCache.put(esiRequest, varyFields, body, etags, lengthArray, expiresAt);
+		}
+	}
+
+	@Value
+	private static class PageResult {
+		static final PageResult SKIPPED = new PageResult(null, null, null, null);
+
+		byte[] body;
+		Long expiresAt;
+		String etag;
+		Response failedResponse;
+	}
 }
@@ -0,0 +1,116 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Page requests issued speculatively, keyed by page number or cursor.
+ * Pages which turn out not to be needed are cancelled and discarded when this is closed.
+ * <p>
+ * Requests are tagged, so {@link PagePrefetchInterceptor} can cancel them wherever they are in the client, including
+ * while they're waiting for rate limits. Pages cancelled before they're sent never reach the ESI.
+ */
+@Log4j2
+public class PagePrefetch<K> implements AutoCloseable {
+	private final Map<K, PrefetchedPage> pages = new ConcurrentHashMap<>();
+
+	/**
+	 * Executes the page request in the background.
+	 */
+	void add(K page, Request request, Function<Request, Response> execute) {
+		var cancellation = new Cancellation();
+		var tagged = request.newBuilder().tag(Cancellation.class, cancellation).build();
+		var response = CompletableFuture.supplyAsync(() -> execute.apply(tagged), VirtualThreads.EXECUTOR);
+		pages.put(page, new PrefetchedPage(cancellation, response));
+	}
+
+	/**
+	 * Takes ownership of a prefetched page, if it was prefetched.
+	 */
+	Optional<CompletableFuture<Response>> take(K page) {
+		return Optional.ofNullable(pages.remove(page)).map(PrefetchedPage::getResponse);
+	}
+
+	/**
+	 * Waits for a prefetched page.
+	 * @return the response, or empty if the prefetch failed, in which case the page should be requested again
+	 */
+	static Optional<Response> join(CompletableFuture<Response> response) {
+		try {
+			return Optional.of(response.join());
+		} catch (CompletionException e) {
+			log.debug("Prefetching page failed, requesting it again", e.getCause());
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @return the number of prefetched pages not yet taken
+	 */
+	int size() {
+		return pages.size();
+	}
+
+	/**
+	 * @return whether the request is for a prefetched page which has since been cancelled
+	 */
+	static boolean isCancelled(Request request) {
+		var cancellation = request.tag(Cancellation.class);
+		return cancellation != null && cancellation.isCancelled();
+	}
+
+	@Override
+	public void close() {
+		for (var page : pages.keySet()) {
+			var prefetched = pages.remove(page);
+			if (prefetched != null) {
+				prefetched.getCancellation().cancel();
+				prefetched.getResponse().thenAccept(Response::close);
+			}
+		}
+	}
+
+	@Value
+	private static class PrefetchedPage {
+		Cancellation cancellation;
+		CompletableFuture<Response> response;
+	}
+
+	/**
+	 * Cancels the calls made for a prefetched page, including any made after it was cancelled.
+	 */
+	static class Cancellation {
+		private final List<Call> calls = new ArrayList<>();
+		private boolean cancelled = false;
+
+		synchronized void register(Call call) {
+			if (cancelled) {
+				call.cancel();
+			} else {
+				calls.add(call);
+			}
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			calls.forEach(Call::cancel);
+			calls.clear();
+		}
+
+		synchronized boolean isCancelled() {
+			return cancelled;
+		}
+	}
+}
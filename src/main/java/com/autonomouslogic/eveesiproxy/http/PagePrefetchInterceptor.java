@@ -0,0 +1,28 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Registers the calls made for prefetched pages, so they can be cancelled by the {@link PagePrefetch} they belong to.
+ * This is done before any of the other interceptors, so pages cancelled while waiting for rate limits aren't sent.
+ */
+@Singleton
+public class PagePrefetchInterceptor implements Interceptor {
+	@Inject
+	protected PagePrefetchInterceptor() {}
+
+	@NotNull
+	@Override
+	public Response intercept(@NotNull Chain chain) throws IOException {
+		var cancellation = chain.request().tag(PagePrefetch.Cancellation.class);
+		if (cancellation != null) {
+			cancellation.register(chain.call());
+		}
+		return chain.proceed(chain.request());
+	}
+}
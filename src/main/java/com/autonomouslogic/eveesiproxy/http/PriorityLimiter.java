@@ -0,0 +1,208 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Limits the number of concurrent requests, with a separate queue for each {@link RequestPriority}.
+ * <p>
+ * When a permit is freed and requests are waiting, the next request is picked from the queues by stride scheduling,
+ * so each class gets a share of the permits in proportion to its weight. Classes with nothing waiting don't build up
+ * credit for later.
+ * <p>
+ * Within a class, each tenant has its own queue, and the tenants with requests waiting take turns, so one tenant
+ * queueing many requests doesn't hold back the others. Each tenant's requests are let through in the order they
+ * arrived.
+ */
+public class PriorityLimiter {
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<RequestPriority, TenantQueues> queues = new EnumMap<>(RequestPriority.class);
+	private final Map<RequestPriority, Double> strides = new EnumMap<>(RequestPriority.class);
+	private final Map<RequestPriority, Double> passes = new EnumMap<>(RequestPriority.class);
+
+	private int available;
+	private double virtualTime = 0;
+
+	public PriorityLimiter(int permits, Map<RequestPriority, Integer> weights) {
+		if (permits <= 0) {
+			throw new IllegalArgumentException("Permits must be positive: " + permits);
+		}
+		available = permits;
+		for (var priority : RequestPriority.values()) {
+			var weight = weights.getOrDefault(priority, 1);
+			if (weight <= 0) {
+				throw new IllegalArgumentException("Weight for " + priority + " must be positive: " + weight);
+			}
+			queues.put(priority, new TenantQueues());
+			strides.put(priority, 1.0 / weight);
+			passes.put(priority, 0.0);
+		}
+	}
+
+	/**
+	 * Blocks until a permit is available for the supplied class and tenant.
+	 */
+	public void acquire(RequestPriority priority, String tenant) throws InterruptedException {
+		lock.lock();
+		try {
+			var queue = queues.get(priority);
+			if (queue.isEmpty()) {
+				passes.put(priority, Math.max(passes.get(priority), virtualTime));
+			}
+			if (available > 0 && !hasWaiters()) {
+				grant(priority);
+				return;
+			}
+			var waiter = new Waiter(lock.newCondition());
+			queue.add(tenant, waiter);
+			try {
+				while (!waiter.granted) {
+					waiter.condition.await();
+				}
+			} catch (InterruptedException e) {
+				if (waiter.granted) {
+					available++;
+					dispatch();
+				} else {
+					queue.remove(tenant, waiter);
+				}
+				throw e;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acquires a permit if one is available right away.
+	 */
+	public boolean tryAcquire(RequestPriority priority) {
+		lock.lock();
+		try {
+			if (available <= 0 || hasWaiters()) {
+				return false;
+			}
+			passes.put(priority, Math.max(passes.get(priority), virtualTime));
+			grant(priority);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void release() {
+		lock.lock();
+		try {
+			available++;
+			dispatch();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests waiting in the supplied class
+	 */
+	public int getWaiting(RequestPriority priority) {
+		lock.lock();
+		try {
+			return queues.get(priority).size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void dispatch() {
+		while (available > 0) {
+			RequestPriority next = null;
+			for (var entry : queues.entrySet()) {
+				if (entry.getValue().isEmpty()) {
+					continue;
+				}
+				if (next == null || passes.get(entry.getKey()) < passes.get(next)) {
+					next = entry.getKey();
+				}
+			}
+			if (next == null) {
+				return;
+			}
+			var waiter = queues.get(next).poll();
+			grant(next);
+			waiter.granted = true;
+			waiter.condition.signal();
+		}
+	}
+
+	private void grant(RequestPriority priority) {
+		available--;
+		var pass = passes.get(priority);
+		virtualTime = pass;
+		passes.put(priority, pass + strides.get(priority));
+	}
+
+	private boolean hasWaiters() {
+		for (var queue : queues.values()) {
+			if (!queue.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queues for each tenant within a class, taking turns between the tenants.
+	 */
+	private static class TenantQueues {
+		private final Map<String, ArrayDeque<Waiter>> waiters = new HashMap<>();
+		private final ArrayDeque<String> turns = new ArrayDeque<>();
+		private int size = 0;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void add(String tenant, Waiter waiter) {
+			waiters.computeIfAbsent(tenant, k -> {
+						turns.add(tenant);
+						return new ArrayDeque<>();
+					})
+					.add(waiter);
+			size++;
+		}
+
+		Waiter poll() {
+			var tenant = turns.poll();
+			var queue = waiters.get(tenant);
+			var waiter = queue.poll();
+			if (queue.isEmpty()) {
+				waiters.remove(tenant);
+			} else {
+				turns.add(tenant);
+			}
+			size--;
+			return waiter;
+		}
+
+		void remove(String tenant, Waiter waiter) {
+			var queue = waiters.get(tenant);
+			if (queue != null && queue.remove(waiter)) {
+				size--;
+				if (queue.isEmpty()) {
+					waiters.remove(tenant);
+					turns.remove(tenant);
+				}
+			}
+		}
+	}
+
+	@RequiredArgsConstructor
+	private static class Waiter {
+		private final Condition condition;
+		private boolean granted = false;
+	}
+}
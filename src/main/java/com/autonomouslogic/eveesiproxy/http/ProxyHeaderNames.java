@@ -3,6 +3,7 @@ package com.autonomouslogic.eveesiproxy.http;
 public class ProxyHeaderNames {
 	public static final String X_EVE_ESI_PROXY_CACHE_STATUS = "x-eve-esi-proxy-cache-status";
 	public static final String X_EVE_ESI_PROXY_VERSION = "x-eve-esi-proxy-version";
+	public static final String X_EVE_ESI_PROXY_PRIORITY = "x-eve-esi-proxy-priority";
 	public static final String X_EVE_ESI_PAGES_FETCHED = "x-eve-esi-proxy-pages-fetched";
 	public static final String X_PAGES = "x-pages";
 }
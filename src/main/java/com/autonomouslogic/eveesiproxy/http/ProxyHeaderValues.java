@@ -3,4 +3,7 @@ package com.autonomouslogic.eveesiproxy.http;
 public class ProxyHeaderValues {
 	public static final String CACHE_STATUS_HIT = "hit";
 	public static final String CACHE_STATUS_MISS = "miss";
+	public static final String CACHE_STATUS_STALE = "stale";
+	public static final String PRIORITY_INTERACTIVE = "interactive";
+	public static final String PRIORITY_BULK = "bulk";
 }
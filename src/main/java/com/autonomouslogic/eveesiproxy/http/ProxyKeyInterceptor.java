@@ -1,14 +1,17 @@
 package com.autonomouslogic.eveesiproxy.http;
 
 import com.autonomouslogic.eveesiproxy.oauth.AuthManager;
+import com.autonomouslogic.eveesiproxy.oauth.AuthedCharacter;
 import com.autonomouslogic.eveesiproxy.oauth.EsiAuthHelper;
 import dagger.Lazy;
 import io.helidon.http.HeaderNames;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import java.io.IOException;
+import java.util.Optional;
 import lombok.extern.log4j.Log4j2;
 import okhttp3.Interceptor;
+import okhttp3.Request;
 import okhttp3.Response;
 import org.jetbrains.annotations.NotNull;
 
@@ -18,6 +21,8 @@ import org.jetbrains.annotations.NotNull;
 @Singleton
 @Log4j2
 public class ProxyKeyInterceptor implements Interceptor {
+	private static final String TOKEN = "token";
+
 	@Inject
 	protected Lazy<AuthManager> authManager;
 
@@ -31,20 +36,48 @@ public class ProxyKeyInterceptor implements Interceptor {
 	@Override
 	public Response intercept(@NotNull Chain chain) throws IOException {
 		var req = chain.request();
+		var character = getBearerToken(req).flatMap(this::getCharacterForProxyKey);
+		if (character.isPresent()) {
+			log.trace("Found proxy key, requesting ESI token");
+			var accessToken =
+					esiAuthHelper.get().getAccessToken(character.get()).getAccessToken();
+			req = req.newBuilder()
+					.removeHeader(HeaderNames.AUTHORIZATION.lowerCase())
+					.addHeader(HeaderNames.AUTHORIZATION.lowerCase(), "Bearer " + accessToken)
+					.tag(AuthedCharacter.class, character.get())
+					.build();
+		}
+		return chain.proceed(req);
+	}
+
+	/**
+	 * Returns the bearer token supplied on the request, if any.
+	 */
+	public static Optional<String> getBearerToken(Request req) {
 		var authorization = req.header(HeaderNames.AUTHORIZATION.lowerCase());
 		if (authorization != null && authorization.toLowerCase().startsWith("bearer ")) {
-			var token = authorization.substring(7);
-			var character = authManager.get().getCharacterForProxyKey(token);
-			if (character.isPresent()) {
-				log.trace("Found proxy key, requesting ESI token");
-				var accessToken =
-						esiAuthHelper.get().getAccessToken(character.get()).getAccessToken();
-				req = req.newBuilder()
-						.removeHeader(HeaderNames.AUTHORIZATION.lowerCase())
-						.addHeader(HeaderNames.AUTHORIZATION.lowerCase(), "Bearer " + accessToken)
-						.build();
-			}
+			return Optional.of(authorization.substring(7));
 		}
-		return chain.proceed(req);
+		return Optional.empty();
+	}
+
+	/**
+	 * Returns who the request is authorized as, from either the <code>Authorization</code> header or the
+	 * <code>token</code> query parameter.
+	 * Proxy keys resolve to their character, so different ways of authenticating as the same character are treated
+	 * as the same identity. Other tokens are returned as-is.
+	 */
+	public Optional<String> getIdentity(Request req) {
+		var token = getBearerToken(req).or(() -> Optional.ofNullable(req.url().queryParameter(TOKEN)));
+		return token.flatMap(this::getCharacterForProxyKey)
+				.map(character -> "character:" + character.getCharacterId())
+				.or(() -> token);
+	}
+
+	/**
+	 * Resolves the character for a proxy key, if the token is one.
+	 */
+	public Optional<AuthedCharacter> getCharacterForProxyKey(String token) {
+		return authManager.get().getCharacterForProxyKey(token);
 	}
 }
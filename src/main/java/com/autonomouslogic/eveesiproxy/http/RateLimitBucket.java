@@ -0,0 +1,150 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import lombok.SneakyThrows;
+import lombok.Value;
+
+/**
+ * Tracks the tokens available in an ESI rate limit group, based on the <code>x-ratelimit-*</code> headers on
+ * responses, so requests can be held back before the group runs out rather than after a 429.
+ * <p>
+ * ESI uses a floating window: tokens spent by a request are returned once the window has passed since it was made.
+ * The remaining count reported on the latest response is taken as the baseline, and the tokens spent by the requests
+ * seen since are added back as they leave the window.
+ * Tokens for requests in flight are reserved up front, using the cost of the latest request as an estimate.
+ * <p>
+ * Tokens spent elsewhere, or before the proxy started, can't be tracked. If the known requests won't free up enough
+ * tokens, requests are let through at the average rate the group allows, so the ESI can report the actual state.
+ *
+ * @see <a href="https://developers.eveonline.com/docs/services/esi/rate-limiting/">Rate Limiting</a>
+ */
+public class RateLimitBucket {
+	/**
+	 * The cost of a <code>2xx</code> response, used until the actual cost of a request has been seen.
+	 */
+	static final long DEFAULT_COST = 2;
+
+	private final ArrayDeque<Usage> usages = new ArrayDeque<>();
+
+	private long limit;
+	private long windowMillis;
+	private long remaining;
+	private long updatedAt;
+	private long reserved = 0;
+	private long cost = DEFAULT_COST;
+
+	public RateLimitBucket(long limit, Duration window, long now) {
+		setLimit(limit, window);
+		this.remaining = limit;
+		this.updatedAt = now;
+	}
+
+	/**
+	 * Blocks until there are enough tokens for a request.
+	 * @return the number of tokens reserved, to be passed to {@link #complete(long, Long, Long, long)}
+	 */
+	@SneakyThrows
+	public long acquire() {
+		while (true) {
+			long cost;
+			long wait;
+			synchronized (this) {
+				cost = this.cost;
+				wait = tryReserve(cost, System.currentTimeMillis());
+			}
+			if (wait <= 0) {
+				return cost;
+			}
+			Thread.sleep(wait);
+		}
+	}
+
+	/**
+	 * Reserves tokens for a request if they're available.
+	 * @return zero if the tokens were reserved, otherwise how long to wait in milliseconds before trying again
+	 */
+	synchronized long tryReserve(long cost, long now) {
+		var deficit = cost + reserved - getAvailable(now);
+		if (deficit <= 0) {
+			reserved += cost;
+			return 0;
+		}
+		var returned = 0L;
+		for (var usage : usages) {
+			var returnsAt = usage.getTime() + windowMillis;
+			if (returnsAt <= now) {
+				continue;
+			}
+			returned += usage.getTokens();
+			if (returned >= deficit) {
+				return returnsAt - now;
+			}
+		}
+		var probeAt = updatedAt + (long) Math.ceil((double) deficit * windowMillis / limit);
+		if (probeAt <= now) {
+			reserved += cost;
+			return 0;
+		}
+		return probeAt - now;
+	}
+
+	/**
+	 * Records the outcome of a request.
+	 * @param reserved the tokens reserved for the request
+	 * @param remaining the remaining tokens reported on the response, if any
+	 * @param used the tokens spent by the request, if reported
+	 */
+	public synchronized void complete(long reserved, Long remaining, Long used, long now) {
+		this.reserved = Math.max(0, this.reserved - reserved);
+		if (used != null) {
+			if (used > 0) {
+				usages.add(new Usage(now, used));
+			}
+			cost = Math.max(1, used);
+		}
+		if (remaining != null) {
+			this.remaining = remaining;
+			updatedAt = now;
+			while (!usages.isEmpty() && usages.peek().getTime() + windowMillis <= updatedAt) {
+				usages.poll();
+			}
+		} else if (used != null) {
+			this.remaining -= used;
+		}
+	}
+
+	/**
+	 * Releases tokens reserved for a request which never reached the ESI.
+	 */
+	public synchronized void cancel(long reserved) {
+		this.reserved = Math.max(0, this.reserved - reserved);
+	}
+
+	public synchronized void setLimit(long limit, Duration window) {
+		if (limit <= 0 || window.isNegative() || window.isZero()) {
+			throw new IllegalArgumentException("Invalid rate limit: " + limit + "/" + window);
+		}
+		this.limit = limit;
+		this.windowMillis = window.toMillis();
+	}
+
+	/**
+	 * @return the tokens available at the supplied time, ignoring reservations
+	 */
+	synchronized long getAvailable(long now) {
+		var available = remaining;
+		for (var usage : usages) {
+			if (usage.getTime() + windowMillis <= now) {
+				available += usage.getTokens();
+			}
+		}
+		return Math.min(limit, available);
+	}
+
+	@Value
+	private static class Usage {
+		long time;
+		long tokens;
+	}
+}
@@ -0,0 +1,145 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Paces requests to each ESI rate limit group so the group's tokens aren't exhausted, rather than waiting for a 429.
+ * Authed requests are tracked per character, see {@link RateLimitKeyResolver}.
+ * A {@link RateLimitBucket} is created for a group once a response reports its limit, and is updated from the
+ * <code>x-ratelimit-remaining</code> and <code>x-ratelimit-used</code> headers on every response.
+ * Requests to groups not seen yet, and URLs without a group, are not affected.
+ * <p>
+ * This is a network interceptor, so responses served from the cache don't wait for tokens.
+ * 429 responses are still handled by {@link RateLimitGroupStopInterceptor}.
+ * @see <a href="https://developers.eveonline.com/docs/services/esi/rate-limiting/">Rate Limiting</a>
+ */
+@Singleton
+@Log4j2
+public class RateLimitBucketInterceptor implements Interceptor {
+	public static final String X_RATELIMIT_LIMIT = "x-ratelimit-limit";
+	public static final String X_RATELIMIT_REMAINING = "x-ratelimit-remaining";
+	public static final String X_RATELIMIT_USED = "x-ratelimit-used";
+
+	private static final Pattern LIMIT_PATTERN = Pattern.compile("^\\s*(\\d+)\\s*/\\s*(\\d+)\\s*([smhd])\\s*$");
+
+	private final boolean enabled = Configs.ESI_RATE_LIMIT_GROUP_PACING.getRequired();
+
+	private final ConcurrentHashMap<String, RateLimitBucket> buckets = new ConcurrentHashMap<>();
+
+	@Inject
+	protected EsiUrlGroupResolver urlGroupResolver;
+
+	@Inject
+	protected RateLimitKeyResolver rateLimitKeyResolver;
+
+	@Inject
+	protected RateLimitBucketInterceptor() {}
+
+	@NotNull
+	@Override
+	public Response intercept(@NotNull Chain chain) throws IOException {
+		var request = chain.request();
+		if (!enabled) {
+			return chain.proceed(request);
+		}
+		var key = urlGroupResolver
+				.resolveGroup(request.url().encodedPath())
+				.map(group -> rateLimitKeyResolver.getKey(group, request));
+		var bucket = key.map(buckets::get).orElse(null);
+		var reserved = 0L;
+		if (bucket != null) {
+			var start = System.currentTimeMillis();
+			reserved = bucket.acquire();
+			var waited = System.currentTimeMillis() - start;
+			if (waited > 0) {
+				log.debug("Waited {} ms for rate limit tokens in group '{}'", waited, key.get());
+			}
+		}
+		Response response;
+		try {
+			response = chain.proceed(request);
+		} catch (IOException | RuntimeException e) {
+			if (bucket != null) {
+				bucket.cancel(reserved);
+			}
+			throw e;
+		}
+		var responseKey = Optional.ofNullable(response.header(RateLimitGroupStopInterceptor.X_RATELIMIT_GROUP))
+				.map(group -> rateLimitKeyResolver.getKey(group, request))
+				.or(() -> key);
+		var now = System.currentTimeMillis();
+		var responseBucket =
+				responseKey.map(k -> updateBucket(k, response, now)).orElse(null);
+		var remaining = parseTokens(response.header(X_RATELIMIT_REMAINING));
+		var used = parseTokens(response.header(X_RATELIMIT_USED));
+		if (bucket != null && bucket != responseBucket) {
+			bucket.cancel(reserved);
+			reserved = 0;
+		}
+		if (responseBucket != null) {
+			responseBucket.complete(reserved, remaining, used, now);
+		}
+		return response;
+	}
+
+	/**
+	 * Creates or updates the bucket for a group, if the response reports its limit.
+	 * @return the bucket for the group, if known
+	 */
+	private RateLimitBucket updateBucket(String key, Response response, long now) {
+		var limitHeader = response.header(X_RATELIMIT_LIMIT);
+		if (limitHeader == null) {
+			return buckets.get(key);
+		}
+		var matcher = LIMIT_PATTERN.matcher(limitHeader);
+		if (!matcher.matches()) {
+			log.warn("Unable to parse rate limit for group '{}': {}", key, limitHeader);
+			return buckets.get(key);
+		}
+		var limit = Long.parseLong(matcher.group(1));
+		var window = parseWindow(Long.parseLong(matcher.group(2)), matcher.group(3));
+		if (limit <= 0 || window.isZero()) {
+			return buckets.get(key);
+		}
+		return buckets.compute(key, (k, bucket) -> {
+			if (bucket == null) {
+				log.debug("Tracking rate limit for group '{}': {} tokens per {}", key, limit, window);
+				return new RateLimitBucket(limit, window, now);
+			}
+			bucket.setLimit(limit, window);
+			return bucket;
+		});
+	}
+
+	private static Duration parseWindow(long amount, String unit) {
+		return switch (unit) {
+			case "s" -> Duration.ofSeconds(amount);
+			case "m" -> Duration.ofMinutes(amount);
+			case "h" -> Duration.ofHours(amount);
+			case "d" -> Duration.ofDays(amount);
+			default -> throw new IllegalArgumentException("Unknown time unit: " + unit);
+		};
+	}
+
+	private static Long parseTokens(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
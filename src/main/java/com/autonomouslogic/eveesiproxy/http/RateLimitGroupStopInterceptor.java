@@ -1,5 +1,6 @@
 package com.autonomouslogic.eveesiproxy.http;
 
+import com.autonomouslogic.eveesiproxy.configs.Configs;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import java.io.IOException;
@@ -7,7 +8,6 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
@@ -18,6 +18,7 @@ import org.jetbrains.annotations.NotNull;
 /**
  * Handles per-group rate limiting when 429 responses are received.
  * When a 429 response includes an x-ratelimit-group header, only requests to that specific group are stopped.
+ * For authed requests, only requests made as the same character are stopped, see {@link RateLimitKeyResolver}.
  * URLs without a rate limit group are not affected by rate limiting.
  * @see <a href="https://developers.eveonline.com/docs/services/esi/rate-limiting/">Rate Limiting</a>
  * @see <a href="https://developers.eveonline.com/blog/hold-your-horses-introducing-rate-limiting-to-esi">Hold your horses: introducing rate limiting to ESI</a>
@@ -30,11 +31,16 @@ public class RateLimitGroupStopInterceptor implements Interceptor {
 	public static final String RETRY_AFTER = "Retry-After";
 	public static final String X_RATELIMIT_GROUP = "x-ratelimit-group";
 
-	private final ConcurrentHashMap<String, AtomicBoolean> groupStops = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, StopGate> groupStops = new ConcurrentHashMap<>();
+
+	private final Duration releaseInterval = Configs.HTTP_STOP_RELEASE_INTERVAL.getRequired();
 
 	@Inject
 	EsiUrlGroupResolver urlGroupResolver;
 
+	@Inject
+	RateLimitKeyResolver rateLimitKeyResolver;
+
 	@Inject
 	protected RateLimitGroupStopInterceptor() {}
 
@@ -43,16 +49,22 @@ public class RateLimitGroupStopInterceptor implements Interceptor {
 	@SneakyThrows
 	public Response intercept(@NotNull Chain chain) throws IOException {
 		var request = chain.request();
+		if (StaleCacheInterceptor.isLookup(request)) {
+			return chain.proceed(request);
+		}
 		var urlPath = request.url().encodedPath();
 		var requestGroup = urlGroupResolver.resolveGroup(urlPath);
+		var requestKey = requestGroup.map(group -> rateLimitKeyResolver.getKey(group, request));
 
 		var success = false;
+		var released = false;
 		Response response;
 		do {
 			// If the URL belongs to a rate limit group, respect that group's stop
-			if (requestGroup.isPresent()) {
-				respectGroupStop(requestGroup.get());
+			if (requestKey.isPresent() && !released) {
+				respectGroupStop(requestKey.get());
 			}
+			released = false;
 
 			response = chain.proceed(request);
 			if (response.code() == 429) {
@@ -63,17 +75,16 @@ public class RateLimitGroupStopInterceptor implements Interceptor {
 
 				// If there's a rate limit group, stop other requests to this group
 				if (rateLimitGroup != null) {
-					var groupStop = groupStops.computeIfAbsent(rateLimitGroup, k -> new AtomicBoolean());
-					groupStop.set(true);
-					try {
-						var resetTime = parseResetTime(Optional.ofNullable(response.header(RETRY_AFTER))
-								.orElse("10"));
-						log.warn(String.format("ESI 429 for group '%s', waiting for %s", rateLimitGroup, resetTime));
-						response.close();
-						Thread.sleep(resetTime.plusSeconds(1).toMillis());
-					} finally {
-						groupStop.set(false);
-					}
+					var rateLimitKey = rateLimitKeyResolver.getKey(rateLimitGroup, request);
+					var groupStop = groupStops.computeIfAbsent(rateLimitKey, k -> new StopGate(releaseInterval));
+					var resetTime = parseResetTime(
+							Optional.ofNullable(response.header(RETRY_AFTER)).orElse("10"));
+					log.warn(String.format("ESI 429 for group '%s', waiting for %s", rateLimitKey, resetTime));
+					response.close();
+					// Wait in line with the other stopped requests rather than sleeping separately.
+					groupStop.stop(resetTime.plusSeconds(1));
+					groupStop.await();
+					released = true;
 				} else {
 					// No rate limit group, just retry without blocking other requests
 					var resetTime = parseResetTime(
@@ -97,10 +108,9 @@ public class RateLimitGroupStopInterceptor implements Interceptor {
 		}
 
 		var start = Instant.now();
-		while (groupStop.get()) {
+		if (groupStop.await()) {
 			log.debug(String.format(
-					"Waiting for ESI 429 (group '%s'): %s", group, Duration.between(start, Instant.now())));
-			Thread.sleep(1000);
+					"Waited for ESI 429 (group '%s'): %s", group, Duration.between(start, Instant.now())));
 		}
 	}
 
@@ -6,6 +6,10 @@ import com.google.common.util.concurrent.RateLimiter;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
 import okhttp3.Interceptor;
 import okhttp3.Response;
@@ -13,14 +17,22 @@ import org.jetbrains.annotations.NotNull;
 
 /**
  * Global rate limiter for ESI requests.
+ * <p>
+ * Requests waiting for the rate limit take turns through a {@link PriorityLimiter} with a single permit, so each
+ * {@link RequestPriority} gets a weighted share of the rate budget, and tenants take turns within each class.
+ * Only the request holding the turn waits on the rate limiter itself.
  */
 @Singleton
 @Log4j2
 public class RateLimitInterceptor implements Interceptor {
+	private static final String NO_TENANT = "";
+
 	private final RateLimiter characterCorporationHistoryLimiter;
 	private final RateLimiter marketHistoryLimiter;
 	private final RateLimiter otherLimiter;
 
+	private final Map<EsiRouteType, PriorityLimiter> turns = new EnumMap<>(EsiRouteType.class);
+
 	private final double logRateLimit = 1.0 / 5.0;
 
 	private final RateLimiter characterCorporationHistoryLogLimiter = RateLimiter.create(logRateLimit);
@@ -33,6 +45,10 @@ public class RateLimitInterceptor implements Interceptor {
 				createRateLimiter(Configs.ESI_CHARACTER_CORPORATION_HISTORY_RATE_LIMIT_PER_S);
 		marketHistoryLimiter = createRateLimiter(Configs.ESI_MARKET_HISTORY_RATE_LIMIT_PER_S);
 		otherLimiter = createRateLimiter(Configs.ESI_RATE_LIMIT_PER_S);
+		var weights = RequestPriority.getWeights();
+		for (var type : EsiRouteType.values()) {
+			turns.put(type, new PriorityLimiter(1, weights));
+		}
 	}
 
 	private static RateLimiter createRateLimiter(Config<Double> config) {
@@ -45,30 +61,56 @@ public class RateLimitInterceptor implements Interceptor {
 
 	@NotNull
 	@Override
+	@SneakyThrows
 	public Response intercept(@NotNull Chain chain) throws IOException {
-		var path = chain.request().url().encodedPath();
+		var request = chain.request();
+		var path = request.url().encodedPath();
 		var type = EsiRouteClassifier.classifyRoute(path);
+		var priority = RequestPriorityResolver.getPriority(request);
+		var tenant = Optional.ofNullable(request.tag(TenantQuotas.Tenant.class))
+				.map(TenantQuotas.Tenant::getId)
+				.orElse(NO_TENANT);
 		switch (type) {
 			case CHARACTER_CORPORATION_HISTORY:
-				rateLimit(type, characterCorporationHistoryLimiter, characterCorporationHistoryLogLimiter);
+				rateLimit(
+						type,
+						characterCorporationHistoryLimiter,
+						characterCorporationHistoryLogLimiter,
+						priority,
+						tenant);
 				break;
 			case MARKET_HISTORY:
-				rateLimit(type, marketHistoryLimiter, marketHistoryLogLimiter);
+				rateLimit(type, marketHistoryLimiter, marketHistoryLogLimiter, priority, tenant);
 				break;
 			case OTHER:
-				rateLimit(type, otherLimiter, otherLogLimiter);
+				rateLimit(type, otherLimiter, otherLogLimiter, priority, tenant);
 				break;
 			default:
 				throw new IllegalStateException("Unknown ESI route type: " + type);
 		}
-		var response = chain.proceed(chain.request());
+		var response = chain.proceed(request);
 		return response;
 	}
 
-	private void rateLimit(EsiRouteType routeType, RateLimiter rateLimiter, RateLimiter loggingRateLimiter) {
-		if (!rateLimiter.tryAcquire()) {
+	private void rateLimit(
+			EsiRouteType routeType,
+			RateLimiter rateLimiter,
+			RateLimiter loggingRateLimiter,
+			RequestPriority priority,
+			String tenant)
+			throws InterruptedException {
+		var turn = turns.get(routeType);
+		if (!turn.tryAcquire(priority)) {
 			logRateLimit(routeType, loggingRateLimiter);
-			rateLimiter.acquire();
+			turn.acquire(priority, tenant);
+		}
+		try {
+			if (!rateLimiter.tryAcquire()) {
+				logRateLimit(routeType, loggingRateLimiter);
+				rateLimiter.acquire();
+			}
+		} finally {
+			turn.release();
 		}
 	}
 
@@ -0,0 +1,105 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.oauth.AuthedCharacter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Optional;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Request;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Resolves the key rate limits are tracked under for a request.
+ * ESI applies group rate limits per application and character for authed routes, so authed requests are keyed on the
+ * group and the character they're made as. Public requests are keyed on the group alone.
+ * <p>
+ * The character is taken from the {@link AuthedCharacter} set by {@link ProxyKeyInterceptor} for proxy keys, or from
+ * the subject of the access token otherwise. The token is only decoded, not verified, which is fine for accounting:
+ * a token claiming to be another character can only affect its own requests' pacing.
+ * Tokens which can't be decoded are keyed on a hash of the token.
+ */
+@Singleton
+@Log4j2
+public class RateLimitKeyResolver {
+	private static final String SUBJECT_PREFIX = "CHARACTER:EVE:";
+
+	@Inject
+	protected ObjectMapper objectMapper;
+
+	private final Cache<String, String> tokenIdentities = CacheBuilder.newBuilder()
+			.maximumSize(10_000)
+			.expireAfterAccess(Duration.ofMinutes(30))
+			.build();
+
+	@Inject
+	protected RateLimitKeyResolver() {}
+
+	/**
+	 * @return the key to track the rate limit of the group under for the request
+	 */
+	public String getKey(String group, Request request) {
+		return getIdentity(request).map(identity -> group + " " + identity).orElse(group);
+	}
+
+	/**
+	 * @return the character the request is made as, or empty for public requests
+	 */
+	@SneakyThrows
+	public Optional<String> getIdentity(Request request) {
+		var character = request.tag(AuthedCharacter.class);
+		if (character != null) {
+			return Optional.of(characterIdentity(character.getCharacterId()));
+		}
+		return ProxyKeyInterceptor.getBearerToken(request).map(this::getTokenIdentity);
+	}
+
+	/**
+	 * @return the character an ESI access token is for, or a hash of the token if it can't be decoded
+	 */
+	@SneakyThrows
+	public String getTokenIdentity(String token) {
+		return tokenIdentities.get(token, () -> resolveTokenIdentity(token));
+	}
+
+	private String resolveTokenIdentity(String token) {
+		return getTokenSubject(token)
+				.filter(subject -> subject.startsWith(SUBJECT_PREFIX))
+				.map(subject -> subject.substring(SUBJECT_PREFIX.length()))
+				.flatMap(RateLimitKeyResolver::parseCharacterId)
+				.map(RateLimitKeyResolver::characterIdentity)
+				.orElseGet(() -> "token:" + DigestUtils.sha256Hex(token).substring(0, 16));
+	}
+
+	private Optional<String> getTokenSubject(String token) {
+		var parts = token.split("\\.");
+		if (parts.length != 3) {
+			return Optional.empty();
+		}
+		try {
+			var claims = objectMapper.readTree(Base64.getUrlDecoder().decode(parts[1]));
+			var subject = claims.get("sub");
+			return subject != null && subject.isTextual() ? Optional.of(subject.asText()) : Optional.empty();
+		} catch (Exception e) {
+			log.trace("Unable to decode access token subject", e);
+			return Optional.empty();
+		}
+	}
+
+	private static Optional<Long> parseCharacterId(String value) {
+		try {
+			return Optional.of(Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			return Optional.empty();
+		}
+	}
+
+	private static String characterIdentity(long characterId) {
+		return "character:" + characterId;
+	}
+}
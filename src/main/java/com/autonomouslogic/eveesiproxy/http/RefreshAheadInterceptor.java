@@ -0,0 +1,213 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.util.concurrent.RateLimiter;
+import dagger.Lazy;
+import io.helidon.http.HeaderNames;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Okio;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Revalidates frequently requested responses in the background shortly before they expire, so clients keep being
+ * served from the cache rather than waiting on the ESI when a popular response expires.
+ * <p>
+ * Requests are counted per variant, by the same key as the caches along with the headers the response varies by, see
+ * {@link CacheHeaders#getVariantKey(Request, Response)}. Variants requested at least
+ * {@link Configs#HTTP_REFRESH_AHEAD_MIN_REQUESTS} times within {@link Configs#HTTP_REFRESH_AHEAD_WINDOW} are refreshed
+ * {@link Configs#HTTP_REFRESH_AHEAD_LEAD} before their <code>Expires</code>, by repeating the last request for them. Refreshes are sent with <code>max-age=0</code>, so the caches send a conditional request and
+ * update the stored response from the <code>304</code>.
+ * <p>
+ * Refreshes are sent as {@link RequestPriority#BULK}, so they queue behind live requests for the concurrency and rate
+ * limits, and are limited to {@link Configs#HTTP_REFRESH_AHEAD_RATE_LIMIT_PER_S}. Refreshes over the rate are skipped rather
+ * than delayed, and the response simply expires as it would otherwise.
+ * Only public <code>GET</code> requests are refreshed.
+ */
+@Singleton
+@Log4j2
+public class RefreshAheadInterceptor implements Interceptor {
+	private static final String TOKEN = "token";
+	private static final int MAX_TRACKED_VARIANTS = 100_000;
+
+	private final int minRequests = Configs.HTTP_REFRESH_AHEAD_MIN_REQUESTS.getRequired();
+	private final long windowMillis =
+			Configs.HTTP_REFRESH_AHEAD_WINDOW.getRequired().toMillis();
+	private final long leadMillis =
+			Configs.HTTP_REFRESH_AHEAD_LEAD.getRequired().toMillis();
+
+	private final Cache<String, Entry> entries = Caffeine.newBuilder()
+			.maximumSize(MAX_TRACKED_VARIANTS)
+			.expireAfterAccess(Duration.ofMillis(windowMillis * 2))
+			.build();
+
+	private RateLimiter refreshLimiter;
+	private ScheduledExecutorService scheduler;
+
+	@Inject
+	protected Lazy<OkHttpClient> client;
+
+	@Inject
+	protected RefreshAheadInterceptor() {}
+
+	@Inject
+	protected void init() {
+		if (minRequests <= 0) {
+			return;
+		}
+		var rate = Configs.HTTP_REFRESH_AHEAD_RATE_LIMIT_PER_S.getRequired();
+		if (rate <= 0.0) {
+			throw new IllegalArgumentException(
+					Configs.HTTP_REFRESH_AHEAD_RATE_LIMIT_PER_S.getName() + " must be positive");
+		}
+		refreshLimiter = RateLimiter.create(rate);
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				Thread.ofPlatform().name("refresh-ahead").daemon().factory());
+	}
+
+	@NotNull
+	@Override
+	public Response intercept(@NotNull Chain chain) throws IOException {
+		var request = chain.request();
+		if (scheduler == null || !isRefreshable(request)) {
+			return chain.proceed(request);
+		}
+		var now = System.currentTimeMillis();
+		var response = chain.proceed(request);
+		var key = CacheHeaders.getVariantKey(request, response);
+		Entry entry;
+		if (request.tag(BackgroundRefresh.class) != null) {
+			entry = entries.getIfPresent(key);
+			if (entry == null) {
+				return response;
+			}
+		} else {
+			entry = entries.get(key, k -> new Entry(now));
+			entry.recordRequest(request, now);
+		}
+		if (CacheHeaders.isStorable(response)) {
+			CacheHeaders.getExpiresAt(response).ifPresent(expiresAt -> schedule(key, entry, expiresAt));
+		}
+		return response;
+	}
+
+	private static boolean isRefreshable(Request request) {
+		return request.method().equals("GET")
+				&& request.header(HeaderNames.AUTHORIZATION.lowerCase()) == null
+				&& request.url().queryParameter(TOKEN) == null;
+	}
+
+	private void schedule(String key, Entry entry, long expiresAt) {
+		var now = System.currentTimeMillis();
+		var refreshAt = expiresAt - leadMillis;
+		if (refreshAt <= now || entry.getRequests(now) < minRequests || !entry.scheduleFor(expiresAt)) {
+			return;
+		}
+		log.trace("Scheduling refresh of {} in {} ms", key, refreshAt - now);
+		scheduler.schedule(
+				() -> VirtualThreads.EXECUTOR.execute(() -> refresh(key, expiresAt)),
+				refreshAt - now,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void refresh(String key, long expiresAt) {
+		var entry = entries.getIfPresent(key);
+		if (entry == null || !entry.isScheduledFor(expiresAt)) {
+			return;
+		}
+		if (entry.getRequests(System.currentTimeMillis()) < minRequests) {
+			log.trace("Not refreshing {}, no longer requested often enough", key);
+			return;
+		}
+		if (!refreshLimiter.tryAcquire()) {
+			log.debug("Skipping refresh of {}, refresh rate limit reached", key);
+			return;
+		}
+		var request = entry.getRequest()
+				.newBuilder()
+				.cacheControl(
+						new CacheControl.Builder().maxAge(0, TimeUnit.SECONDS).build())
+				.tag(RequestPriority.class, RequestPriority.BULK)
+				.tag(BackgroundRefresh.class, new BackgroundRefresh())
+				.build();
+		log.trace("Refreshing {}", key);
+		try (var response = OkHttpExec.execute(client.get().newCall(request))) {
+			// The caches store the response as it's read.
+			response.body().source().readAll(Okio.blackhole());
+			log.debug("Refreshed {} ahead of expiry: {}", key, response.code());
+		} catch (Exception e) {
+			log.warn("Failed refreshing {}", key, e);
+		}
+	}
+
+	/**
+	 * Request counts for a variant, over the current and previous window.
+	 * Requests in the previous window are weighted by how much of it still overlaps a sliding window ending now.
+	 */
+	private class Entry {
+		private Request request;
+		private long windowStart;
+		private int current = 0;
+		private int previous = 0;
+		private long scheduledFor = 0;
+
+		Entry(long now) {
+			windowStart = now;
+		}
+
+		synchronized void recordRequest(Request request, long now) {
+			this.request = request;
+			roll(now);
+			current++;
+		}
+
+		synchronized double getRequests(long now) {
+			roll(now);
+			var overlap = 1.0 - (double) (now - windowStart) / windowMillis;
+			return current + previous * Math.max(0.0, overlap);
+		}
+
+		synchronized Request getRequest() {
+			return request;
+		}
+
+		/**
+		 * @return whether a refresh for the expiry should be scheduled, as it hasn't been already
+		 */
+		synchronized boolean scheduleFor(long expiresAt) {
+			if (request == null || scheduledFor == expiresAt) {
+				return false;
+			}
+			scheduledFor = expiresAt;
+			return true;
+		}
+
+		synchronized boolean isScheduledFor(long expiresAt) {
+			return scheduledFor == expiresAt;
+		}
+
+		private void roll(long now) {
+			var elapsed = now - windowStart;
+			if (elapsed < windowMillis) {
+				return;
+			}
+			previous = elapsed < windowMillis * 2 ? current : 0;
+			current = 0;
+			windowStart = now - elapsed % windowMillis;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import io.helidon.http.HeaderNames;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Coalesces identical concurrent requests, so only one of them is sent to the ESI.
+ * The first request becomes the leader. Any identical requests arriving while it's in flight wait for it and are
+ * served a copy of its response.
+ * <p>
+ * Requests are identical if they share method, URL, and authorization identity, along with any headers which may
+ * change the response. Proxy keys are resolved to their character, so different ways of authenticating as the same
+ * character are coalesced.
+ */
+@Singleton
+@Log4j2
+public class RequestCoalescer {
+	private static final List<String> COALESCE_METHODS = List.of("GET", "HEAD");
+	private static final List<String> KEY_HEADERS = List.of(
+			HeaderNames.ACCEPT_LANGUAGE.lowerCase(),
+			HeaderNames.ACCEPT_ENCODING.lowerCase(),
+			HeaderNames.IF_NONE_MATCH.lowerCase(),
+			HeaderNames.IF_MODIFIED_SINCE.lowerCase(),
+			HeaderNames.CACHE_CONTROL.lowerCase(),
+			"x-compatibility-date");
+	private static final String TOKEN = "token";
+
+	@Inject
+	protected OkHttpClient client;
+
+	@Inject
+	protected ProxyKeyInterceptor proxyKeyInterceptor;
+
+	private final boolean enabled = Configs.HTTP_COALESCE_REQUESTS.getRequired();
+
+	private final Map<RequestKey, Flight> flights = new ConcurrentHashMap<>();
+
+	@Inject
+	protected RequestCoalescer() {}
+
+	/**
+	 * Executes the request, or waits for an identical request already in flight.
+	 */
+	public Response execute(Request request) {
+		if (!enabled || !COALESCE_METHODS.contains(request.method())) {
+			return OkHttpExec.execute(client.newCall(request));
+		}
+		var key = createKey(request);
+		var leader = new Flight();
+		var flight = flights.compute(key, (k, existing) -> {
+			if (existing == null) {
+				return leader;
+			}
+			existing.followers.incrementAndGet();
+			return existing;
+		});
+		if (flight != leader) {
+			return follow(request, flight);
+		}
+		return lead(key, leader, request);
+	}
+
+	@SneakyThrows
+	private Response lead(RequestKey key, Flight flight, Request request) {
+		Response response;
+		try {
+			response = OkHttpExec.execute(client.newCall(request));
+		} catch (Throwable e) {
+			flights.remove(key, flight);
+			flight.result.completeExceptionally(e);
+			throw e;
+		}
+		// No more followers can join once the flight is removed, so it's safe to check the count after.
+		flights.remove(key, flight);
+		if (flight.followers.get() == 0) {
+			flight.result.complete(null);
+			return response;
+		}
+		try (response) {
+			var body = response.body();
+			var shared = new SharedResponse(response, body.bytes(), body.contentType());
+			log.trace(
+					"Sharing response for {} {} with {} followers", request.method(), request.url(), flight.followers);
+			flight.result.complete(shared);
+			return shared.toResponse(request);
+		} catch (Throwable e) {
+			flight.result.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private Response follow(Request request, Flight flight) {
+		log.trace("Waiting for in-flight request to {} {}", request.method(), request.url());
+		try {
+			return flight.result.join().toResponse(request);
+		} catch (CompletionException e) {
+			log.debug("In-flight request to {} {} failed, executing separately", request.method(), request.url());
+			return OkHttpExec.execute(client.newCall(request));
+		}
+	}
+
+	private RequestKey createKey(Request request) {
+		var identity = proxyKeyInterceptor.getIdentity(request).orElse(null);
+		var headers = KEY_HEADERS.stream().map(request::header).toList();
+		return new RequestKey(request.method(), canonicalUrl(request.url()), identity, headers);
+	}
+
+	/**
+	 * Sorts the query parameters, so requests only differing in parameter order are treated as identical.
+	 */
+	private static String canonicalUrl(HttpUrl url) {
+		var builder = url.newBuilder().query(null);
+		url.queryParameterNames().stream()
+				.filter(name -> !name.equals(TOKEN))
+				.sorted()
+				.forEach(name ->
+						url.queryParameterValues(name).forEach(value -> builder.addQueryParameter(name, value)));
+		return builder.build().toString();
+	}
+
+	@Value
+	private static class RequestKey {
+		String method;
+		String url;
+		String identity;
+		List<String> headers;
+	}
+
+	private static class Flight {
+		final CompletableFuture<SharedResponse> result = new CompletableFuture<>();
+		final AtomicInteger followers = new AtomicInteger();
+	}
+
+	@Value
+	private static class SharedResponse {
+		Response response;
+		byte[] body;
+		MediaType contentType;
+
+		Response toResponse(Request request) {
+			return response.newBuilder()
+					.request(request)
+					.body(ResponseBody.create(body, contentType))
+					.build();
+		}
+	}
+}
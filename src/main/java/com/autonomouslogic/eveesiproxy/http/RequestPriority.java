@@ -0,0 +1,46 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import java.util.Map;
+import java.util.Optional;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Priority classes for requests to the ESI.
+ * Each class gets its own queue and a weighted share of the concurrency and rate limits, see {@link PriorityLimiter}.
+ */
+@RequiredArgsConstructor
+public enum RequestPriority {
+	/**
+	 * Requests someone is waiting on. This is the default.
+	 */
+	INTERACTIVE(ProxyHeaderValues.PRIORITY_INTERACTIVE),
+	/**
+	 * Background requests, such as crawling large page sets.
+	 */
+	BULK(ProxyHeaderValues.PRIORITY_BULK);
+
+	@Getter
+	private final String headerValue;
+
+	/**
+	 * @return the weight of each class when sharing capacity, see {@link PriorityLimiter}
+	 */
+	public static Map<RequestPriority, Integer> getWeights() {
+		return Map.of(INTERACTIVE, Configs.HTTP_INTERACTIVE_PRIORITY_WEIGHT.getRequired(), BULK, 1);
+	}
+
+	public static Optional<RequestPriority> fromHeaderValue(String value) {
+		if (value == null) {
+			return Optional.empty();
+		}
+		var trimmed = value.trim();
+		for (var priority : values()) {
+			if (priority.headerValue.equalsIgnoreCase(trimmed)) {
+				return Optional.of(priority);
+			}
+		}
+		return Optional.empty();
+	}
+}
@@ -0,0 +1,69 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Request;
+
+/**
+ * Resolves the priority class of requests coming into the proxy.
+ * The class is taken from the <code>x-eve-esi-proxy-priority</code> header, if supplied, otherwise from whether the
+ * proxy key is configured as bulk.
+ * The class is set as a tag on the ESI request, so requests derived from it, such as further pages, keep the same
+ * class.
+ */
+@Singleton
+@Log4j2
+public class RequestPriorityResolver {
+	private static final String TOKEN = "token";
+
+	private final Set<String> bulkProxyKeys = Configs.HTTP_BULK_PROXY_KEYS
+			.get()
+			.map(keys -> Arrays.stream(keys.split(","))
+					.map(String::trim)
+					.filter(key -> !key.isEmpty())
+					.collect(Collectors.toSet()))
+			.orElse(Set.of());
+
+	@Inject
+	protected RequestPriorityResolver() {}
+
+	/**
+	 * @return the request, tagged with its priority and without the priority header
+	 */
+	public Request tagPriority(Request esiRequest) {
+		var header = esiRequest.header(ProxyHeaderNames.X_EVE_ESI_PROXY_PRIORITY);
+		var priority = RequestPriority.fromHeaderValue(header).orElseGet(() -> {
+			if (header != null) {
+				log.debug("Unknown request priority '{}'", header);
+			}
+			return getProxyKeyPriority(esiRequest);
+		});
+		return esiRequest
+				.newBuilder()
+				.removeHeader(ProxyHeaderNames.X_EVE_ESI_PROXY_PRIORITY)
+				.tag(RequestPriority.class, priority)
+				.build();
+	}
+
+	/**
+	 * @return the priority set on the request, or the default
+	 */
+	public static RequestPriority getPriority(Request esiRequest) {
+		return Optional.ofNullable(esiRequest.tag(RequestPriority.class)).orElse(RequestPriority.INTERACTIVE);
+	}
+
+	private RequestPriority getProxyKeyPriority(Request esiRequest) {
+		if (bulkProxyKeys.isEmpty()) {
+			return RequestPriority.INTERACTIVE;
+		}
+		var token = ProxyKeyInterceptor.getBearerToken(esiRequest)
+				.or(() -> Optional.ofNullable(esiRequest.url().queryParameter(TOKEN)));
+		return token.filter(bulkProxyKeys::contains).isPresent() ? RequestPriority.BULK : RequestPriority.INTERACTIVE;
+	}
+}
@@ -0,0 +1,717 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Headers;
+import okhttp3.Protocol;
+
+/**
+ * A {@link CacheStore} keeping responses in an append-only log split into segment files on disk, with an in-memory
+ * index from each key to the location of its latest record.
+ * <p>
+ * Every write appends a record to the active segment, and removals append a tombstone. Once the active segment is
+ * full, it's sealed and memory-mapped, so reads from it are served straight from the page cache without copying.
+ * In the background, segments which are mostly made up of replaced or removed records are compacted by copying the
+ * records still in use to the active segment, and the oldest segments are dropped when the store is over its maximum
+ * size.
+ * <p>
+ * The index is checkpointed to disk along with the position in the log it covers. At startup, the checkpoint is read
+ * and only the records written after it are replayed, so the full log is never scanned unless the checkpoint is
+ * missing. Records are checksummed, so a record cut short by a crash is detected and dropped during the replay.
+ * <p>
+ * Reads pin the segment they read from, so segments dropped by eviction or compaction are only closed and deleted once
+ * no reads are in progress.
+ */
+@Log4j2
+public class SegmentedCacheStore implements CacheStore {
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024L * 1024L;
+
+	private static final int RECORD_MAGIC = 0x45534932;
+	private static final int CHECKPOINT_MAGIC = 0x45534332;
+	/**
+	 * Magic, key length, meta length, body length, and checksum.
+	 */
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 8 + 4;
+
+	private static final long TOMBSTONE = -1;
+	private static final String CHECKPOINT_FILE = "index";
+	private static final Pattern SEGMENT_FILE = Pattern.compile("^segment-(\\d+)\\.log$");
+
+	/**
+	 * Segments with less than this fraction of their size in use are compacted.
+	 */
+	private static final double COMPACTION_THRESHOLD = 0.5;
+
+	private static final Duration MAINTENANCE_INTERVAL = Duration.ofSeconds(30);
+
+	private final File dir;
+	private final long maxSize;
+	private final long segmentSize;
+
+	private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final ReentrantLock maintenanceLock = new ReentrantLock();
+	private final ScheduledExecutorService maintenanceExecutor;
+
+	private volatile Segment active;
+	private volatile boolean dirty = false;
+
+	public SegmentedCacheStore(File dir, long maxSize, long segmentSize) throws IOException {
+		if (segmentSize <= RECORD_HEADER_SIZE || segmentSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+		}
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.segmentSize = segmentSize;
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Failed creating cache store directory " + dir);
+		}
+		open();
+		maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+				Thread.ofPlatform().name("cache-store").daemon().factory());
+		maintenanceExecutor.scheduleWithFixedDelay(
+				this::maintain,
+				MAINTENANCE_INTERVAL.toMillis(),
+				MAINTENANCE_INTERVAL.toMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public Optional<StoredResponse> get(String key) {
+		while (true) {
+			var location = index.get(key);
+			if (location == null) {
+				return Optional.empty();
+			}
+			var segment = location.getSegment();
+			if (!segment.pin()) {
+				// The segment was dropped after the key was looked up, so the key has since been moved or removed.
+				continue;
+			}
+			try {
+				return Optional.of(decode(segment.read(location.getOffset(), location.getLength())));
+			} catch (IOException | RuntimeException e) {
+				log.warn("Failed reading {} from the cache store", key, e);
+				index.remove(key, location);
+				return Optional.empty();
+			} finally {
+				unpin(segment);
+			}
+		}
+	}
+
+	@Override
+	public void put(String key, StoredResponse response) {
+		try {
+			var record = encode(key, response);
+			if (record.remaining() > segmentSize) {
+				log.trace("Response too large for the cache store: {}", key);
+				remove(key);
+				return;
+			}
+			append(key, record, null);
+		} catch (IOException e) {
+			log.warn("Failed writing {} to the cache store", key, e);
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		if (!index.containsKey(key)) {
+			return;
+		}
+		try {
+			append(key, encodeTombstone(key), null);
+		} catch (IOException e) {
+			log.warn("Failed removing {} from the cache store", key, e);
+		}
+	}
+
+	/**
+	 * @return the total size of the segments on disk
+	 */
+	public long size() {
+		return segments.values().stream().mapToLong(Segment::getSize).sum();
+	}
+
+	/**
+	 * @return the number of segments on disk, including the active one
+	 */
+	public int segmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Evicts, compacts, and checkpoints the store. This is done periodically in the background.
+	 */
+	public void maintain() {
+		maintenanceLock.lock();
+		try {
+			evict();
+			compact();
+			if (dirty) {
+				checkpoint();
+			}
+		} catch (Exception e) {
+			log.warn("Failed maintaining the cache store in {}", dir, e);
+		} finally {
+			maintenanceLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		maintenanceExecutor.shutdownNow();
+		maintenanceLock.lock();
+		try {
+			checkpoint();
+			for (var segment : segments.values()) {
+				segment.getChannel().close();
+			}
+		} finally {
+			maintenanceLock.unlock();
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment and points the key at it.
+	 * @param expected if set, the record is only written if the key still points at this location
+	 */
+	private void append(String key, ByteBuffer record, Location expected) throws IOException {
+		var tombstone = record.getLong(12) == TOMBSTONE;
+		var length = record.remaining();
+		writeLock.lock();
+		try {
+			if (expected != null && index.get(key) != expected) {
+				return;
+			}
+			if (active.getSize() + length > segmentSize) {
+				roll();
+			}
+			var offset = active.getSize();
+			active.write(record, offset);
+			Location previous;
+			if (tombstone) {
+				previous = index.remove(key);
+			} else {
+				var location = new Location(active, (int) offset, length);
+				active.getLiveBytes().addAndGet(length);
+				previous = index.put(key, location);
+			}
+			if (previous != null) {
+				previous.getSegment().getLiveBytes().addAndGet(-previous.getLength());
+			}
+			dirty = true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void roll() throws IOException {
+		active.seal();
+		active = createSegment(active.getId() + 1);
+		log.debug("Rolled cache store to segment {}", active.getId());
+		if (!maintenanceExecutor.isShutdown()) {
+			maintenanceExecutor.execute(this::maintain);
+		}
+	}
+
+	/**
+	 * Drops the oldest segments while the store is over its maximum size.
+	 */
+	private void evict() {
+		while (size() > maxSize) {
+			var oldest = segments.firstEntry().getValue();
+			if (oldest == active) {
+				return;
+			}
+			log.debug("Evicting cache store segment {}", oldest.getId());
+			index.forEach((key, location) -> {
+				if (location.getSegment() == oldest) {
+					index.remove(key, location);
+				}
+			});
+			deleteSegment(oldest);
+		}
+	}
+
+	/**
+	 * Copies the records still in use out of sparse segments, and deletes them.
+	 */
+	private void compact() throws IOException {
+		Set<Segment> sparse = new HashSet<>();
+		for (var segment : segments.values()) {
+			if (segment != active && segment.getLiveBytes().get() < segment.getSize() * COMPACTION_THRESHOLD) {
+				sparse.add(segment);
+			}
+		}
+		if (sparse.isEmpty()) {
+			return;
+		}
+		log.debug("Compacting {} cache store segments", sparse.size());
+		for (var entry : index.entrySet()) {
+			var location = entry.getValue();
+			if (sparse.contains(location.getSegment())) {
+				var record = location.getSegment().read(location.getOffset(), location.getLength());
+				append(entry.getKey(), record, location);
+			}
+		}
+		for (var segment : sparse) {
+			deleteSegment(segment);
+		}
+	}
+
+	/**
+	 * Drops a segment from the store. The file is deleted once no reads are in progress.
+	 */
+	private void deleteSegment(Segment segment) {
+		segments.remove(segment.getId());
+		unpin(segment);
+		dirty = true;
+	}
+
+	private void unpin(Segment segment) {
+		if (segment.unpin()) {
+			try {
+				segment.getChannel().close();
+				Files.deleteIfExists(segment.getFile().toPath());
+				log.trace("Deleted cache store segment {}", segment.getId());
+			} catch (IOException e) {
+				log.warn("Failed deleting cache store segment {}", segment.getId(), e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the index to disk, along with the position in the log it covers.
+	 * Changes made while the index is being written are after that position, so they're replayed at startup.
+	 */
+	private void checkpoint() throws IOException {
+		Segment segment;
+		long position;
+		writeLock.lock();
+		try {
+			segment = active;
+			position = active.getSize();
+			dirty = false;
+		} finally {
+			writeLock.unlock();
+		}
+		var temp = new File(dir, CHECKPOINT_FILE + ".tmp");
+		try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeLong(segment.getId());
+			out.writeLong(position);
+			for (var entry : index.entrySet()) {
+				var location = entry.getValue();
+				out.writeBoolean(true);
+				writeString(out, entry.getKey());
+				out.writeLong(location.getSegment().getId());
+				out.writeInt(location.getOffset());
+				out.writeInt(location.getLength());
+			}
+			out.writeBoolean(false);
+		}
+		Files.move(
+				temp.toPath(),
+				new File(dir, CHECKPOINT_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		log.trace("Checkpointed cache store index with {} entries", index.size());
+	}
+
+	/**
+	 * Opens the existing segments, restores the index from the checkpoint, and replays any records written after it.
+	 */
+	private void open() throws IOException {
+		var files = Optional.ofNullable(dir.listFiles()).orElse(new File[0]);
+		for (var file : files) {
+			var matcher = SEGMENT_FILE.matcher(file.getName());
+			if (matcher.matches()) {
+				var id = Long.parseLong(matcher.group(1));
+				segments.put(id, openSegment(id, file));
+			}
+		}
+		var replayFrom = readCheckpoint();
+		var replaySegment = replayFrom.map(ReplayPosition::getSegment).orElse(Long.MIN_VALUE);
+		var replayed = 0;
+		for (var segment : segments.values()) {
+			if (segment.getId() < replaySegment) {
+				continue;
+			}
+			var offset = segment.getId() == replaySegment ? replayFrom.get().getOffset() : 0L;
+			replayed += replay(segment, offset);
+		}
+		for (var segment : segments.values()) {
+			segment.seal();
+		}
+		var nextId = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		active = createSegment(nextId);
+		log.info(
+				"Opened cache store in {} with {} entries in {} segments, replayed {} records",
+				dir,
+				index.size(),
+				segments.size(),
+				replayed);
+		if (replayed > 0 || replayFrom.isEmpty()) {
+			checkpoint();
+		}
+	}
+
+	private Optional<ReplayPosition> readCheckpoint() {
+		var file = new File(dir, CHECKPOINT_FILE);
+		if (!file.exists()) {
+			return Optional.empty();
+		}
+		try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != CHECKPOINT_MAGIC) {
+				throw new IOException("Invalid checkpoint");
+			}
+			var position = new ReplayPosition(in.readLong(), in.readLong());
+			while (in.readBoolean()) {
+				var key = readString(in);
+				var segment = segments.get(in.readLong());
+				var offset = in.readInt();
+				var length = in.readInt();
+				if (segment != null && offset + (long) length <= segment.getSize()) {
+					segment.getLiveBytes().addAndGet(length);
+					index.put(key, new Location(segment, offset, length));
+				}
+			}
+			return Optional.of(position);
+		} catch (IOException e) {
+			log.warn("Failed reading cache store checkpoint {}, replaying all segments", file, e);
+			index.clear();
+			segments.values().forEach(segment -> segment.getLiveBytes().set(0));
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Applies the records in a segment to the index, starting at the supplied offset.
+	 * A corrupt or incomplete record ends the segment, and it's truncated there.
+	 * @return the number of records replayed
+	 */
+	private int replay(Segment segment, long offset) throws IOException {
+		var count = 0;
+		while (offset < segment.getSize()) {
+			var remaining = segment.getSize() - offset;
+			if (remaining < RECORD_HEADER_SIZE) {
+				truncate(segment, offset);
+				break;
+			}
+			var header = segment.read(offset, RECORD_HEADER_SIZE);
+			var keyLength = header.getInt(4);
+			var metaLength = header.getInt(8);
+			var bodyLength = header.getLong(12);
+			var length = (long) RECORD_HEADER_SIZE + keyLength + metaLength + Math.max(0, bodyLength);
+			if (header.getInt(0) != RECORD_MAGIC
+					|| keyLength < 0
+					|| metaLength < 0
+					|| bodyLength < TOMBSTONE
+					|| length > remaining) {
+				truncate(segment, offset);
+				break;
+			}
+			var record = segment.read(offset, (int) length);
+			if (record.getInt(20) != checksum(record)) {
+				truncate(segment, offset);
+				break;
+			}
+			var key = readKey(record);
+			Location previous;
+			if (bodyLength == TOMBSTONE) {
+				previous = index.remove(key);
+			} else {
+				segment.getLiveBytes().addAndGet(length);
+				previous = index.put(key, new Location(segment, (int) offset, (int) length));
+			}
+			if (previous != null) {
+				previous.getSegment().getLiveBytes().addAndGet(-previous.getLength());
+			}
+			offset += length;
+			count++;
+		}
+		return count;
+	}
+
+	private void truncate(Segment segment, long offset) throws IOException {
+		log.warn("Truncating cache store segment {} at {} of {}", segment.getId(), offset, segment.getSize());
+		segment.getChannel().truncate(offset);
+		segment.setSize(offset);
+	}
+
+	private Segment createSegment(long id) throws IOException {
+		var file = new File(dir, String.format("segment-%016d.log", id));
+		var channel = FileChannel.open(
+				file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		var segment = new Segment(id, file, channel);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private static Segment openSegment(long id, File file) throws IOException {
+		var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		var segment = new Segment(id, file, channel);
+		segment.setSize(channel.size());
+		return segment;
+	}
+
+	private static ByteBuffer encode(String key, StoredResponse response) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var out = new DataOutputStream(bytes)) {
+			writeString(out, response.getProtocol().toString());
+			out.writeInt(response.getCode());
+			writeString(out, response.getMessage());
+			out.writeLong(response.getSentRequestAtMillis());
+			out.writeLong(response.getReceivedResponseAtMillis());
+			out.writeLong(response.getExpiresAt());
+			var headers = response.getHeaders();
+			out.writeInt(headers.size());
+			for (int i = 0; i < headers.size(); i++) {
+				writeString(out, headers.name(i));
+				writeString(out, headers.value(i));
+			}
+			out.writeInt(response.getVaryFields().size());
+			for (int i = 0; i < response.getVaryFields().size(); i++) {
+				writeString(out, response.getVaryFields().get(i));
+				var values = response.getVaryValues().get(i);
+				out.writeInt(values.size());
+				for (var value : values) {
+					writeString(out, value);
+				}
+			}
+		}
+		var body = response.getBody().duplicate();
+		return encodeRecord(key, bytes.toByteArray(), body, body.remaining());
+	}
+
+	/**
+	 * Writes a string as UTF-8 bytes prefixed by their length, as {@link DataOutputStream#writeUTF(String)} is limited
+	 * to 64 KiB.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		var bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		var length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Invalid string length: " + length);
+		}
+		return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+	}
+
+	private static ByteBuffer encodeTombstone(String key) {
+		return encodeRecord(key, new byte[0], ByteBuffer.allocate(0), TOMBSTONE);
+	}
+
+	private static ByteBuffer encodeRecord(String key, byte[] meta, ByteBuffer body, long bodyLength) {
+		var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length + meta.length + body.remaining());
+		record.putInt(RECORD_MAGIC);
+		record.putInt(keyBytes.length);
+		record.putInt(meta.length);
+		record.putLong(bodyLength);
+		record.putInt(0);
+		record.put(keyBytes);
+		record.put(meta);
+		record.put(body);
+		record.flip();
+		record.putInt(20, checksum(record));
+		return record;
+	}
+
+	private static int checksum(ByteBuffer record) {
+		var crc = new CRC32();
+		crc.update(record.slice(RECORD_HEADER_SIZE, record.remaining() - RECORD_HEADER_SIZE));
+		return (int) crc.getValue();
+	}
+
+	private static String readKey(ByteBuffer record) {
+		var keyBytes = new byte[record.getInt(4)];
+		record.get(RECORD_HEADER_SIZE, keyBytes);
+		return new String(keyBytes, StandardCharsets.UTF_8);
+	}
+
+	private static StoredResponse decode(ByteBuffer record) throws IOException {
+		if (record.getInt(0) != RECORD_MAGIC) {
+			throw new IOException("Invalid record");
+		}
+		var keyLength = record.getInt(4);
+		var metaLength = record.getInt(8);
+		var bodyLength = (int) record.getLong(12);
+		var meta = new byte[metaLength];
+		record.get(RECORD_HEADER_SIZE + keyLength, meta);
+		var body = record.slice(RECORD_HEADER_SIZE + keyLength + metaLength, bodyLength);
+		try (var in = new DataInputStream(new ByteArrayInputStream(meta))) {
+			var protocol = Protocol.get(readString(in));
+			var code = in.readInt();
+			var message = readString(in);
+			var sentRequestAtMillis = in.readLong();
+			var receivedResponseAtMillis = in.readLong();
+			var expiresAt = in.readLong();
+			var headers = new Headers.Builder();
+			var headerCount = in.readInt();
+			for (int i = 0; i < headerCount; i++) {
+				headers.addUnsafeNonAscii(readString(in), readString(in));
+			}
+			var varyCount = in.readInt();
+			List<String> varyFields = new ArrayList<>(varyCount);
+			List<List<String>> varyValues = new ArrayList<>(varyCount);
+			for (int i = 0; i < varyCount; i++) {
+				varyFields.add(readString(in));
+				var valueCount = in.readInt();
+				List<String> values = new ArrayList<>(valueCount);
+				for (int j = 0; j < valueCount; j++) {
+					values.add(readString(in));
+				}
+				varyValues.add(values);
+			}
+			return new StoredResponse(
+					protocol,
+					code,
+					message,
+					headers.build(),
+					varyFields,
+					varyValues,
+					sentRequestAtMillis,
+					receivedResponseAtMillis,
+					expiresAt,
+					body.asReadOnlyBuffer());
+		} catch (EOFException e) {
+			throw new IOException("Truncated record metadata", e);
+		}
+	}
+
+	@Value
+	private static class Location {
+		Segment segment;
+		int offset;
+		int length;
+	}
+
+	@Value
+	private static class ReplayPosition {
+		long segment;
+		long offset;
+	}
+
+	/**
+	 * A segment file. Only the active segment is written to, and it's read through the file channel.
+	 * Once sealed, a segment is memory-mapped and never written to again.
+	 * <p>
+	 * The store holds one pin on each segment it contains, and each read holds another while in progress.
+	 * Once the last pin is released, the segment can't be pinned again and is deleted.
+	 */
+	@lombok.Getter
+	private static class Segment {
+		private final long id;
+		private final File file;
+		private final FileChannel channel;
+		private final AtomicLong liveBytes = new AtomicLong();
+		private final AtomicInteger pins = new AtomicInteger(1);
+
+		@lombok.Setter
+		private volatile long size = 0;
+
+		private volatile MappedByteBuffer mapped;
+
+		Segment(long id, File file, FileChannel channel) {
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+		}
+
+		void write(ByteBuffer record, long offset) throws IOException {
+			var buffer = record.duplicate();
+			var position = offset;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			size = position;
+		}
+
+		ByteBuffer read(long offset, int length) throws IOException {
+			var map = mapped;
+			if (map != null) {
+				return map.slice((int) offset, length);
+			}
+			var buffer = ByteBuffer.allocate(length);
+			var position = offset;
+			while (buffer.hasRemaining()) {
+				var read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new EOFException("Record past the end of segment " + id);
+				}
+				position += read;
+			}
+			return buffer.flip();
+		}
+
+		/**
+		 * @return whether the segment was pinned, false if it has already been dropped
+		 */
+		boolean pin() {
+			while (true) {
+				var current = pins.get();
+				if (current == 0) {
+					return false;
+				}
+				if (pins.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return whether this was the last pin, in which case the segment should be deleted
+		 */
+		boolean unpin() {
+			return pins.decrementAndGet() == 0;
+		}
+
+		void seal() throws IOException {
+			if (mapped == null) {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+		}
+	}
+}
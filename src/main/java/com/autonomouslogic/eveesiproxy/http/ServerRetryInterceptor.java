@@ -27,7 +27,9 @@ public class ServerRetryInterceptor implements Interceptor {
 	@SneakyThrows
 	public Response intercept(@NotNull Chain chain) throws IOException {
 		var req = chain.request();
-		if (!retryMethods.contains(req.method())) {
+		if (!retryMethods.contains(req.method())
+				|| req.tag(StaleCacheInterceptor.StaleFallback.class) != null
+				|| StaleCacheInterceptor.isLookup(req)) {
 			return chain.proceed(req);
 		}
 		try {
@@ -0,0 +1,176 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
+import dagger.Lazy;
+import io.helidon.http.HeaderNames;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Okio;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Serves stale cached responses for the routes configured.
+ * <p>
+ * For routes matching {@link Configs#HTTP_STALE_WHILE_REVALIDATE_ROUTES}, stale responses are served immediately,
+ * and revalidated with the ESI in the background, so the next request gets the updated response.
+ * <p>
+ * For routes matching {@link Configs#HTTP_STALE_IF_ERROR_ROUTES}, requests are sent to the ESI as usual, but if it
+ * returns a server error or can't be reached, the stale response is served instead.
+ * These requests aren't retried by {@link ServerRetryInterceptor}, as there's a response to fall back on.
+ * <p>
+ * Stale responses are served for up to {@link Configs#HTTP_STALE_MAX_AGE} past their expiry, with
+ * <code>X-Eve-Esi-Proxy-Cache-Status: stale</code> and an <code>Age</code> header.
+ * The stale response is looked up with an <code>only-if-cached</code> request, so it's served by whichever cache
+ * has it.
+ * The lookup never reaches the ESI, so it isn't retried and doesn't wait for any stops, see {@link #isLookup(Request)}.
+ */
+@Singleton
+@Log4j2
+public class StaleCacheInterceptor implements Interceptor {
+	private final Optional<Pattern> staleWhileRevalidateRoutes =
+			Configs.HTTP_STALE_WHILE_REVALIDATE_ROUTES.get().map(Pattern::compile);
+	private final Optional<Pattern> staleIfErrorRoutes =
+			Configs.HTTP_STALE_IF_ERROR_ROUTES.get().map(Pattern::compile);
+	private final CacheControl staleCacheControl = new CacheControl.Builder()
+			.onlyIfCached()
+			.maxStale(
+					(int) Math.min(
+							Integer.MAX_VALUE,
+							Configs.HTTP_STALE_MAX_AGE.getRequired().toSeconds()),
+					TimeUnit.SECONDS)
+			.build();
+
+	private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+	@Inject
+	protected Lazy<OkHttpClient> client;
+
+	@Inject
+	protected StaleCacheInterceptor() {}
+
+	@NotNull
+	@Override
+	public Response intercept(@NotNull Chain chain) throws IOException {
+		var request = chain.request();
+		if (!request.method().equals("GET")
+				|| request.tag(BackgroundRefresh.class) != null
+				|| CacheHeaders.requiresRevalidation(request)
+				|| CacheHeaders.isConditional(request)) {
+			return chain.proceed(request);
+		}
+		var path = request.url().encodedPath();
+		var whileRevalidate = matches(staleWhileRevalidateRoutes, path);
+		var ifError = matches(staleIfErrorRoutes, path);
+		if (!whileRevalidate && !ifError) {
+			return chain.proceed(request);
+		}
+		var cached = lookup(chain, request);
+		if (cached == null) {
+			return chain.proceed(request);
+		}
+		var now = System.currentTimeMillis();
+		if (CacheHeaders.getExpiresAt(cached).orElse(0L) > now) {
+			return cached;
+		}
+		if (whileRevalidate) {
+			revalidate(request);
+			return stale(cached, now);
+		}
+		Response response;
+		try {
+			response = chain.proceed(request.newBuilder()
+					.tag(StaleFallback.class, new StaleFallback())
+					.build());
+		} catch (IOException e) {
+			log.debug("Serving stale response for {} after error", request.url(), e);
+			return stale(cached, System.currentTimeMillis());
+		}
+		if (response.code() / 100 == 5) {
+			log.debug("Serving stale response for {} after {}", request.url(), response.code());
+			response.close();
+			return stale(cached, System.currentTimeMillis());
+		}
+		cached.close();
+		return response;
+	}
+
+	private static boolean matches(Optional<Pattern> routes, String path) {
+		return routes.map(pattern -> pattern.matcher(path).find()).orElse(false);
+	}
+
+	/**
+	 * @return the cached response, fresh or stale, or null if there is none
+	 */
+	private Response lookup(Chain chain, Request request) throws IOException {
+		var response = chain.proceed(request.newBuilder()
+				.cacheControl(staleCacheControl)
+				.tag(StaleLookup.class, new StaleLookup())
+				.build());
+		if (response.code() != 200 || response.networkResponse() != null || response.cacheResponse() == null) {
+			response.close();
+			return null;
+		}
+		return response.newBuilder().request(request).build();
+	}
+
+	private static Response stale(Response cached, long now) {
+		return cached.newBuilder()
+				.header(HeaderNames.AGE.lowerCase(), Long.toString(CacheHeaders.getAgeSeconds(cached, now)))
+				.header(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_STALE)
+				.build();
+	}
+
+	/**
+	 * Revalidates a stale response in the background, unless it's already being revalidated.
+	 */
+	private void revalidate(Request request) {
+		var key = request.url().toString();
+		if (!revalidating.add(key)) {
+			return;
+		}
+		var refresh = request.newBuilder()
+				.tag(BackgroundRefresh.class, new BackgroundRefresh())
+				.build();
+		VirtualThreads.EXECUTOR.execute(() -> {
+			try (var response = OkHttpExec.execute(client.get().newCall(refresh))) {
+				// The caches store the response as it's read.
+				response.body().source().readAll(Okio.blackhole());
+				log.debug("Revalidated stale response for {}: {}", key, response.code());
+			} catch (Exception e) {
+				log.warn("Failed revalidating stale response for {}", key, e);
+			} finally {
+				revalidating.remove(key);
+			}
+		});
+	}
+
+	/**
+	 * Tags requests with a stale response to fall back on, so they aren't retried.
+	 */
+	static class StaleFallback {}
+
+	/**
+	 * Tags the <code>only-if-cached</code> lookups for cached responses.
+	 */
+	static class StaleLookup {}
+
+	/**
+	 * @return whether the request is a lookup for a cached response, which should be passed straight through to the caches
+	 */
+	public static boolean isLookup(Request request) {
+		return request.tag(StaleLookup.class) != null;
+	}
+}
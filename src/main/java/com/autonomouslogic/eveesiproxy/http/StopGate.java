@@ -0,0 +1,98 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds requests back until a deadline, such as the reset time of a rate or error limit.
+ * <p>
+ * Waiting requests are parked until the deadline passes, rather than polling, and are then released one at a time in
+ * the order they arrived, spaced out by the release interval. This avoids every waiting request retrying at once the
+ * moment the limit resets. Requests arriving while others are still being released queue up behind them.
+ * <p>
+ * Stopping the gate again while it's already stopped only ever extends the deadline.
+ */
+public class StopGate {
+	private final long releaseIntervalNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final ArrayDeque<Object> waiters = new ArrayDeque<>();
+
+	private long deadline;
+	private long nextReleaseAt;
+
+	public StopGate(Duration releaseInterval) {
+		if (releaseInterval.isNegative()) {
+			throw new IllegalArgumentException("Negative release interval: " + releaseInterval);
+		}
+		releaseIntervalNanos = releaseInterval.toNanos();
+		deadline = System.nanoTime();
+		nextReleaseAt = deadline;
+	}
+
+	/**
+	 * Stops requests for at least the supplied duration.
+	 */
+	public void stop(Duration duration) {
+		lock.lock();
+		try {
+			var until = System.nanoTime() + duration.toNanos();
+			if (until - deadline > 0) {
+				deadline = until;
+			}
+			if (deadline - nextReleaseAt > 0) {
+				nextReleaseAt = deadline;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isStopped() {
+		lock.lock();
+		try {
+			return System.nanoTime() - deadline < 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until the gate is open and it's this caller's turn to be released.
+	 * @return whether the caller had to wait
+	 */
+	public boolean await() throws InterruptedException {
+		lock.lock();
+		try {
+			if (waiters.isEmpty() && System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			var waiter = new Object();
+			waiters.add(waiter);
+			try {
+				while (true) {
+					var now = System.nanoTime();
+					if (now - deadline < 0) {
+						changed.awaitNanos(deadline - now);
+					} else if (waiters.peek() != waiter) {
+						changed.await();
+					} else if (now - nextReleaseAt < 0) {
+						changed.awaitNanos(nextReleaseAt - now);
+					} else {
+						nextReleaseAt = now + releaseIntervalNanos;
+						return true;
+					}
+				}
+			} finally {
+				waiters.remove(waiter);
+				changed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import io.helidon.http.HeaderNames;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A response kept in a {@link CacheStore}.
+ * The body is a read-only buffer, which may be backed directly by the store.
+ */
+@Value
+public class StoredResponse {
+	Protocol protocol;
+	int code;
+	String message;
+	Headers headers;
+	List<String> varyFields;
+	List<List<String>> varyValues;
+	long sentRequestAtMillis;
+	long receivedResponseAtMillis;
+
+	/**
+	 * When the response is no longer fresh, in epoch millis, or zero if it always needs revalidating.
+	 */
+	long expiresAt;
+
+	ByteBuffer body;
+
+	public static StoredResponse create(Request request, Response response, long expiresAt, ByteBuffer body) {
+		var varyFields = CacheHeaders.getVaryFields(response);
+		return new StoredResponse(
+				response.protocol(),
+				response.code(),
+				response.message(),
+				response.headers(),
+				varyFields,
+				CacheHeaders.getVaryValues(request, varyFields),
+				response.sentRequestAtMillis(),
+				response.receivedResponseAtMillis(),
+				expiresAt,
+				body.asReadOnlyBuffer());
+	}
+
+	public boolean isFresh() {
+		return expiresAt > System.currentTimeMillis();
+	}
+
+	/**
+	 * @return whether the response is fresh, or has been stale for no longer than the supplied time
+	 */
+	public boolean isFresh(long maxStaleMillis) {
+		var expires = expiresAt == 0 ? receivedResponseAtMillis : expiresAt;
+		return expires + maxStaleMillis > System.currentTimeMillis();
+	}
+
+	public boolean matches(Request request) {
+		return CacheHeaders.varyMatches(request, varyFields, varyValues);
+	}
+
+	/**
+	 * Builds a response to serve, with the stored response set as the cache response.
+	 */
+	public Response toResponse(Request request) {
+		var cacheResponse = builder(request).build();
+		return builder(request).body(createBody()).cacheResponse(cacheResponse).build();
+	}
+
+	public Response.Builder builder(Request request) {
+		return new Response.Builder()
+				.request(request)
+				.protocol(protocol)
+				.code(code)
+				.message(message)
+				.headers(headers)
+				.sentRequestAtMillis(sentRequestAtMillis)
+				.receivedResponseAtMillis(receivedResponseAtMillis);
+	}
+
+	public ResponseBody createBody() {
+		var contentType = headers.get(HeaderNames.CONTENT_TYPE.lowerCase());
+		var source = Okio.buffer(new ByteBufferSource(body.duplicate()));
+		return ResponseBody.create(source, contentType == null ? null : MediaType.parse(contentType), body.remaining());
+	}
+
+	/**
+	 * Reads from a buffer without copying it up front.
+	 */
+	@RequiredArgsConstructor
+	private static class ByteBufferSource implements Source {
+		private final ByteBuffer buffer;
+
+		@Override
+		public long read(@NonNull Buffer sink, long byteCount) throws IOException {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			var count = (int) Math.min(byteCount, buffer.remaining());
+			var slice = buffer.slice().limit(count);
+			sink.write(slice);
+			buffer.position(buffer.position() + count);
+			return count;
+		}
+
+		@NotNull
+		@Override
+		public Timeout timeout() {
+			return Timeout.NONE;
+		}
+
+		@Override
+		public void close() {}
+	}
+}
@@ -0,0 +1,79 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import lombok.NonNull;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Request body which streams from the client's request to the ESI without reading it all into memory first.
+ * <p>
+ * Requests may need to be sent more than once, for instance when waiting for a 420 or 429 to clear.
+ * To support this, up to <code>maxReplaySize</code> bytes are kept while streaming the body the first time.
+ * Bodies larger than this can only be sent once.
+ */
+public class StreamingRequestBody extends RequestBody {
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final InputStream in;
+	private final MediaType contentType;
+	private final long contentLength;
+	private final int maxReplaySize;
+
+	private boolean consumed = false;
+	private ByteArrayOutputStream replay;
+
+	public StreamingRequestBody(
+			@NonNull InputStream in, @Nullable MediaType contentType, long contentLength, int maxReplaySize) {
+		this.in = in;
+		this.contentType = contentType;
+		this.contentLength = contentLength;
+		this.maxReplaySize = maxReplaySize;
+	}
+
+	@Override
+	public @Nullable MediaType contentType() {
+		return contentType;
+	}
+
+	@Override
+	public long contentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public synchronized boolean isOneShot() {
+		return consumed && replay == null;
+	}
+
+	@Override
+	public synchronized void writeTo(@NonNull BufferedSink sink) throws IOException {
+		if (consumed) {
+			if (replay == null) {
+				throw new IOException("Request body exceeded the replay buffer and cannot be sent again");
+			}
+			replay.writeTo(sink.outputStream());
+			return;
+		}
+		consumed = true;
+		replay = new ByteArrayOutputStream();
+		try (in) {
+			var buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				sink.write(buffer, 0, read);
+				if (replay != null) {
+					if (replay.size() + read > maxReplaySize) {
+						replay = null;
+					} else {
+						replay.write(buffer, 0, read);
+					}
+				}
+			}
+		}
+	}
+}
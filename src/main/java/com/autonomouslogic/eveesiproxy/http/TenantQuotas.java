@@ -0,0 +1,169 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import com.autonomouslogic.commons.config.Config;
+import com.autonomouslogic.eveesiproxy.configs.Configs;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.RateLimiter;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.Request;
+
+/**
+ * Per-tenant quotas for requests coming into the proxy, so one consumer can't use up the ESI budget for everyone else.
+ * <p>
+ * Tenants are identified by their proxy key, otherwise by the user agent they supply, see
+ * {@link #getTenant(Request)}. Each tenant can be limited in the rate of requests and in the number of concurrent
+ * requests. Requests over the quota are rejected before anything is sent to the ESI.
+ * <p>
+ * The quotas apply to every tenant alike, unless overridden for a proxy key or user agent, given as comma-separated
+ * <code>key=limit</code> pairs.
+ */
+@Singleton
+@Log4j2
+public class TenantQuotas {
+	private static final String TOKEN = "token";
+
+	private static final Duration CONCURRENCY_RETRY_AFTER = Duration.ofSeconds(1);
+
+	private final double rateLimit = Configs.HTTP_TENANT_RATE_LIMIT_PER_S.getRequired();
+	private final int maxConcurrentRequests = Configs.HTTP_TENANT_MAX_CONCURRENT_REQUESTS.getRequired();
+	private final Map<String, Double> rateLimitOverrides =
+			parseOverrides(Configs.HTTP_TENANT_RATE_LIMIT_OVERRIDES, Double::parseDouble);
+	private final Map<String, Integer> maxConcurrentRequestsOverrides =
+			parseOverrides(Configs.HTTP_TENANT_MAX_CONCURRENT_REQUESTS_OVERRIDES, Integer::parseInt);
+
+	private final Cache<String, TenantState> states = CacheBuilder.newBuilder()
+			.maximumSize(10_000)
+			.expireAfterAccess(Duration.ofMinutes(30))
+			.build();
+
+	@Inject
+	protected ProxyKeyInterceptor proxyKeyInterceptor;
+
+	@Inject
+	protected TenantQuotas() {}
+
+	/**
+	 * @return the tenant making the request, by proxy key, then user agent
+	 */
+	public Tenant getTenant(Request esiRequest) {
+		var proxyKey = ProxyKeyInterceptor.getBearerToken(esiRequest)
+				.or(() -> Optional.ofNullable(esiRequest.url().queryParameter(TOKEN)));
+		var character = proxyKey.flatMap(proxyKeyInterceptor::getCharacterForProxyKey);
+		if (character.isPresent()) {
+			return new Tenant("character:" + character.get().getCharacterId(), proxyKey.get());
+		}
+		return UserAgentInterceptor.getSuppliedAgent(esiRequest)
+				.map(agent -> new Tenant("user-agent:" + agent, agent))
+				.orElse(new Tenant("default", null));
+	}
+
+	/**
+	 * Tries to admit a request for the tenant.
+	 * The permit must be closed once the request has completed.
+	 */
+	@SneakyThrows
+	public TenantPermit tryAcquire(Tenant tenant) {
+		if (rateLimit <= 0
+				&& maxConcurrentRequests <= 0
+				&& rateLimitOverrides.isEmpty()
+				&& maxConcurrentRequestsOverrides.isEmpty()) {
+			return TenantPermit.ADMITTED;
+		}
+		var state = states.get(tenant.getId(), () -> new TenantState(tenant));
+		if (state.semaphore != null && !state.semaphore.tryAcquire()) {
+			log.debug("Tenant '{}' is over the concurrency quota", tenant.getId());
+			return new TenantPermit(false, CONCURRENCY_RETRY_AFTER, null);
+		}
+		if (state.rateLimiter != null && !state.rateLimiter.tryAcquire()) {
+			if (state.semaphore != null) {
+				state.semaphore.release();
+			}
+			log.debug("Tenant '{}' is over the rate quota", tenant.getId());
+			var retryAfter = Duration.ofSeconds(Math.max(1, (long) Math.ceil(1.0 / state.rateLimiter.getRate())));
+			return new TenantPermit(false, retryAfter, null);
+		}
+		return new TenantPermit(true, Duration.ZERO, state.semaphore);
+	}
+
+	private static <T> Map<String, T> parseOverrides(Config<String> config, Function<String, T> parser) {
+		var overrides = new HashMap<String, T>();
+		for (var entry : config.get().map(value -> value.split(",")).orElse(new String[0])) {
+			if (entry.isBlank()) {
+				continue;
+			}
+			var separator = entry.lastIndexOf('=');
+			if (separator <= 0) {
+				throw new IllegalArgumentException(config.getName() + " must be key=limit pairs: " + entry);
+			}
+			var key = entry.substring(0, separator).trim();
+			var limit = entry.substring(separator + 1).trim();
+			try {
+				overrides.put(key, parser.apply(limit));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(config.getName() + " has an invalid limit: " + entry, e);
+			}
+		}
+		return overrides;
+	}
+
+	private class TenantState {
+		private final RateLimiter rateLimiter;
+		private final Semaphore semaphore;
+
+		TenantState(Tenant tenant) {
+			var key = Optional.ofNullable(tenant.getKey());
+			var rate = key.map(rateLimitOverrides::get).orElse(rateLimit);
+			var concurrency = key.map(maxConcurrentRequestsOverrides::get).orElse(maxConcurrentRequests);
+			rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+			semaphore = concurrency > 0 ? new Semaphore(concurrency) : null;
+		}
+	}
+
+	@Value
+	public static class Tenant {
+		String id;
+
+		/**
+		 * The proxy key or user agent the tenant was identified by, used to look up overridden quotas.
+		 */
+		@EqualsAndHashCode.Exclude
+		String key;
+	}
+
+	@RequiredArgsConstructor
+	public static class TenantPermit implements AutoCloseable {
+		private static final TenantPermit ADMITTED = new TenantPermit(true, Duration.ZERO, null);
+
+		@Getter
+		private final boolean admitted;
+
+		/**
+		 * How long to wait before trying again, if not admitted.
+		 */
+		@Getter
+		private final Duration retryAfter;
+
+		private final Semaphore semaphore;
+
+		@Override
+		public void close() {
+			if (admitted && semaphore != null) {
+				semaphore.release();
+			}
+		}
+	}
+}
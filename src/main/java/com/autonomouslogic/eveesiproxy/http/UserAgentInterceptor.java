@@ -72,7 +72,10 @@ public class UserAgentInterceptor implements Interceptor {
 		return chain.proceed(reqBuilder.build());
 	}
 
-	private static Optional<String> getSuppliedAgent(Request req) {
+	/**
+	 * @return the user agent supplied by the client, if any
+	 */
+	public static Optional<String> getSuppliedAgent(Request req) {
 		var suppliedAgent = tryHeader(req, HeaderNames.USER_AGENT.lowerCase())
 				.or(() -> tryHeader(req, "X-User-Agent"))
 				.or(() -> tryQuery(req, "user_agent"));
@@ -5,16 +5,22 @@ import com.autonomouslogic.eveesiproxy.configs.Configs;
 import com.autonomouslogic.eveesiproxy.handler.ErrorHandler;
 import com.autonomouslogic.eveesiproxy.handler.IndexService;
 import com.autonomouslogic.eveesiproxy.handler.LoginService;
+import com.autonomouslogic.eveesiproxy.handler.MetricsService;
 import com.autonomouslogic.eveesiproxy.handler.ProxyService;
 import com.autonomouslogic.eveesiproxy.handler.StandardHandlers;
 import com.autonomouslogic.eveesiproxy.handler.StaticService;
 import com.autonomouslogic.eveesiproxy.handler.UiService;
 import dagger.Module;
 import dagger.Provides;
-import io.helidon.webserver.ConnectionConfig;
+import io.helidon.common.socket.SocketOptions;
 import io.helidon.webserver.WebServer;
 import io.helidon.webserver.http.HttpRouting;
+import io.helidon.webserver.http1.Http1Config;
+import io.helidon.webserver.http2.Http2Config;
+import io.helidon.webserver.spi.ProtocolConfig;
 import jakarta.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
 import lombok.extern.log4j.Log4j2;
 
 @Module
@@ -27,21 +33,47 @@ public class HelidonModule {
 			ProxyService proxyService,
 			LoginService loginService,
 			UiService uiService,
+			MetricsService metricsService,
 			StaticService staticService,
 			ErrorHandler errorHandler) {
 		log.trace("Creating Helidon server");
 		return WebServer.builder()
 				.host(Configs.PROXY_HOST.getRequired())
 				.port(Configs.PROXY_PORT.getRequired())
-				.connectionConfig(connectionConfig())
+				.connectionOptions(connectionOptions())
+				.protocolsDiscoverServices(false)
+				.protocols(protocols())
 				.routing(routing -> routing(
-						routing, indexService, proxyService, loginService, uiService, staticService, errorHandler))
+						routing,
+						indexService,
+						proxyService,
+						loginService,
+						uiService,
+						metricsService,
+						staticService,
+						errorHandler))
 				.build();
 	}
 
-	private ConnectionConfig connectionConfig() {
+	private SocketOptions connectionOptions() {
+		return SocketOptions.builder().socketKeepAlive(true).tcpNoDelay(true).build();
+	}
 
-		return ConnectionConfig.builder().keepAlive(true).tcpNoDelay(true).build();
+	/**
+	 * HTTP/1.1 is always served. HTTP/2 cleartext is only served if enabled, both as an upgrade from HTTP/1.1 and with
+	 * prior knowledge, so clients can multiplex many concurrent requests over a single connection.
+	 */
+	private List<ProtocolConfig> protocols() {
+		var protocols = new ArrayList<ProtocolConfig>();
+		protocols.add(Http1Config.create());
+		if (Configs.PROXY_HTTP2_ENABLED.getRequired()) {
+			log.info("Serving HTTP/2 cleartext");
+			protocols.add(Http2Config.builder()
+					.maxConcurrentStreams(Configs.PROXY_HTTP2_MAX_CONCURRENT_STREAMS.getRequired())
+					.initialWindowSize(Configs.PROXY_HTTP2_INITIAL_WINDOW_SIZE.getRequired())
+					.build());
+		}
+		return protocols;
 	}
 
 	private void routing(
@@ -50,11 +82,13 @@ public class HelidonModule {
 			ProxyService proxyService,
 			LoginService loginService,
 			UiService uiService,
+			MetricsService metricsService,
 			StaticService staticService,
 			ErrorHandler errorHandler) {
 		routing.register(indexService)
 				.register(EveEsiProxy.BASE_PATH, uiService)
 				.register(EveEsiProxy.BASE_PATH, loginService)
+				.register(EveEsiProxy.BASE_PATH, metricsService)
 				.any(EveEsiProxy.BASE_PATH + "/*", StandardHandlers.HTTP_METHOD_NOT_ALLOWED)
 				.register(staticService)
 				.register(proxyService)
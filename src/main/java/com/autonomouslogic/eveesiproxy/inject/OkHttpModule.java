@@ -3,15 +3,23 @@ package com.autonomouslogic.eveesiproxy.inject;
 import com.autonomouslogic.eveesiproxy.configs.Configs;
 import com.autonomouslogic.eveesiproxy.http.AuthorizationNoStoreCacheInterceptor;
 import com.autonomouslogic.eveesiproxy.http.CacheStatusInterceptor;
+import com.autonomouslogic.eveesiproxy.http.CacheStoreInterceptor;
 import com.autonomouslogic.eveesiproxy.http.ErrorLimitInterceptor;
+import com.autonomouslogic.eveesiproxy.http.GroupConcurrencyInterceptor;
 import com.autonomouslogic.eveesiproxy.http.LoggingInterceptor;
+import com.autonomouslogic.eveesiproxy.http.MemoryCacheInterceptor;
+import com.autonomouslogic.eveesiproxy.http.PagePrefetchInterceptor;
 import com.autonomouslogic.eveesiproxy.http.PrivateCacheInterceptor;
 import com.autonomouslogic.eveesiproxy.http.ProxyKeyInterceptor;
+import com.autonomouslogic.eveesiproxy.http.RateLimitBucketInterceptor;
 import com.autonomouslogic.eveesiproxy.http.RateLimitGroupStopInterceptor;
 import com.autonomouslogic.eveesiproxy.http.RateLimitInterceptor;
+import com.autonomouslogic.eveesiproxy.http.RefreshAheadInterceptor;
 import com.autonomouslogic.eveesiproxy.http.ServerRetryInterceptor;
+import com.autonomouslogic.eveesiproxy.http.StaleCacheInterceptor;
 import com.autonomouslogic.eveesiproxy.http.TokenAuthorizationInterceptor;
 import com.autonomouslogic.eveesiproxy.http.UserAgentInterceptor;
+import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
 import dagger.Module;
 import dagger.Provides;
 import jakarta.inject.Singleton;
@@ -21,6 +29,7 @@ import java.nio.file.Files;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
 import okhttp3.Cache;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 
 @Module
@@ -40,32 +49,50 @@ public class OkHttpModule {
 			TokenAuthorizationInterceptor tokenAuthorizationInterceptor,
 			PrivateCacheInterceptor privateCacheInterceptor,
 			AuthorizationNoStoreCacheInterceptor authorizationNoStoreCacheInterceptor,
-			ServerRetryInterceptor serverRetryInterceptor) {
+			ServerRetryInterceptor serverRetryInterceptor,
+			MemoryCacheInterceptor memoryCacheInterceptor,
+			RateLimitBucketInterceptor rateLimitBucketInterceptor,
+			GroupConcurrencyInterceptor groupConcurrencyInterceptor,
+			CacheStoreInterceptor cacheStoreInterceptor,
+			RefreshAheadInterceptor refreshAheadInterceptor,
+			StaleCacheInterceptor staleCacheInterceptor,
+			PagePrefetchInterceptor pagePrefetchInterceptor) {
 		log.trace("Creating HTTP client");
-		var client = new OkHttpClient.Builder()
+		// Async calls run on virtual threads and concurrency is limited per rate limit group by
+		// GroupConcurrencyInterceptor, so the dispatcher itself doesn't limit anything.
+		var dispatcher = new Dispatcher(VirtualThreads.EXECUTOR);
+		dispatcher.setMaxRequests(Integer.MAX_VALUE);
+		dispatcher.setMaxRequestsPerHost(Integer.MAX_VALUE);
+		var builder = new OkHttpClient.Builder()
 				.followRedirects(false)
 				.followSslRedirects(false)
 				.connectTimeout(Configs.HTTP_CONNECT_TIMEOUT.getRequired())
 				.readTimeout(Configs.HTTP_READ_TIMEOUT.getRequired())
 				.writeTimeout(Configs.HTTP_WRITE_TIMEOUT.getRequired())
 				.callTimeout(Configs.HTTP_CALL_TIMEOUT.getRequired())
-				.cache(cache)
+				.dispatcher(dispatcher);
+		if (CacheStoreInterceptor.isOkHttpCacheEnabled()) {
+			builder.cache(cache);
+		}
+		var client = builder.addInterceptor(pagePrefetchInterceptor)
 				.addInterceptor(cacheStatusInterceptor)
+				.addInterceptor(refreshAheadInterceptor)
+				.addInterceptor(staleCacheInterceptor)
 				.addInterceptor(userAgentInterceptor)
 				.addInterceptor(tokenAuthorizationInterceptor)
 				.addInterceptor(proxyKeyInterceptor)
+				.addInterceptor(memoryCacheInterceptor)
+				.addInterceptor(cacheStoreInterceptor)
 				.addInterceptor(serverRetryInterceptor)
 				.addInterceptor(errorLimitInterceptor)
 				.addInterceptor(rateLimitGroupStopInterceptor)
 				.addInterceptor(loggingInterceptor)
 				.addNetworkInterceptor(rateLimitInterceptor)
+				.addNetworkInterceptor(rateLimitBucketInterceptor)
+				.addNetworkInterceptor(groupConcurrencyInterceptor)
 				.addNetworkInterceptor(authorizationNoStoreCacheInterceptor)
 				.addNetworkInterceptor(privateCacheInterceptor)
 				.build();
-		var dispatcher = client.dispatcher();
-		var maxConcurrentRequests = Configs.HTTP_MAX_CONCURRENT_REQUESTS.getRequired();
-		dispatcher.setMaxRequests(maxConcurrentRequests);
-		dispatcher.setMaxRequestsPerHost(maxConcurrentRequests);
 		return client;
 	}
 
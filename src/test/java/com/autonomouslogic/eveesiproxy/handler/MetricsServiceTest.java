@@ -0,0 +1,90 @@
+package com.autonomouslogic.eveesiproxy.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.autonomouslogic.eveesiproxy.EveEsiProxy;
+import com.autonomouslogic.eveesiproxy.http.PageConcurrencyLimiter;
+import com.autonomouslogic.eveesiproxy.test.DaggerTestComponent;
+import com.autonomouslogic.eveesiproxy.test.TestHttpUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.helidon.http.HeaderNames;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import lombok.SneakyThrows;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MetricsServiceTest {
+	@Inject
+	EveEsiProxy proxy;
+
+	@Inject
+	@Named("test")
+	OkHttpClient client;
+
+	@Inject
+	ObjectMapper objectMapper;
+
+	@Inject
+	PageConcurrencyLimiter pageConcurrencyLimiter;
+
+	@Inject
+	protected MetricsServiceTest() {}
+
+	@BeforeEach
+	@SneakyThrows
+	void setup() {
+		DaggerTestComponent.builder().build().inject(this);
+		proxy.start();
+	}
+
+	@AfterEach
+	@SneakyThrows
+	void stop() {
+		proxy.stop();
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldRespondWithMetrics() {
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esiproxy/metrics")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals("application/json", proxyResponse.header(HeaderNames.CONTENT_TYPE.lowerCase()));
+			var json = objectMapper.readTree(proxyResponse.body().string());
+			assertTrue(json.get("pageConcurrency").isObject());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldIncludePageConcurrency() {
+		pageConcurrencyLimiter.getLimit(
+				new Request.Builder().url("http://localhost/esi").build());
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esiproxy/metrics")) {
+			var json = objectMapper.readTree(proxyResponse.body().string());
+			var limit = json.get("pageConcurrency").get(PageConcurrencyLimiter.UNGROUPED);
+			assertEquals(8, limit.get("limit").asInt());
+			assertEquals(0, limit.get("inFlight").asInt());
+			assertTrue(limit.get("latencyMillis").isNull());
+		}
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esiproxy")) {
+			assertEquals(200, proxyResponse.code());
+			var html = proxyResponse.body().string();
+			assertTrue(html.contains("Page concurrency"));
+			assertTrue(html.contains(PageConcurrencyLimiter.UNGROUPED));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldDenyNonGetRequests() {
+		var proxyResponse = TestHttpUtils.callProxy(client, proxy, "POST", "/esiproxy/metrics", "body");
+		TestHttpUtils.assertResponse(proxyResponse, 405);
+	}
+}
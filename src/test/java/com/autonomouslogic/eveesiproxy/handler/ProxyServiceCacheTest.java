@@ -1,9 +1,13 @@
 package com.autonomouslogic.eveesiproxy.handler;
 
 import static com.autonomouslogic.eveesiproxy.test.TestConstants.MOCK_ESI_PORT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.autonomouslogic.eveesiproxy.EveEsiProxy;
+import com.autonomouslogic.eveesiproxy.http.ErrorLimitInterceptor;
 import com.autonomouslogic.eveesiproxy.http.HttpDate;
 import com.autonomouslogic.eveesiproxy.http.ProxyHeaderNames;
 import com.autonomouslogic.eveesiproxy.http.ProxyHeaderValues;
@@ -13,9 +17,14 @@ import io.helidon.http.HeaderNames;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 import java.time.ZonedDateTime;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
+import okhttp3.Cache;
 import okhttp3.OkHttpClient;
 import okhttp3.mockwebserver.MockWebServer;
 import org.junit.jupiter.api.AfterEach;
@@ -42,6 +51,9 @@ public class ProxyServiceCacheTest {
 	@Named("test")
 	OkHttpClient client;
 
+	@Inject
+	Cache cache;
+
 	MockWebServer mockEsi;
 
 	@Inject
@@ -368,4 +380,396 @@ public class ProxyServiceCacheTest {
 		// A second request to the ESI should be made.
 		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
 	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_MEMORY_CACHE_MAX_SIZE", value = "1048576")
+	@SneakyThrows
+	void shouldServeHotResponsesFromMemory() {
+		var expires = HttpDate.format(ZonedDateTime.now().plusSeconds(60));
+		TestHttpUtils.enqueueResponse(
+				mockEsi,
+				200,
+				"Test body",
+				Map.of(
+						HeaderNames.CACHE_CONTROL.lowerCase(),
+						"public, max-age=60",
+						HeaderNames.EXPIRES.lowerCase(),
+						expires));
+
+		// First proxy response.
+		try (var proxyResponse1 = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse1,
+					200,
+					"Test body",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_MISS));
+		}
+
+		// ESI request.
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+
+		// Clear the disk cache, so the response can only come from memory.
+		cache.evictAll();
+
+		// Second proxy response should be served from memory.
+		try (var proxyResponse2 = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse2,
+					200,
+					"Test body",
+					Map.of(
+							ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS,
+							ProxyHeaderValues.CACHE_STATUS_HIT,
+							HeaderNames.EXPIRES.lowerCase(),
+							expires));
+		}
+
+		// A second request to the ESI should never be made.
+		TestHttpUtils.assertNoMoreRequests(mockEsi);
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_MEMORY_CACHE_MAX_SIZE", value = "1048576")
+	@SneakyThrows
+	void shouldExpireResponsesFromMemory() {
+		var expires = ZonedDateTime.now().plusSeconds(2);
+		TestHttpUtils.enqueueResponse(
+				mockEsi, 200, "Test body 0", Map.of(HeaderNames.EXPIRES.lowerCase(), HttpDate.format(expires)));
+		TestHttpUtils.enqueueResponse(mockEsi, 200, "Test body 1");
+
+		// First proxy response.
+		try (var proxyResponse1 = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse1,
+					200,
+					"Test body 0",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_MISS));
+		}
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+		cache.evictAll();
+
+		// Wait for the response to expire.
+		while (ZonedDateTime.now().isBefore(expires.plusSeconds(1))) {
+			Thread.sleep(10);
+		}
+
+		// Second proxy response should come from the ESI.
+		try (var proxyResponse2 = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse2,
+					200,
+					"Test body 1",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_MISS));
+		}
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_MEMORY_CACHE_MAX_SIZE", value = "1048576")
+	@SneakyThrows
+	void shouldNotStoreAuthedResponsesInMemory() {
+		var expiresString = HttpDate.format(ZonedDateTime.now().plusSeconds(60));
+		for (int i = 0; i < 2; i++) {
+			TestHttpUtils.enqueueResponse(
+					mockEsi,
+					200,
+					"Test body " + i,
+					Map.of(
+							HeaderNames.CACHE_CONTROL.lowerCase(),
+							"public, max-age=60",
+							HeaderNames.EXPIRES.lowerCase(),
+							expiresString));
+		}
+
+		for (int i = 0; i < 2; i++) {
+			try (var proxyResponse = TestHttpUtils.callProxy(
+					client, proxy, "GET", "/esi", Map.of(HeaderNames.AUTHORIZATION.lowerCase(), "some-token"))) {
+				TestHttpUtils.assertResponse(
+						proxyResponse,
+						200,
+						"Test body " + i,
+						Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_MISS));
+			}
+			assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+		}
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_REFRESH_AHEAD_MIN_REQUESTS", value = "2")
+	@SetEnvironmentVariable(key = "HTTP_REFRESH_AHEAD_WINDOW", value = "PT10S")
+	@SetEnvironmentVariable(key = "HTTP_REFRESH_AHEAD_LEAD", value = "PT1S")
+	@SneakyThrows
+	void shouldRefreshHotResponsesAheadOfExpiry() {
+		var expires = ZonedDateTime.now().plusSeconds(3);
+		TestHttpUtils.enqueueResponse(
+				mockEsi,
+				200,
+				"Test body",
+				Map.of(
+						HeaderNames.EXPIRES.lowerCase(),
+						HttpDate.format(expires),
+						HeaderNames.ETAG.lowerCase(),
+						"hash1"));
+		TestHttpUtils.enqueueResponse(
+				mockEsi,
+				304,
+				Map.of(
+						HeaderNames.EXPIRES.lowerCase(),
+						HttpDate.format(ZonedDateTime.now().plusSeconds(60))));
+
+		// Two requests make the response hot.
+		for (int i = 0; i < 2; i++) {
+			try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+				TestHttpUtils.assertResponse(proxyResponse, 200, "Test body");
+			}
+		}
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+
+		// The response should be revalidated before it expires.
+		var esiRequest = mockEsi.takeRequest(5, TimeUnit.SECONDS);
+		assertNotNull(esiRequest);
+		assertTrue(ZonedDateTime.now().isBefore(expires));
+		TestHttpUtils.assertRequest(esiRequest, "GET", "/esi", Map.of(HeaderNames.IF_NONE_MATCH.lowerCase(), "hash1"));
+
+		// Wait for the original response to expire.
+		while (ZonedDateTime.now().isBefore(expires.plusSeconds(1))) {
+			Thread.sleep(10);
+		}
+
+		// The refreshed response should be served from the cache.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse,
+					200,
+					"Test body",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_HIT));
+		}
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_REFRESH_AHEAD_MIN_REQUESTS", value = "2")
+	@SetEnvironmentVariable(key = "HTTP_REFRESH_AHEAD_WINDOW", value = "PT10S")
+	@SetEnvironmentVariable(key = "HTTP_REFRESH_AHEAD_LEAD", value = "PT1S")
+	@SneakyThrows
+	void shouldRefreshEachVariantAheadOfExpirySeparately() {
+		var expires = HttpDate.format(ZonedDateTime.now().plusSeconds(3));
+		for (int i = 0; i < 3; i++) {
+			TestHttpUtils.enqueueResponse(
+					mockEsi,
+					200,
+					"Test body",
+					Map.of(
+							HeaderNames.EXPIRES.lowerCase(),
+							expires,
+							HeaderNames.VARY.lowerCase(),
+							HeaderNames.ACCEPT_LANGUAGE.lowerCase()));
+		}
+
+		// Only the German variant is requested often enough to be refreshed, even though it wasn't requested last.
+		for (var language : List.of("de", "de", "en")) {
+			try (var proxyResponse = TestHttpUtils.callProxy(
+					client, proxy, "GET", "/esi", Map.of(HeaderNames.ACCEPT_LANGUAGE.lowerCase(), language))) {
+				TestHttpUtils.assertResponse(proxyResponse, 200, "Test body");
+			}
+		}
+		assertEquals("de", TestHttpUtils.takeRequest(mockEsi).getHeader(HeaderNames.ACCEPT_LANGUAGE.lowerCase()));
+		assertEquals("en", TestHttpUtils.takeRequest(mockEsi).getHeader(HeaderNames.ACCEPT_LANGUAGE.lowerCase()));
+
+		var refresh = mockEsi.takeRequest(5, TimeUnit.SECONDS);
+		assertNotNull(refresh);
+		assertEquals("de", refresh.getHeader(HeaderNames.ACCEPT_LANGUAGE.lowerCase()));
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_STALE_WHILE_REVALIDATE_ROUTES", value = "^/esi$")
+	@SneakyThrows
+	void shouldServeStaleResponsesWhileRevalidating() {
+		var expires = ZonedDateTime.now().plusSeconds(1);
+		TestHttpUtils.enqueueResponse(
+				mockEsi,
+				200,
+				"Test body",
+				Map.of(
+						HeaderNames.EXPIRES.lowerCase(),
+						HttpDate.format(expires),
+						HeaderNames.ETAG.lowerCase(),
+						"hash1"));
+
+		// First proxy response.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse,
+					200,
+					"Test body",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_MISS));
+		}
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+
+		// Wait for the response to expire.
+		while (ZonedDateTime.now().isBefore(expires.plusSeconds(1))) {
+			Thread.sleep(10);
+		}
+		TestHttpUtils.enqueueResponse(
+				mockEsi,
+				200,
+				"Test body new",
+				Map.of(
+						HeaderNames.EXPIRES.lowerCase(),
+						HttpDate.format(ZonedDateTime.now().plusSeconds(60))));
+
+		// The stale response should be served immediately.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse,
+					200,
+					"Test body",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_STALE));
+			assertTrue(Long.parseLong(proxyResponse.header(HeaderNames.AGE.lowerCase())) >= 1);
+		}
+
+		// And revalidated in the background.
+		var esiRequest = mockEsi.takeRequest(5, TimeUnit.SECONDS);
+		assertNotNull(esiRequest);
+		TestHttpUtils.assertRequest(esiRequest, "GET", "/esi", Map.of(HeaderNames.IF_NONE_MATCH.lowerCase(), "hash1"));
+		Thread.sleep(500);
+
+		// The next response should be the updated one.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse,
+					200,
+					"Test body new",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_HIT));
+		}
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_STALE_IF_ERROR_ROUTES", value = "^/esi$")
+	@SetEnvironmentVariable(key = "HTTP_MAX_TRIES", value = "3")
+	@SneakyThrows
+	void shouldServeStaleResponsesOnServerErrors() {
+		var expires = ZonedDateTime.now().plusSeconds(1);
+		TestHttpUtils.enqueueResponse(
+				mockEsi,
+				200,
+				"Test body",
+				Map.of(
+						HeaderNames.EXPIRES.lowerCase(),
+						HttpDate.format(expires),
+						HeaderNames.ETAG.lowerCase(),
+						"hash1"));
+
+		// First proxy response.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse,
+					200,
+					"Test body",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_MISS));
+		}
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+
+		// Wait for the response to expire.
+		while (ZonedDateTime.now().isBefore(expires.plusSeconds(1))) {
+			Thread.sleep(10);
+		}
+		TestHttpUtils.enqueueResponse(mockEsi, 503, "Error");
+
+		// The stale response should be served instead of the error.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse,
+					200,
+					"Test body",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_STALE));
+			assertNotNull(proxyResponse.header(HeaderNames.AGE.lowerCase()));
+		}
+
+		// The error should not have been retried.
+		TestHttpUtils.assertRequest(
+				TestHttpUtils.takeRequest(mockEsi),
+				"GET",
+				"/esi",
+				Map.of(HeaderNames.IF_NONE_MATCH.lowerCase(), "hash1"));
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_STALE_WHILE_REVALIDATE_ROUTES", value = "^/esi$")
+	@SetEnvironmentVariable(key = "HTTP_MAX_TRIES", value = "3")
+	@SneakyThrows
+	void shouldNotRetryStaleLookupsWhenNothingIsCached() {
+		TestHttpUtils.enqueueResponse(
+				mockEsi,
+				200,
+				"Test body",
+				Map.of(
+						HeaderNames.EXPIRES.lowerCase(),
+						HttpDate.format(ZonedDateTime.now().plusSeconds(60))));
+
+		// The cold request should go straight to the ESI, without retrying the cache lookup.
+		var start = System.currentTimeMillis();
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse,
+					200,
+					"Test body",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_MISS));
+		}
+		var time = System.currentTimeMillis() - start;
+		assertTrue(time < 1000, "Cold request took " + time + " ms");
+		TestHttpUtils.assertRequest(TestHttpUtils.takeRequest(mockEsi), "GET", "/esi");
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_STALE_WHILE_REVALIDATE_ROUTES", value = "^/esi$")
+	@SneakyThrows
+	void shouldServeStaleResponsesDuringErrorLimitStops() {
+		var expires = ZonedDateTime.now().plusSeconds(1);
+		TestHttpUtils.enqueueResponse(
+				mockEsi, 200, "Test body", Map.of(HeaderNames.EXPIRES.lowerCase(), HttpDate.format(expires)));
+
+		// First proxy response.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(proxyResponse, 200, "Test body");
+		}
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+
+		// Wait for the response to expire.
+		while (ZonedDateTime.now().isBefore(expires.plusSeconds(1))) {
+			Thread.sleep(10);
+		}
+
+		// Close the error limit gate.
+		TestHttpUtils.enqueueResponse(
+				mockEsi, 420, ErrorLimitInterceptor.ESI_420_TEXT, Map.of(ErrorLimitInterceptor.ERROR_LIMIT_RESET, "2"));
+		TestHttpUtils.enqueueResponse(mockEsi, 200, "Other body");
+		TestHttpUtils.enqueueResponse(mockEsi, 200, "Other body");
+		var stopped = CompletableFuture.runAsync(() -> {
+			try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/other")) {
+				TestHttpUtils.assertResponse(proxyResponse, 200, "Other body");
+			}
+		});
+		TestHttpUtils.assertRequest(mockEsi.takeRequest(5, TimeUnit.SECONDS), "GET", "/other");
+
+		// The stale response should be served without waiting for the gate.
+		var start = System.currentTimeMillis();
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(
+					proxyResponse,
+					200,
+					"Test body",
+					Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS, ProxyHeaderValues.CACHE_STATUS_STALE));
+		}
+		var time = System.currentTimeMillis() - start;
+		assertTrue(time < 1000, "Stale request took " + time + " ms");
+		assertFalse(stopped.isDone());
+
+		// The stopped request and the revalidation are sent once the gate opens.
+		stopped.get(10, TimeUnit.SECONDS);
+		var paths = Set.of(
+				mockEsi.takeRequest(10, TimeUnit.SECONDS).getPath(),
+				mockEsi.takeRequest(10, TimeUnit.SECONDS).getPath());
+		assertEquals(Set.of("/other", "/esi"), paths);
+		Thread.sleep(500);
+	}
 }
@@ -4,6 +4,7 @@ import static com.autonomouslogic.eveesiproxy.test.TestConstants.MOCK_ESI_PORT;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import com.autonomouslogic.eveesiproxy.EveEsiProxy;
 import com.autonomouslogic.eveesiproxy.test.DaggerTestComponent;
@@ -12,9 +13,16 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import lombok.SneakyThrows;
@@ -24,6 +32,7 @@ import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -179,7 +188,321 @@ public class ProxyServiceCursorTest {
 		}
 	}
 
-	private ObjectNode createObjectWithCursor(String beforeCursor, String afterCursor, List<String> records) {
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_STREAM_MERGED_PAGES", value = "true")
+	void shouldStreamCursorPages() {
+		mockEsi.setDispatcher(dispatcher);
+		var firstPage = createObjectWithCursor("before-1", "after-1", List.of("a", "b"));
+		firstPage.put("total", 5);
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(firstPage.toString()));
+		dispatcher.addBeforeResponse("before-1", createObjectWithCursor("before-2", "after-2", List.of("c", "d")));
+		dispatcher.addBeforeResponse("before-2", createObjectWithCursor(null, "after-3", List.of("e")));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals("application/json", proxyResponse.header("Content-Type"));
+			var json = (ObjectNode) objectMapper.readTree(proxyResponse.body().string());
+			assertEquals("[\"a\",\"b\",\"c\",\"d\",\"e\"]", json.get("records").toString());
+			assertEquals(5, json.get("total").asInt());
+			assertEquals("{\"after\":\"after-1\"}", json.get("cursor").toString());
+		}
+		for (int i = 0; i < 3; i++) {
+			assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_STREAM_MERGED_PAGES", value = "true")
+	void shouldBufferCursorPagesWithSeveralArrays() {
+		mockEsi.setDispatcher(dispatcher);
+		var firstPage = createObjectWithCursor("before-1", "after-1", List.of("a"));
+		firstPage.set("others", objectMapper.valueToTree(List.of("x")));
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(firstPage.toString()));
+		var secondPage = createObjectWithCursor(null, "after-2", List.of("b"));
+		secondPage.set("others", objectMapper.valueToTree(List.of("y")));
+		dispatcher.addBeforeResponse("before-1", secondPage);
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+			var json = (ObjectNode) objectMapper.readTree(proxyResponse.body().string());
+			assertEquals("[\"a\",\"b\"]", json.get("records").toString());
+			assertEquals("[\"x\",\"y\"]", json.get("others").toString());
+			assertEquals("after-1", json.get("cursor").get("after").asText());
+		}
+		for (int i = 0; i < 2; i++) {
+			assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_STREAM_MERGED_PAGES", value = "true")
+	void shouldAbortStreamedCursorPagesIfThereAreErrors() {
+		mockEsi.setDispatcher(dispatcher);
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(createObjectWithCursor("before-1", "after-1", List.of("a"))
+						.toString()));
+		dispatcher.addBeforeResponse("before-1", new MockResponse().setResponseCode(400));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+			assertThrows(IOException.class, () -> proxyResponse.body().string());
+		}
+		for (int i = 0; i < 2; i++) {
+			assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_SPECULATIVE_CURSORS", value = "true")
+	void shouldFetchKnownCursorsInParallel() {
+		mockEsi.setDispatcher(dispatcher);
+		dispatcher.setCursorDelayMillis(200);
+		dispatcher.addBeforeResponse("before-1", createObjectWithCursor("before-2", "after-2", List.of("b")));
+		dispatcher.addBeforeResponse("before-2", createObjectWithCursor("before-3", "after-3", List.of("c")));
+		dispatcher.addBeforeResponse("before-3", createObjectWithCursor(null, "after-4", List.of("d")));
+
+		for (int i = 0; i < 2; i++) {
+			dispatcher.setFirstResponse(new MockResponse()
+					.setResponseCode(200)
+					.addHeader("Content-Type", "application/json")
+					.setBody(createObjectWithCursor("before-1", "after-1", List.of("a"))
+							.toString()));
+			try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+				assertEquals(200, proxyResponse.code());
+				var json =
+						(ObjectNode) objectMapper.readTree(proxyResponse.body().string());
+				assertEquals("[\"a\",\"b\",\"c\",\"d\"]", json.get("records").toString());
+				assertEquals("after-1", json.get("cursor").get("after").asText());
+			}
+			for (int j = 0; j < 4; j++) {
+				assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+			}
+			// The first walk follows the cursors one at a time, the second requests them all at once.
+			assertEquals(i == 0 ? 1 : 3, dispatcher.getMaxInFlight().getAndSet(0));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_CURSOR_STATE_MAX_SIZE", value = "1048576")
+	void shouldSyncIncrementallyFromStoredAfterCursor() {
+		mockEsi.setDispatcher(dispatcher);
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(createObjectWithCursor("before-1", "after-1", List.of(record(3, 1), record(2, 1)))
+						.toString()));
+		dispatcher.addBeforeResponse("before-1", createObjectWithCursor(null, "after-2", List.of(record(1, 1))));
+		dispatcher.addAfterResponse(
+				"after-1", createObjectWithCursor("before-3", "after-3", List.of(record(4, 1), record(3, 2))));
+		dispatcher.addAfterResponse("after-3", createObjectWithCursor("before-4", "after-4", List.of(record(5, 1))));
+		dispatcher.addAfterResponse(
+				"after-4",
+				new MockResponse()
+						.setResponseCode(200)
+						.addHeader("Content-Type", "application/json")
+						.addHeader("X-Esi-Request-Id", "request-4")
+						.addHeader("ETag", "\"page-etag\"")
+						.setBody(createObjectWithCursor("before-5", "after-4", List.of())
+								.toString()));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+			var json = (ObjectNode) objectMapper.readTree(proxyResponse.body().string());
+			assertEquals(
+					objectMapper.valueToTree(List.of(record(3, 1), record(2, 1), record(1, 1))), json.get("records"));
+			assertEquals("after-1", json.get("cursor").get("after").asText());
+		}
+		TestHttpUtils.takeRequest(mockEsi);
+		TestHttpUtils.takeRequest(mockEsi);
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+			var json = (ObjectNode) objectMapper.readTree(proxyResponse.body().string());
+			assertEquals(
+					objectMapper.valueToTree(
+							List.of(record(5, 1), record(4, 1), record(3, 2), record(2, 1), record(1, 1))),
+					json.get("records"));
+			assertEquals("after-4", json.get("cursor").get("after").asText());
+			assertNull(json.get("cursor").get("before"));
+			assertEquals("request-4", proxyResponse.header("X-Esi-Request-Id"));
+			assertNull(proxyResponse.header("ETag"));
+		}
+		for (var after : List.of("after-1", "after-3", "after-4")) {
+			var esiRequest = TestHttpUtils.takeRequest(mockEsi);
+			assertEquals(after, esiRequest.getRequestUrl().queryParameter("after"));
+			assertNull(esiRequest.getRequestUrl().queryParameter("before"));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_CURSOR_STATE_MAX_SIZE", value = "1048576")
+	void shouldKeepCursorStateForEachVariant() {
+		mockEsi.setDispatcher(dispatcher);
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(createObjectWithCursor(null, "after-1", List.of(record(1, 1)))
+						.toString()));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+		}
+		assertNull(TestHttpUtils.takeRequest(mockEsi).getRequestUrl().queryParameter("after"));
+
+		// A request for another language walks the full history, rather than getting the stored records.
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(createObjectWithCursor(null, "after-de", List.of(record(1, 2)))
+						.toString()));
+		try (var proxyResponse =
+				TestHttpUtils.callProxy(client, proxy, "GET", "/cursor", Map.of("Accept-Language", "de"))) {
+			assertEquals(200, proxyResponse.code());
+			var json = (ObjectNode) objectMapper.readTree(proxyResponse.body().string());
+			assertEquals(objectMapper.valueToTree(List.of(record(1, 2))), json.get("records"));
+		}
+		var esiRequest = TestHttpUtils.takeRequest(mockEsi);
+		assertNull(esiRequest.getRequestUrl().queryParameter("after"));
+		assertEquals("de", esiRequest.getHeader("Accept-Language"));
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_CURSOR_STATE_MAX_SIZE", value = "1048576")
+	@SetEnvironmentVariable(key = "HTTP_CURSOR_STATE_DIR", value = "build/tmp/cursor-state-test")
+	void shouldRestoreCursorStateAfterRestart() {
+		restartWithEmptyDir("build/tmp/cursor-state-test");
+
+		mockEsi.setDispatcher(dispatcher);
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(createObjectWithCursor(null, "after-1", List.of(record(1, 1)))
+						.toString()));
+		dispatcher.addAfterResponse("after-1", createObjectWithCursor("before-2", "after-1", List.of()));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+		}
+		assertNull(TestHttpUtils.takeRequest(mockEsi).getRequestUrl().queryParameter("after"));
+
+		proxy.stop();
+		DaggerTestComponent.builder().build().inject(this);
+		proxy.start();
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+			var json = (ObjectNode) objectMapper.readTree(proxyResponse.body().string());
+			assertEquals(objectMapper.valueToTree(List.of(record(1, 1))), json.get("records"));
+			assertEquals("after-1", json.get("cursor").get("after").asText());
+		}
+		assertEquals(
+				"after-1", TestHttpUtils.takeRequest(mockEsi).getRequestUrl().queryParameter("after"));
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_CURSOR_STATE_MAX_SIZE", value = "1048576")
+	@SetEnvironmentVariable(key = "HTTP_CURSOR_STATE_DIR", value = "build/tmp/cursor-state-authed-test")
+	void shouldKeepAuthedCursorStateAcrossTokensWithoutSnapshots() {
+		restartWithEmptyDir("build/tmp/cursor-state-authed-test");
+
+		mockEsi.setDispatcher(dispatcher);
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(createObjectWithCursor(null, "after-1", List.of(record(1, 1)))
+						.toString()));
+		dispatcher.addAfterResponse("after-1", createObjectWithCursor("before-2", "after-1", List.of()));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(
+				client, proxy, "GET", "/cursor", Map.of("Authorization", "Bearer " + createToken(1, "token-1")))) {
+			assertEquals(200, proxyResponse.code());
+		}
+		assertNull(TestHttpUtils.takeRequest(mockEsi).getRequestUrl().queryParameter("after"));
+
+		// A refreshed token for the same character continues from the stored state.
+		try (var proxyResponse = TestHttpUtils.callProxy(
+				client, proxy, "GET", "/cursor", Map.of("Authorization", "Bearer " + createToken(1, "token-2")))) {
+			assertEquals(200, proxyResponse.code());
+			var json = (ObjectNode) objectMapper.readTree(proxyResponse.body().string());
+			assertEquals(objectMapper.valueToTree(List.of(record(1, 1))), json.get("records"));
+		}
+		assertEquals(
+				"after-1", TestHttpUtils.takeRequest(mockEsi).getRequestUrl().queryParameter("after"));
+
+		// The authed state isn't written to disk.
+		assertEquals(List.of(), listSnapshots("build/tmp/cursor-state-authed-test"));
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_CURSOR_STATE_MAX_SIZE", value = "10")
+	@SetEnvironmentVariable(key = "HTTP_CURSOR_STATE_DIR", value = "build/tmp/cursor-state-evict-test")
+	void shouldDeleteSnapshotsWhenCursorStateIsEvicted() {
+		restartWithEmptyDir("build/tmp/cursor-state-evict-test");
+
+		mockEsi.setDispatcher(dispatcher);
+		dispatcher.setFirstResponse(new MockResponse()
+				.setResponseCode(200)
+				.addHeader("Content-Type", "application/json")
+				.setBody(createObjectWithCursor(null, "after-1", List.of(record(1, 1)))
+						.toString()));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/cursor")) {
+			assertEquals(200, proxyResponse.code());
+		}
+		assertNull(TestHttpUtils.takeRequest(mockEsi).getRequestUrl().queryParameter("after"));
+
+		// The state is larger than the maximum size, so it's evicted along with its snapshot.
+		assertEquals(List.of(), listSnapshots("build/tmp/cursor-state-evict-test"));
+	}
+
+	/**
+	 * Restarts the proxy with an empty directory, as the proxy started in setup() may already have read state left by
+	 * an earlier run.
+	 */
+	@SneakyThrows
+	private void restartWithEmptyDir(String dir) {
+		proxy.stop();
+		FileUtils.deleteDirectory(new File(dir));
+		DaggerTestComponent.builder().build().inject(this);
+		proxy.start();
+	}
+
+	private static List<String> listSnapshots(String dir) {
+		var files = new File(dir).list((d, name) -> name.endsWith(".json"));
+		return files == null ? List.of() : List.of(files);
+	}
+
+	private static String createToken(long characterId, String id) {
+		var encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString("{}".getBytes(StandardCharsets.UTF_8))
+				+ "."
+				+ encoder.encodeToString(("{\"sub\":\"CHARACTER:EVE:" + characterId + "\",\"jti\":\"" + id + "\"}")
+						.getBytes(StandardCharsets.UTF_8))
+				+ ".signature";
+	}
+
+	private static Map<String, Integer> record(int id, int version) {
+		return Map.of("id", id, "version", version);
+	}
+
+	private ObjectNode createObjectWithCursor(String beforeCursor, String afterCursor, List<?> records) {
 		var pageJson = objectMapper.createObjectNode();
 		pageJson.set("records", objectMapper.valueToTree(records));
 
@@ -198,10 +521,23 @@ public class ProxyServiceCursorTest {
 	}
 
 	private static class CursorDispatcher extends Dispatcher {
+		private final AtomicReference<MockResponse> firstResponse = new AtomicReference<>();
+
+		private final Map<String, MockResponse> beforeResponses = new ConcurrentHashMap<>();
+
+		private final Map<String, MockResponse> afterResponses = new ConcurrentHashMap<>();
+
 		@Setter
-		private MockResponse firstResponse;
+		private volatile long cursorDelayMillis = 0;
 
-		private final Map<String, MockResponse> beforeResponses = new HashMap<>();
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		@Getter
+		private final AtomicInteger maxInFlight = new AtomicInteger();
+
+		void setFirstResponse(MockResponse response) {
+			firstResponse.set(response);
+		}
 
 		void addBeforeResponse(@NonNull String cursor, @NonNull MockResponse response) {
 			beforeResponses.put(cursor, response);
@@ -216,24 +552,43 @@ public class ProxyServiceCursorTest {
 							.setBody(node.toString()));
 		}
 
+		void addAfterResponse(@NonNull String cursor, @NonNull MockResponse response) {
+			afterResponses.put(cursor, response);
+		}
+
+		void addAfterResponse(@NonNull String cursor, @NonNull ObjectNode node) {
+			afterResponses.put(
+					cursor,
+					new MockResponse()
+							.setResponseCode(200)
+							.addHeader("Content-Type", "application/json")
+							.setBody(node.toString()));
+		}
+
 		@NotNull
 		@Override
 		public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) throws InterruptedException {
-			if (firstResponse != null) {
-				var r = firstResponse;
-				firstResponse = null;
-				return r;
+			var first = firstResponse.getAndSet(null);
+			if (first != null) {
+				return first;
 			}
 
 			var url = recordedRequest.getRequestUrl();
-			var cursor = url.queryParameter("before");
+			var after = url.queryParameter("after");
+			var cursor = after != null ? after : url.queryParameter("before");
 
-			var response = beforeResponses.get(cursor);
+			var response = cursor == null ? null : (after != null ? afterResponses : beforeResponses).get(cursor);
 			if (response == null) {
 				var msg = "No response configured for cursor: %s".formatted(cursor);
 				log.error(msg);
 				return new MockResponse().setResponseCode(404).setBody(msg);
 			}
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(cursorDelayMillis);
+			} finally {
+				inFlight.decrementAndGet();
+			}
 			return response;
 		}
 	}
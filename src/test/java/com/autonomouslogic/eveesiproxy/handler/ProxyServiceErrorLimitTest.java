@@ -14,6 +14,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import lombok.SneakyThrows;
@@ -26,6 +27,7 @@ import okhttp3.mockwebserver.RecordedRequest;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
@@ -188,4 +190,32 @@ public class ProxyServiceErrorLimitTest {
 			assertEquals("success body", response.body().string());
 		}
 	}
+
+	@Test
+	@SneakyThrows
+	void shouldResendRequestBodiesAfterStop() {
+		TestHttpUtils.enqueueResponse(mockEsi, 420, Map.of(ErrorLimitInterceptor.ERROR_LIMIT_RESET, "0"));
+		TestHttpUtils.enqueueResponse(mockEsi, 200, "success body");
+
+		try (var response = TestHttpUtils.callProxy(client, proxy, "POST", "/esi", "request body")) {
+			TestHttpUtils.assertResponse(response, 200, "success body");
+		}
+
+		TestHttpUtils.assertRequest(TestHttpUtils.takeRequest(mockEsi), "POST", "/esi", null, "request body");
+		TestHttpUtils.assertRequest(TestHttpUtils.takeRequest(mockEsi), "POST", "/esi", null, "request body");
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_REQUEST_REPLAY_BUFFER_SIZE", value = "4")
+	void shouldNotResendRequestBodiesLargerThanTheReplayBuffer() {
+		TestHttpUtils.enqueueResponse(mockEsi, 420, Map.of(ErrorLimitInterceptor.ERROR_LIMIT_RESET, "0"));
+
+		try (var response = TestHttpUtils.callProxy(client, proxy, "POST", "/esi", "request body")) {
+			assertEquals(500, response.code());
+		}
+
+		TestHttpUtils.assertRequest(TestHttpUtils.takeRequest(mockEsi), "POST", "/esi", null, "request body");
+		TestHttpUtils.assertNoMoreRequests(mockEsi);
+	}
 }
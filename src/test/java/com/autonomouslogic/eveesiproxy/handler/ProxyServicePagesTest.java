@@ -1,30 +1,45 @@
 package com.autonomouslogic.eveesiproxy.handler;
 
 import static com.autonomouslogic.eveesiproxy.test.TestConstants.MOCK_ESI_PORT;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.autonomouslogic.eveesiproxy.EveEsiProxy;
 import com.autonomouslogic.eveesiproxy.http.HttpDate;
 import com.autonomouslogic.eveesiproxy.http.ProxyHeaderNames;
+import com.autonomouslogic.eveesiproxy.http.ProxyHeaderValues;
 import com.autonomouslogic.eveesiproxy.test.DaggerTestComponent;
 import com.autonomouslogic.eveesiproxy.test.TestHttpUtils;
+import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.helidon.http.HeaderNames;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
+import okhttp3.Cache;
 import okhttp3.OkHttpClient;
 import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
@@ -57,6 +72,9 @@ public class ProxyServicePagesTest {
 	@Inject
 	ObjectMapper objectMapper;
 
+	@Inject
+	Cache cache;
+
 	MockWebServer mockEsi;
 
 	@Inject
@@ -87,8 +105,24 @@ public class ProxyServicePagesTest {
 
 	@ParameterizedTest
 	@ValueSource(strings = {"null", "", "0", "-1"})
-	@SneakyThrows
 	void shouldFetchAllSubPages(String page) {
+		testFetchAllSubPages(page);
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_STREAM_MERGED_PAGES", value = "true")
+	void shouldStreamAllSubPages() {
+		testFetchAllSubPages("null");
+	}
+
+	@Test
+	@SetEnvironmentVariable(key = "HTTP_ADAPTIVE_CONCURRENT_PAGES", value = "true")
+	void shouldFetchAllSubPagesWithAdaptiveConcurrency() {
+		testFetchAllSubPages("null");
+	}
+
+	@SneakyThrows
+	private void testFetchAllSubPages(String page) {
 		List<ArrayNode> pagesJson = new ArrayList<>();
 		for (int i = 0; i < 10; i++) {
 			pagesJson.add(createPage(i));
@@ -248,4 +282,457 @@ public class ProxyServicePagesTest {
 		}
 		assertTrue(i <= 10, "i:" + i);
 	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MAX_CONCURRENT_PAGES", value = "4")
+	@SetEnvironmentVariable(key = "HTTP_STREAM_MERGED_PAGES", value = "true")
+	void shouldAbortStreamedPagesIfThereAreErrors() {
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) throws InterruptedException {
+				var url = recordedRequest.getRequestUrl();
+				var page = Optional.ofNullable(url.queryParameter("page"))
+						.map(Integer::parseInt)
+						.orElse(1);
+				if (page == 5) {
+					return new MockResponse().setResponseCode(400).setHeader("x-server-header", "error");
+				} else {
+					return new MockResponse()
+							.setResponseCode(200)
+							.addHeader(ProxyHeaderNames.X_PAGES, "10")
+							.setBody("[{\"order_id\":1}]");
+				}
+			}
+		});
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertThrows(IOException.class, () -> proxyResponse.body().string());
+		}
+
+		RecordedRequest esiRequest;
+		int i = 0;
+		while ((esiRequest = TestHttpUtils.takeRequest(mockEsi)) != null) {
+			i++;
+		}
+		assertTrue(i <= 10, "i:" + i);
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_PREFETCH_PAGES", value = "true")
+	void shouldPrefetchPages() {
+		var pages = new AtomicInteger(5);
+		var awaitPrefetch = new AtomicBoolean(false);
+		var prefetchSeen = new AtomicBoolean(false);
+		var page2Latch = new CountDownLatch(1);
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) throws InterruptedException {
+				var page = Optional.ofNullable(recordedRequest.getRequestUrl().queryParameter("page"))
+						.map(Integer::parseInt)
+						.orElse(1);
+				if (page == 2) {
+					page2Latch.countDown();
+				}
+				if (page == 1 && awaitPrefetch.get()) {
+					// Page 2 should be requested before page 1 is returned.
+					prefetchSeen.set(page2Latch.await(5, TimeUnit.SECONDS));
+				}
+				if (page > pages.get()) {
+					return new MockResponse().setResponseCode(404).setBody("Page does not exist");
+				}
+				return new MockResponse()
+						.setResponseCode(200)
+						.addHeader(ProxyHeaderNames.X_PAGES, Integer.toString(pages.get()))
+						.setBody("[{\"order_id\":" + page + "}]");
+			}
+		});
+
+		// First request learns the number of pages.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3},{\"order_id\":4},{\"order_id\":5}]",
+					proxyResponse.body().string());
+		}
+		assertEquals(5, drainRequests());
+
+		// Second request prefetches the pages.
+		awaitPrefetch.set(true);
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3},{\"order_id\":4},{\"order_id\":5}]",
+					proxyResponse.body().string());
+		}
+		assertEquals(5, drainRequests());
+		assertTrue(prefetchSeen.get());
+		awaitPrefetch.set(false);
+
+		// Third request has fewer pages, the prefetched extra pages are discarded.
+		pages.set(2);
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":2}]", proxyResponse.body().string());
+		}
+		var requests = drainRequests();
+		assertTrue(requests >= 2 && requests <= 5, "requests:" + requests);
+	}
+
+	@SneakyThrows
+	private int drainRequests() {
+		return takeAllRequests().size();
+	}
+
+	@SneakyThrows
+	private List<RecordedRequest> takeAllRequests() {
+		var requests = new ArrayList<RecordedRequest>();
+		RecordedRequest request;
+		while ((request = mockEsi.takeRequest(500, TimeUnit.MILLISECONDS)) != null) {
+			requests.add(request);
+		}
+		return requests;
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_COALESCE_REQUESTS", value = "true")
+	void shouldShareInFlightPagesWithExplicitPageRequests() {
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) {
+				var page = Optional.ofNullable(recordedRequest.getRequestUrl().queryParameter("page"))
+						.map(Integer::parseInt)
+						.orElse(1);
+				var response = new MockResponse()
+						.setResponseCode(200)
+						.addHeader(ProxyHeaderNames.X_PAGES, "3")
+						.setBody("[{\"order_id\":" + page + "}]");
+				if (page > 1) {
+					response.setHeadersDelay(1, TimeUnit.SECONDS);
+				}
+				return response;
+			}
+		});
+
+		var merged = CompletableFuture.supplyAsync(
+				() -> {
+					try (var proxyResponse =
+							TestHttpUtils.callProxy(client, proxy, "GET", "/esi?datasource=tranquility")) {
+						return proxyResponse.body().string();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				},
+				VirtualThreads.EXECUTOR);
+		Thread.sleep(500);
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi?page=3&datasource=tranquility")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals("[{\"order_id\":3}]", proxyResponse.body().string());
+		}
+		assertEquals("[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3}]", merged.join());
+
+		assertEquals(3, drainRequests());
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MERGED_PAGES_CACHE_MAX_SIZE", value = "1048576")
+	void shouldServeMergedPagesFromCache() {
+		mockEsi.setDispatcher(mergedPagesDispatcher(true));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3}]",
+					proxyResponse.body().string());
+			assertNull(proxyResponse.header(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS));
+		}
+		assertEquals(3, drainRequests());
+
+		// The merged response should be served without looking up any pages.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3}]",
+					proxyResponse.body().string());
+			assertEquals("3", proxyResponse.header(ProxyHeaderNames.X_EVE_ESI_PAGES_FETCHED));
+			assertEquals(
+					ProxyHeaderValues.CACHE_STATUS_HIT,
+					proxyResponse.header(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS));
+		}
+		assertEquals(0, drainRequests());
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MERGED_PAGES_CACHE_MAX_SIZE", value = "1048576")
+	@SetEnvironmentVariable(key = "HTTP_COMPRESSED_PASSTHROUGH", value = "true")
+	void shouldCompressMergedPagesOnce() {
+		mockEsi.setDispatcher(mergedPagesDispatcher(true));
+		var expected = "[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3}]";
+		var gzip = Map.of(HeaderNames.ACCEPT_ENCODING.lowerCase(), "gzip");
+
+		byte[] compressed;
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi", gzip)) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals("gzip", proxyResponse.header(HeaderNames.CONTENT_ENCODING.lowerCase()));
+			assertEquals("Accept-Encoding", proxyResponse.header(HeaderNames.VARY.lowerCase()));
+			compressed = proxyResponse.body().bytes();
+			assertEquals(expected, gunzip(compressed));
+		}
+		assertEquals(3, drainRequests());
+
+		// The compressed body is cached along with the merged response.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi", gzip)) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals("gzip", proxyResponse.header(HeaderNames.CONTENT_ENCODING.lowerCase()));
+			assertArrayEquals(compressed, proxyResponse.body().bytes());
+			assertEquals(
+					ProxyHeaderValues.CACHE_STATUS_HIT,
+					proxyResponse.header(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS));
+		}
+		try (var proxyResponse = TestHttpUtils.callProxy(
+				client, proxy, "GET", "/esi", Map.of(HeaderNames.ACCEPT_ENCODING.lowerCase(), "identity"))) {
+			assertEquals(200, proxyResponse.code());
+			assertNull(proxyResponse.header(HeaderNames.CONTENT_ENCODING.lowerCase()));
+			assertEquals("Accept-Encoding", proxyResponse.header(HeaderNames.VARY.lowerCase()));
+			assertEquals(expected, proxyResponse.body().string());
+		}
+		assertEquals(0, drainRequests());
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_STREAM_MERGED_PAGES", value = "true")
+	@SetEnvironmentVariable(key = "HTTP_COMPRESSED_PASSTHROUGH", value = "true")
+	void shouldCompressStreamedPages() {
+		mockEsi.setDispatcher(mergedPagesDispatcher(true));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(
+				client, proxy, "GET", "/esi", Map.of(HeaderNames.ACCEPT_ENCODING.lowerCase(), "gzip"))) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals("gzip", proxyResponse.header(HeaderNames.CONTENT_ENCODING.lowerCase()));
+			assertEquals("Accept-Encoding", proxyResponse.header(HeaderNames.VARY.lowerCase()));
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3}]",
+					gunzip(proxyResponse.body().bytes()));
+		}
+		assertEquals(3, drainRequests());
+	}
+
+	@SneakyThrows
+	private static String gunzip(byte[] compressed) {
+		try (var in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MERGED_PAGES_CACHE_MAX_SIZE", value = "1048576")
+	void shouldNotCacheMergedPagesWithoutExpiry() {
+		mockEsi.setDispatcher(mergedPagesDispatcher(false));
+
+		for (int i = 0; i < 2; i++) {
+			try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+				assertEquals(200, proxyResponse.code());
+				assertEquals(
+						"[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3}]",
+						proxyResponse.body().string());
+				assertNull(proxyResponse.header(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS));
+			}
+			assertEquals(3, drainRequests());
+		}
+	}
+
+	private static Dispatcher mergedPagesDispatcher(boolean expires) {
+		return new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) {
+				var page = Optional.ofNullable(recordedRequest.getRequestUrl().queryParameter("page"))
+						.map(Integer::parseInt)
+						.orElse(1);
+				var response = new MockResponse()
+						.setResponseCode(200)
+						.addHeader(ProxyHeaderNames.X_PAGES, "3")
+						.setBody("[{\"order_id\":" + page + "}]");
+				if (expires) {
+					response.addHeader(
+							HeaderNames.EXPIRES.lowerCase(),
+							HttpDate.format(ZonedDateTime.now().plusMinutes(5)));
+				}
+				return response;
+			}
+		};
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MERGED_PAGES_CACHE_MAX_SIZE", value = "1048576")
+	void shouldRevalidateExpiredMergedPages() {
+		var dispatcher = new VersionedPagesDispatcher(3);
+		mockEsi.setDispatcher(dispatcher);
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3}]",
+					proxyResponse.body().string());
+		}
+		assertEquals(3, drainRequests());
+
+		// Clear the disk cache, so any conditional requests must come from the merged cache.
+		cache.evictAll();
+		Thread.sleep(1500);
+		dispatcher.update(2);
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":200},{\"order_id\":3}]",
+					proxyResponse.body().string());
+			assertEquals("3", proxyResponse.header(ProxyHeaderNames.X_EVE_ESI_PAGES_FETCHED));
+		}
+		var requests = takeAllRequests();
+		assertEquals(3, requests.size());
+		for (var request : requests) {
+			assertNotNull(request.getHeader(HeaderNames.IF_NONE_MATCH.lowerCase()));
+		}
+
+		// The revalidated response should be cached again.
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":200},{\"order_id\":3}]",
+					proxyResponse.body().string());
+			assertEquals(
+					ProxyHeaderValues.CACHE_STATUS_HIT,
+					proxyResponse.header(ProxyHeaderNames.X_EVE_ESI_PROXY_CACHE_STATUS));
+		}
+		assertEquals(0, drainRequests());
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MERGED_PAGES_CACHE_MAX_SIZE", value = "1048576")
+	void shouldFetchAllPagesIfPageCountChangesWhenRevalidating() {
+		var dispatcher = new VersionedPagesDispatcher(3);
+		mockEsi.setDispatcher(dispatcher);
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(
+					"[{\"order_id\":1},{\"order_id\":2},{\"order_id\":3}]",
+					proxyResponse.body().string());
+		}
+		assertEquals(3, drainRequests());
+
+		Thread.sleep(1500);
+		dispatcher.setPages(4);
+		dispatcher.update(1);
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals(
+					"[{\"order_id\":100},{\"order_id\":2},{\"order_id\":3},{\"order_id\":4}]",
+					proxyResponse.body().string());
+			assertEquals("4", proxyResponse.header(ProxyHeaderNames.X_EVE_ESI_PAGES_FETCHED));
+		}
+		drainRequests();
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MAX_CONCURRENT_REQUESTS", value = "1")
+	void shouldLetInteractiveRequestsAheadOfBulkPages() {
+		var paths = new CopyOnWriteArrayList<String>();
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) throws InterruptedException {
+				assertNull(recordedRequest.getHeader(ProxyHeaderNames.X_EVE_ESI_PROXY_PRIORITY));
+				paths.add(recordedRequest.getPath());
+				Thread.sleep(50);
+				if (recordedRequest.getPath().startsWith("/wallet")) {
+					return new MockResponse().setResponseCode(200).setBody("{}");
+				}
+				return new MockResponse()
+						.setResponseCode(200)
+						.addHeader(ProxyHeaderNames.X_PAGES, "10")
+						.setBody("[]");
+			}
+		});
+
+		var bulk = CompletableFuture.runAsync(
+				() -> {
+					try (var proxyResponse = TestHttpUtils.callProxy(
+							client,
+							proxy,
+							"GET",
+							"/pages",
+							Map.of(ProxyHeaderNames.X_EVE_ESI_PROXY_PRIORITY, ProxyHeaderValues.PRIORITY_BULK))) {
+						assertEquals(200, proxyResponse.code());
+					}
+				},
+				VirtualThreads.EXECUTOR);
+		while (paths.size() < 3) {
+			Thread.sleep(5);
+		}
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/wallet")) {
+			assertEquals(200, proxyResponse.code());
+		}
+		var walletIndex = paths.indexOf("/wallet");
+		bulk.join();
+
+		assertEquals(11, paths.size());
+		assertTrue(walletIndex <= 4, "wallet request was number " + (walletIndex + 1) + ": " + paths);
+		drainRequests();
+	}
+
+	/**
+	 * Serves pages with ETags which change when a page is updated, responding 304 to matching conditional requests.
+	 */
+	private static class VersionedPagesDispatcher extends Dispatcher {
+		private final Map<Integer, Integer> versions = new ConcurrentHashMap<>();
+		private volatile int pages;
+
+		VersionedPagesDispatcher(int pages) {
+			this.pages = pages;
+		}
+
+		void setPages(int pages) {
+			this.pages = pages;
+		}
+
+		void update(int page) {
+			versions.merge(page, 1, Integer::sum);
+		}
+
+		@NotNull
+		@Override
+		public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) {
+			var page = Optional.ofNullable(recordedRequest.getRequestUrl().queryParameter("page"))
+					.map(Integer::parseInt)
+					.orElse(1);
+			if (page > pages) {
+				return new MockResponse().setResponseCode(404);
+			}
+			var version = versions.getOrDefault(page, 0);
+			var etag = "\"page-" + page + "-" + version + "\"";
+			var response = new MockResponse()
+					.addHeader(ProxyHeaderNames.X_PAGES, Integer.toString(pages))
+					.addHeader(HeaderNames.CACHE_CONTROL.lowerCase(), "public, max-age=1")
+					.addHeader(HeaderNames.ETAG.lowerCase(), etag);
+			if (etag.equals(recordedRequest.getHeader(HeaderNames.IF_NONE_MATCH.lowerCase()))) {
+				return response.setResponseCode(304);
+			}
+			var orderId = version == 0 ? page : page * 100;
+			return response.setResponseCode(200).setBody("[{\"order_id\":" + orderId + "}]");
+		}
+	}
 }
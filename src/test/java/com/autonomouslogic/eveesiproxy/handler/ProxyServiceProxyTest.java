@@ -1,31 +1,46 @@
 package com.autonomouslogic.eveesiproxy.handler;
 
 import static com.autonomouslogic.eveesiproxy.test.TestConstants.MOCK_ESI_PORT;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 
 import com.autonomouslogic.eveesiproxy.EveEsiProxy;
+import com.autonomouslogic.eveesiproxy.http.ContentEncoding;
 import com.autonomouslogic.eveesiproxy.http.ProxyHeaderNames;
 import com.autonomouslogic.eveesiproxy.http.ProxyHeaderValues;
 import com.autonomouslogic.eveesiproxy.test.DaggerTestComponent;
 import com.autonomouslogic.eveesiproxy.test.TestHttpUtils;
+import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 import java.util.zip.GZIPOutputStream;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 import okio.Buffer;
+import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -146,6 +161,241 @@ public class ProxyServiceProxyTest {
 		assertEquals("gzip", esiRequest.getHeader("Accept-Encoding"));
 	}
 
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_COMPRESSED_PASSTHROUGH", value = "true")
+	void shouldRelayCompressedResponsesAsIs() {
+		var body = "Test response";
+		var compressedBody = new ByteArrayOutputStream();
+		try (var out = new GZIPOutputStream(compressedBody)) {
+			out.write(body.getBytes());
+		}
+		for (int i = 0; i < 2; i++) {
+			mockEsi.enqueue(new MockResponse()
+					.setResponseCode(200)
+					.setBody(new Buffer().write(compressedBody.toByteArray()))
+					.addHeader("Content-Encoding", "gzip"));
+		}
+
+		try (var proxyResponse =
+				TestHttpUtils.callProxy(client, proxy, "GET", "/esi", Map.of("Accept-Encoding", "deflate, gzip, br"))) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals("gzip", proxyResponse.header("Content-Encoding"));
+			assertEquals("Accept-Encoding", proxyResponse.header("Vary"));
+			assertArrayEquals(compressedBody.toByteArray(), proxyResponse.body().bytes());
+		}
+		assertEquals("gzip", mockEsi.takeRequest().getHeader("Accept-Encoding"));
+
+		// Clients not accepting gzip still get the response decompressed.
+		try (var proxyResponse =
+				TestHttpUtils.callProxy(client, proxy, "GET", "/esi", Map.of("Accept-Encoding", "identity"))) {
+			TestHttpUtils.assertResponse(proxyResponse, 200, body);
+			assertNull(proxyResponse.header("Content-Encoding"));
+			assertEquals("Accept-Encoding", proxyResponse.header("Vary"));
+		}
+		assertEquals("gzip", mockEsi.takeRequest().getHeader("Accept-Encoding"));
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "PROXY_HTTP2_ENABLED", value = "true")
+	void shouldServeHttp2WithPriorKnowledge() {
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) {
+				return new MockResponse().setResponseCode(200).setBody("Test response");
+			}
+		});
+		var h2Client = client.newBuilder()
+				.protocols(List.of(Protocol.H2_PRIOR_KNOWLEDGE))
+				.build();
+
+		var futures = IntStream.range(0, 16)
+				.mapToObj(i -> CompletableFuture.runAsync(
+						() -> {
+							try (var proxyResponse = TestHttpUtils.callProxy(h2Client, proxy, "GET", "/esi")) {
+								TestHttpUtils.assertResponse(proxyResponse, 200, "Test response");
+								assertEquals(Protocol.H2_PRIOR_KNOWLEDGE, proxyResponse.protocol());
+							}
+						},
+						VirtualThreads.EXECUTOR))
+				.toArray(CompletableFuture[]::new);
+		CompletableFuture.allOf(futures).join();
+
+		// All the requests are multiplexed over a single connection.
+		assertEquals(1, h2Client.connectionPool().connectionCount());
+		for (int i = 0; i < 16; i++) {
+			assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "PROXY_HTTP2_ENABLED", value = "true")
+	void shouldUpgradeToHttp2() {
+		assertEquals(HttpClient.Version.HTTP_2, callProxyWithUpgrade());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldNotServeHttp2ByDefault() {
+		assertEquals(HttpClient.Version.HTTP_1_1, callProxyWithUpgrade());
+	}
+
+	/**
+	 * Calls the proxy with the JDK client, which asks to upgrade cleartext connections to HTTP/2.
+	 * @return the protocol version the response was served with
+	 */
+	@SneakyThrows
+	private HttpClient.Version callProxyWithUpgrade() {
+		TestHttpUtils.enqueueResponse(mockEsi, 200, "Test response");
+		try (var upgradeClient =
+				HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build()) {
+			var response = upgradeClient.send(
+					HttpRequest.newBuilder(URI.create("http://localhost:" + proxy.port() + "/esi"))
+							.build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, response.statusCode());
+			assertEquals("Test response", response.body());
+			assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+			return response.version();
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {0, 1, 16 * 1024 - 1, 16 * 1024, 16 * 1024 + 1, 1024 * 1024})
+	@SneakyThrows
+	void shouldRelayBodiesOfAnySize(int size) {
+		var body = "x".repeat(size);
+		TestHttpUtils.enqueueResponse(mockEsi, 200, body);
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			TestHttpUtils.assertResponse(proxyResponse, 200, body);
+		}
+
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {0, 1, 16 * 1024 - 1, 16 * 1024, 16 * 1024 + 1, 1024 * 1024})
+	@SneakyThrows
+	void shouldRelayCompressedBodiesOfAnySize(int size) {
+		var body = "x".repeat(size);
+		var compressedBody = new ByteArrayOutputStream();
+		try (var out = new GZIPOutputStream(compressedBody)) {
+			out.write(body.getBytes());
+		}
+		mockEsi.enqueue(new MockResponse()
+				.setResponseCode(200)
+				.setBody(new Buffer().write(compressedBody.toByteArray()))
+				.addHeader("Content-Encoding", "gzip"));
+
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi")) {
+			assertEquals(200, proxyResponse.code());
+			assertEquals(body, proxyResponse.body().string());
+			assertNull(proxyResponse.header("Content-Encoding"));
+			// Larger bodies are streamed, so may be chunked.
+			var contentLength = proxyResponse.header("Content-Length");
+			if (size < 16 * 1024 || contentLength != null) {
+				assertEquals(Integer.toString(size), contentLength);
+			}
+		}
+
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+	}
+
+	/**
+	 * Bodies of unknown length, such as transparently decompressed ones, should be relayed as they're read, rather than
+	 * being read in full first.
+	 * The ESI holds back the rest of the body, so the start of it can only reach the client if it's streamed.
+	 */
+	@Test
+	@SneakyThrows
+	void shouldRelayUnknownLengthBodiesBeforeFullyRead() {
+		var body = new byte[256 * 1024];
+		new Random(0).nextBytes(body);
+		mockEsi.enqueue(new MockResponse()
+				.setResponseCode(200)
+				.setBody(new Buffer().write(ContentEncoding.gzip(body)))
+				.addHeader("Content-Encoding", "gzip")
+				.throttleBody(128 * 1024, 60, TimeUnit.SECONDS));
+
+		var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/esi");
+		try (proxyResponse) {
+			assertEquals(200, proxyResponse.code());
+			var in = proxyResponse.body().byteStream();
+			var start = CompletableFuture.supplyAsync(() -> readNBytes(in, 32 * 1024), VirtualThreads.EXECUTOR)
+					.get(10, TimeUnit.SECONDS);
+			assertArrayEquals(Arrays.copyOf(body, start.length), start);
+		}
+
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+	}
+
+	@SneakyThrows
+	private static byte[] readNBytes(InputStream in, int len) {
+		return in.readNBytes(len);
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_COALESCE_REQUESTS", value = "true")
+	void shouldCoalesceIdenticalConcurrentRequests() {
+		mockEsi.enqueue(new MockResponse()
+				.setResponseCode(200)
+				.setHeadersDelay(500, TimeUnit.MILLISECONDS)
+				.setBody("Test response"));
+
+		var responses = callProxyConcurrently(10, i -> Map.of("Authorization", "Bearer token"));
+		for (var response : responses) {
+			assertEquals("Test response", response);
+		}
+		assertEquals(1, mockEsi.getRequestCount());
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_COALESCE_REQUESTS", value = "true")
+	void shouldNotCoalesceRequestsForDifferentAuthorization() {
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) {
+				return new MockResponse()
+						.setResponseCode(200)
+						.setHeadersDelay(500, TimeUnit.MILLISECONDS)
+						.setBody(recordedRequest.getHeader("Authorization"));
+			}
+		});
+
+		var responses = callProxyConcurrently(4, i -> Map.of("Authorization", "Bearer token-" + (i % 2)));
+		for (int i = 0; i < responses.size(); i++) {
+			assertEquals("Bearer token-" + (i % 2), responses.get(i));
+		}
+		assertEquals(2, mockEsi.getRequestCount());
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+		assertNotNull(TestHttpUtils.takeRequest(mockEsi));
+	}
+
+	private List<String> callProxyConcurrently(int n, IntFunction<Map<String, String>> headers) {
+		var futures = IntStream.range(0, n)
+				.mapToObj(i -> CompletableFuture.supplyAsync(
+						() -> {
+							try (var proxyResponse =
+									TestHttpUtils.callProxy(client, proxy, "GET", "/esi", headers.apply(i))) {
+								assertEquals(200, proxyResponse.code());
+								return proxyResponse.body().string();
+							} catch (IOException e) {
+								throw new RuntimeException(e);
+							}
+						},
+						VirtualThreads.EXECUTOR))
+				.toList();
+		return futures.stream().map(CompletableFuture::join).toList();
+	}
+
 	@Test
 	@SneakyThrows
 	void shouldNotFollowRedirects() {
@@ -6,16 +6,20 @@ import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.autonomouslogic.eveesiproxy.EveEsiProxy;
+import com.autonomouslogic.eveesiproxy.http.RateLimitBucketInterceptor;
 import com.autonomouslogic.eveesiproxy.http.RateLimitGroupStopInterceptor;
 import com.autonomouslogic.eveesiproxy.test.DaggerTestComponent;
 import com.autonomouslogic.eveesiproxy.test.TestHttpUtils;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
@@ -404,4 +408,137 @@ public class ProxyServiceRateLimitGroupTest {
 		var totalRequests = mockEsi.getRequestCount();
 		assertEquals(3, totalRequests, "Total requests to mock server should be 3 (2 for contacts, 1 for calendar)");
 	}
+
+	@Test
+	@SneakyThrows
+	void shouldOnlyStopRequestsForSameCharacter() {
+		var requestOrder = new ConcurrentLinkedQueue<String>();
+		var character1Count = new AtomicInteger(0);
+		var token1 = createToken(1);
+		var token2 = createToken(2);
+
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest request) {
+				var authorization = request.getHeader("Authorization");
+				if (("Bearer " + token1).equals(authorization)) {
+					var count = character1Count.incrementAndGet();
+					requestOrder.add("character1-" + count);
+					if (count == 1) {
+						return new MockResponse()
+								.setResponseCode(429)
+								.setHeader("x-ratelimit-group", "char-social")
+								.setHeader(RateLimitGroupStopInterceptor.RETRY_AFTER, 2);
+					}
+				} else {
+					requestOrder.add("character2");
+				}
+				return new MockResponse().setResponseCode(200).setBody("contacts");
+			}
+		});
+
+		var task1 = CompletableFuture.runAsync(() -> {
+			try (var response = TestHttpUtils.callProxy(
+					client,
+					proxy,
+					"GET",
+					"/latest/characters/1/contacts",
+					Map.of("Authorization", "Bearer " + token1))) {
+				assertEquals(200, response.code());
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		var task2 = CompletableFuture.runAsync(() -> {
+			try {
+				while (character1Count.get() == 0) {
+					Thread.sleep(10);
+				}
+				Thread.sleep(200);
+				try (var response = TestHttpUtils.callProxy(
+						client,
+						proxy,
+						"GET",
+						"/latest/characters/2/contacts",
+						Map.of("Authorization", "Bearer " + token2))) {
+					assertEquals(200, response.code());
+				}
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		CompletableFuture.allOf(task1, task2).get(10, TimeUnit.SECONDS);
+
+		// The second character isn't blocked by the first character's 429.
+		assertEquals(List.of("character1-1", "character2", "character1-2"), new ArrayList<>(requestOrder));
+	}
+
+	private static String createToken(long characterId) {
+		var encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString("{}".getBytes(StandardCharsets.UTF_8))
+				+ "."
+				+ encoder.encodeToString(
+						("{\"sub\":\"CHARACTER:EVE:" + characterId + "\"}").getBytes(StandardCharsets.UTF_8))
+				+ ".signature";
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldPaceRequestsToAvoidRunningOutOfTokens() {
+		var requestTimes = new ArrayList<Long>();
+		var limitedCount = new AtomicInteger(0);
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest request) {
+				// Simulates a floating window of 4 tokens per 2 seconds, with 2 tokens per request.
+				int remaining;
+				synchronized (requestTimes) {
+					var now = System.currentTimeMillis();
+					requestTimes.removeIf(time -> time <= now - 2000);
+					if (requestTimes.size() >= 2) {
+						limitedCount.incrementAndGet();
+						return new MockResponse()
+								.setResponseCode(429)
+								.setHeader("x-ratelimit-group", "char-social")
+								.setHeader(RateLimitGroupStopInterceptor.RETRY_AFTER, 1);
+					}
+					requestTimes.add(now);
+					remaining = 4 - requestTimes.size() * 2;
+				}
+				return new MockResponse()
+						.setResponseCode(200)
+						.setHeader("x-ratelimit-group", "char-social")
+						.setHeader(RateLimitBucketInterceptor.X_RATELIMIT_LIMIT, "4/2s")
+						.setHeader(RateLimitBucketInterceptor.X_RATELIMIT_REMAINING, remaining)
+						.setHeader(RateLimitBucketInterceptor.X_RATELIMIT_USED, 2)
+						.setBody("contacts");
+			}
+		});
+
+		// The first response tells the proxy about the limit.
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/latest/characters/12345/contacts")) {
+			assertEquals(200, response.code());
+		}
+		var start = System.currentTimeMillis();
+		var futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 4; i++) {
+			futures.add(CompletableFuture.runAsync(() -> {
+				try (var response =
+						TestHttpUtils.callProxy(client, proxy, "GET", "/latest/characters/12345/contacts")) {
+					assertEquals(200, response.code());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+		var elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(0, limitedCount.get(), "No requests should be rate limited");
+		assertEquals(5, mockEsi.getRequestCount());
+		// One request fits in the first window, then two in each of the following.
+		assertTrue(elapsed >= 3500, "elapsed: " + elapsed);
+	}
 }
@@ -8,8 +8,10 @@ import com.autonomouslogic.eveesiproxy.EveEsiProxy;
 import com.autonomouslogic.eveesiproxy.http.HttpDate;
 import com.autonomouslogic.eveesiproxy.http.ProxyHeaderNames;
 import com.autonomouslogic.eveesiproxy.http.ProxyHeaderValues;
+import com.autonomouslogic.eveesiproxy.http.RateLimitGroupStopInterceptor;
 import com.autonomouslogic.eveesiproxy.test.DaggerTestComponent;
 import com.autonomouslogic.eveesiproxy.test.TestHttpUtils;
+import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
 import com.google.common.base.Stopwatch;
 import io.helidon.http.HeaderNames;
 import jakarta.inject.Inject;
@@ -17,6 +19,9 @@ import jakarta.inject.Named;
 import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 import lombok.SneakyThrows;
@@ -29,6 +34,7 @@ import okhttp3.mockwebserver.RecordedRequest;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
@@ -131,6 +137,142 @@ public class ProxyServiceRateLimitTest {
 		assertTrue(rate > 100.0, "rate:" + rate);
 	}
 
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_TENANT_RATE_LIMIT_PER_S", value = "0.5")
+	void shouldRejectTenantsOverRateQuota() {
+		var toolA =
+				Map.of(HeaderNames.USER_AGENT.lowerCase(), "tool-a", HeaderNames.CACHE_CONTROL.lowerCase(), "no-cache");
+		var toolB =
+				Map.of(HeaderNames.USER_AGENT.lowerCase(), "tool-b", HeaderNames.CACHE_CONTROL.lowerCase(), "no-cache");
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolA)) {
+			assertEquals(200, response.code());
+		}
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolA)) {
+			assertEquals(429, response.code());
+			assertEquals("2", response.header(RateLimitGroupStopInterceptor.RETRY_AFTER));
+		}
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolB)) {
+			assertEquals(200, response.code());
+		}
+		assertEquals(2, mockEsi.getRequestCount());
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_TENANT_RATE_LIMIT_PER_S", value = "0.5")
+	@SetEnvironmentVariable(key = "HTTP_TENANT_RATE_LIMIT_OVERRIDES", value = "tool-b=0, tool-c=0.25")
+	void shouldApplyTenantRateQuotaOverrides() {
+		var toolB =
+				Map.of(HeaderNames.USER_AGENT.lowerCase(), "tool-b", HeaderNames.CACHE_CONTROL.lowerCase(), "no-cache");
+		var toolC =
+				Map.of(HeaderNames.USER_AGENT.lowerCase(), "tool-c", HeaderNames.CACHE_CONTROL.lowerCase(), "no-cache");
+		for (int i = 0; i < 3; i++) {
+			try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolB)) {
+				assertEquals(200, response.code());
+			}
+		}
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolC)) {
+			assertEquals(200, response.code());
+		}
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolC)) {
+			assertEquals(429, response.code());
+			assertEquals("4", response.header(RateLimitGroupStopInterceptor.RETRY_AFTER));
+		}
+		assertEquals(4, mockEsi.getRequestCount());
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_TENANT_MAX_CONCURRENT_REQUESTS", value = "1")
+	void shouldRejectTenantsOverConcurrencyQuota() {
+		var latch = new CountDownLatch(1);
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) throws InterruptedException {
+				latch.await();
+				return new MockResponse().setResponseCode(200);
+			}
+		});
+		var toolA = Map.of(HeaderNames.USER_AGENT.lowerCase(), "tool-a");
+		var toolB = Map.of(HeaderNames.USER_AGENT.lowerCase(), "tool-b");
+		var first = CompletableFuture.supplyAsync(
+				() -> {
+					try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolA)) {
+						return response.code();
+					}
+				},
+				VirtualThreads.EXECUTOR);
+		while (mockEsi.getRequestCount() < 1) {
+			Thread.sleep(5);
+		}
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolA)) {
+			assertEquals(429, response.code());
+			assertEquals("1", response.header(RateLimitGroupStopInterceptor.RETRY_AFTER));
+		}
+		var second = CompletableFuture.supplyAsync(
+				() -> {
+					try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolB)) {
+						return response.code();
+					}
+				},
+				VirtualThreads.EXECUTOR);
+		while (mockEsi.getRequestCount() < 2) {
+			Thread.sleep(5);
+		}
+		latch.countDown();
+		assertEquals(200, first.join());
+		assertEquals(200, second.join());
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", "/status", toolA)) {
+			assertEquals(200, response.code());
+		}
+		assertEquals(3, mockEsi.getRequestCount());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldLetInteractiveRequestsAheadOfBulkRequestsForTheRateLimit() {
+		var paths = new CopyOnWriteArrayList<String>();
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) {
+				paths.add(recordedRequest.getPath());
+				return new MockResponse().setResponseCode(200);
+			}
+		});
+		var bulkHeaders = Map.of(
+				ProxyHeaderNames.X_EVE_ESI_PROXY_PRIORITY,
+				ProxyHeaderValues.PRIORITY_BULK,
+				HeaderNames.CACHE_CONTROL.lowerCase(),
+				"no-cache");
+		var bulk = Stream.iterate(0, i -> i < 16, i -> i + 1)
+				.map(i -> CompletableFuture.runAsync(
+						() -> {
+							var path = "/latest/characters/" + i + "/corporationhistory/";
+							try (var response = TestHttpUtils.callProxy(client, proxy, "GET", path, bulkHeaders)) {
+								assertEquals(200, response.code());
+							}
+						},
+						VirtualThreads.EXECUTOR))
+				.toArray(CompletableFuture[]::new);
+		while (paths.isEmpty()) {
+			Thread.sleep(5);
+		}
+		Thread.sleep(200);
+		var interactivePath = "/latest/characters/100/corporationhistory/";
+		try (var response = TestHttpUtils.callProxy(client, proxy, "GET", interactivePath)) {
+			assertEquals(200, response.code());
+		}
+		var interactiveIndex = paths.indexOf(interactivePath);
+		CompletableFuture.allOf(bulk).join();
+
+		assertEquals(17, paths.size());
+		// Without priorities, the interactive request would wait behind all the bulk requests.
+		assertTrue(interactiveIndex < 8, "interactive request was number " + (interactiveIndex + 1) + ": " + paths);
+	}
+
 	public static Stream<Arguments> rateLimitTests() {
 		return Stream.of(
 				Arguments.of("/latest/characters/1452072530/corporationhistory/", 5.0),
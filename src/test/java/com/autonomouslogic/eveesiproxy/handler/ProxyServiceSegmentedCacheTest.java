@@ -0,0 +1,41 @@
+package com.autonomouslogic.eveesiproxy.handler;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.autonomouslogic.eveesiproxy.http.HttpDate;
+import com.autonomouslogic.eveesiproxy.test.TestHttpUtils;
+import io.helidon.http.HeaderNames;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junitpioneer.jupiter.SetEnvironmentVariable;
+
+/**
+ * Runs the HTTP caching tests against the segmented cache store.
+ */
+@SetEnvironmentVariable(key = "HTTP_CACHE_STORE", value = "segmented")
+public class ProxyServiceSegmentedCacheTest extends ProxyServiceCacheTest {
+	@Test
+	@SneakyThrows
+	void shouldCheckpointCacheStoreWhenStopped() {
+		var expires = HttpDate.format(ZonedDateTime.now().plusSeconds(60));
+		TestHttpUtils.enqueueResponse(
+				mockEsi,
+				200,
+				"Test body",
+				Map.of(HeaderNames.CACHE_CONTROL.lowerCase(), "public", HeaderNames.EXPIRES.lowerCase(), expires));
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", "/checkpointed")) {
+			TestHttpUtils.assertResponse(proxyResponse, 200, "Test body");
+		}
+		TestHttpUtils.takeRequest(mockEsi);
+		proxy.stop();
+
+		var dir = new File(cache.directory(), "segments");
+		var checkpoint = new String(Files.readAllBytes(new File(dir, "index").toPath()), StandardCharsets.ISO_8859_1);
+		assertTrue(checkpoint.contains("/checkpointed"));
+	}
+}
@@ -2,14 +2,22 @@ package com.autonomouslogic.eveesiproxy.handler;
 
 import static com.autonomouslogic.eveesiproxy.test.TestConstants.MOCK_ESI_PORT;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.autonomouslogic.eveesiproxy.EveEsiProxy;
+import com.autonomouslogic.eveesiproxy.http.RateLimitBucketInterceptor;
+import com.autonomouslogic.eveesiproxy.http.RateLimitGroupStopInterceptor;
 import com.autonomouslogic.eveesiproxy.test.DaggerTestComponent;
 import com.autonomouslogic.eveesiproxy.test.TestHttpUtils;
+import com.autonomouslogic.eveesiproxy.util.VirtualThreads;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
@@ -99,6 +107,165 @@ public class ProxyServiceStressTest {
 		assertEquals(p * n, mockEsi.getRequestCount());
 	}
 
+	/**
+	 * Requests to one rate limit group should keep being served while another group is in a 429 storm.
+	 * Requests held back in the stormed group shouldn't use up the capacity for other groups.
+	 * Absolute latencies depend on the machine running the tests, so they're only compared to the stormed group's.
+	 */
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MAX_CONCURRENT_REQUESTS", value = "8")
+	@SetEnvironmentVariable(key = "HTTP_MAX_CONCURRENT_REQUESTS_PER_GROUP", value = "4")
+	@SetEnvironmentVariable(key = "HTTP_STOP_RELEASE_INTERVAL", value = "PT0S")
+	void shouldServeOtherGroupsDuring429Storm() {
+		var stormEnd = new AtomicReference<>(Instant.MAX);
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) throws InterruptedException {
+				if (recordedRequest.getPath().startsWith("/incursions")
+						&& Instant.now().isBefore(stormEnd.get())) {
+					return new MockResponse()
+							.setResponseCode(429)
+							.setHeader(RateLimitGroupStopInterceptor.RETRY_AFTER, "0");
+				}
+				Thread.sleep(10);
+				return new MockResponse().setResponseCode(204);
+			}
+		});
+
+		// Warm up.
+		for (int i = 0; i < 4; i++) {
+			TestHttpUtils.callProxy(client, proxy, "GET", "/status").close();
+		}
+
+		stormEnd.set(Instant.now().plusSeconds(3));
+		var stormedLatencies = new ConcurrentLinkedQueue<Long>();
+		var stormed = Stream.iterate(0, i -> i < 32, i -> i + 1)
+				.map(i -> CompletableFuture.runAsync(
+						() -> timeRequest("/incursions", stormedLatencies), VirtualThreads.EXECUTOR))
+				.toArray(CompletableFuture[]::new);
+		Thread.sleep(200);
+
+		var latencies = new ConcurrentLinkedQueue<Long>();
+		var servedDuringStorm = new AtomicInteger();
+		CompletableFuture.allOf(Stream.iterate(0, j -> j < 4, j -> j + 1)
+						.map(j -> CompletableFuture.runAsync(
+								() -> {
+									while (Instant.now().isBefore(stormEnd.get())) {
+										timeRequest("/status", latencies);
+										if (Instant.now().isBefore(stormEnd.get())) {
+											servedDuringStorm.incrementAndGet();
+										}
+									}
+								},
+								VirtualThreads.EXECUTOR))
+						.toArray(CompletableFuture[]::new))
+				.join();
+		CompletableFuture.allOf(stormed).join();
+
+		// Each request takes around 10 ms, so a few seconds of storm should serve far more than this.
+		assertTrue(servedDuringStorm.get() >= 20, "served during storm: " + servedDuringStorm.get());
+		assertLatenciesBelow("429 storm", latencies, stormedLatencies);
+	}
+
+	/**
+	 * Requests being paced by the rate limit bucket of one group shouldn't use up the capacity for other groups.
+	 * With one global permit, other groups would otherwise wait for the paced requests.
+	 */
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MAX_CONCURRENT_REQUESTS", value = "1")
+	@SetEnvironmentVariable(key = "HTTP_MAX_CONCURRENT_REQUESTS_PER_GROUP", value = "1")
+	void shouldServeOtherGroupsWhilePacing() {
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) {
+				var response = new MockResponse().setResponseCode(204);
+				if (recordedRequest.getPath().startsWith("/incursions")) {
+					// Allows one request a second.
+					response.setHeader(RateLimitBucketInterceptor.X_RATELIMIT_LIMIT, "2/1s")
+							.setHeader(RateLimitBucketInterceptor.X_RATELIMIT_REMAINING, 0)
+							.setHeader(RateLimitBucketInterceptor.X_RATELIMIT_USED, 2);
+				}
+				return response;
+			}
+		});
+
+		// The first response tells the proxy about the limit.
+		TestHttpUtils.callProxy(client, proxy, "GET", "/incursions").close();
+
+		var pacedLatencies = new ConcurrentLinkedQueue<Long>();
+		var paced = Stream.iterate(0, i -> i < 4, i -> i + 1)
+				.map(i -> CompletableFuture.runAsync(
+						() -> timeRequest("/incursions", pacedLatencies), VirtualThreads.EXECUTOR))
+				.toArray(CompletableFuture[]::new);
+		Thread.sleep(200);
+
+		var latencies = new ConcurrentLinkedQueue<Long>();
+		for (int i = 0; i < 20; i++) {
+			timeRequest("/status", latencies);
+		}
+		CompletableFuture.allOf(paced).join();
+
+		assertLatenciesBelow("pacing", latencies, pacedLatencies);
+	}
+
+	private void timeRequest(String path, ConcurrentLinkedQueue<Long> latencies) {
+		var start = System.nanoTime();
+		try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", path)) {
+			assertEquals(204, proxyResponse.code());
+		}
+		latencies.add(Duration.ofNanos(System.nanoTime() - start).toMillis());
+	}
+
+	/**
+	 * Asserts the p99 latency of other groups is well below the median latency of the group being held back.
+	 */
+	private static void assertLatenciesBelow(
+			String scenario, ConcurrentLinkedQueue<Long> latencies, ConcurrentLinkedQueue<Long> heldLatencies) {
+		var sorted = latencies.stream().sorted().toList();
+		var p50 = sorted.get(sorted.size() / 2);
+		var p99 = sorted.get((int) Math.ceil(sorted.size() * 0.99) - 1);
+		var heldP50 = heldLatencies.stream().sorted().toList().get(heldLatencies.size() / 2);
+		log.info(String.format(
+				"Latency for other groups during %s over %s requests: p50 %s ms, p99 %s ms, held group p50 %s ms",
+				scenario, sorted.size(), p50, p99, heldP50));
+		assertTrue(p99 * 4 < heldP50, "p99 " + p99 + " ms, held group p50 " + heldP50 + " ms");
+	}
+
+	@Test
+	@SneakyThrows
+	@SetEnvironmentVariable(key = "HTTP_MAX_CONCURRENT_REQUESTS", value = "2")
+	@SetEnvironmentVariable(key = "HTTP_MAX_CONCURRENT_REQUESTS_PER_GROUP", value = "4")
+	void shouldLimitConcurrentRequestsAcrossGroups() {
+		var inFlight = new AtomicInteger();
+		var maxInFlight = new AtomicInteger();
+		mockEsi.setDispatcher(new Dispatcher() {
+			@NotNull
+			@Override
+			public MockResponse dispatch(@NotNull RecordedRequest recordedRequest) throws InterruptedException {
+				maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				Thread.sleep(50);
+				inFlight.decrementAndGet();
+				return new MockResponse().setResponseCode(204);
+			}
+		});
+		CompletableFuture.allOf(Stream.iterate(0, i -> i < 16, i -> i + 1)
+						.map(i -> CompletableFuture.runAsync(
+								() -> {
+									var path = i % 2 == 0 ? "/status" : "/incursions";
+									try (var proxyResponse = TestHttpUtils.callProxy(client, proxy, "GET", path)) {
+										assertEquals(204, proxyResponse.code());
+									}
+								},
+								VirtualThreads.EXECUTOR))
+						.toArray(CompletableFuture[]::new))
+				.join();
+		assertEquals(2, maxInFlight.get());
+	}
+
 	@Test
 	@SneakyThrows
 	@SetEnvironmentVariable(key = "HTTP_CALL_TIMEOUT", value = "PT0.1S")
@@ -0,0 +1,92 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(10)
+public class AdaptiveConcurrencyLimitTest {
+	private static final Duration LATENCY = Duration.ofMillis(10);
+
+	@Test
+	void shouldIncreaseLimitOnSuccess() {
+		var limit = new AdaptiveConcurrencyLimit(4, 1, 8);
+		assertNull(limit.getLatency());
+		// Increases by 1/limit per success, so a bit more than a full window is needed.
+		for (int i = 0; i < 5; i++) {
+			limit.acquire();
+			limit.release(false, LATENCY);
+		}
+		assertEquals(5, limit.getLimit());
+		assertEquals(LATENCY, limit.getLatency());
+	}
+
+	@Test
+	void shouldNotIncreaseAboveMaxLimit() {
+		var limit = new AdaptiveConcurrencyLimit(4, 1, 8);
+		for (int i = 0; i < 1000; i++) {
+			limit.acquire();
+			limit.release(false, LATENCY);
+		}
+		assertEquals(8, limit.getLimit());
+	}
+
+	@Test
+	void shouldHalveLimitWhenThrottled() {
+		var limit = new AdaptiveConcurrencyLimit(8, 1, 8);
+		limit.acquire();
+		limit.release(true, LATENCY);
+		assertEquals(4, limit.getLimit());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldOnlyDecreaseOncePerRoundTrip() {
+		var limit = new AdaptiveConcurrencyLimit(8, 1, 8);
+		limit.acquire();
+		limit.release(false, Duration.ofSeconds(10));
+		limit.acquire();
+		limit.release(true, LATENCY);
+		limit.acquire();
+		limit.release(true, LATENCY);
+		assertEquals(4, limit.getLimit());
+	}
+
+	@Test
+	void shouldNotDecreaseBelowMinLimit() {
+		var limit = new AdaptiveConcurrencyLimit(8, 2, 8);
+		for (int i = 0; i < 10; i++) {
+			limit.acquire();
+			limit.release(true, Duration.ZERO);
+		}
+		assertEquals(2, limit.getLimit());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldBlockWhenLimitIsReached() {
+		var limit = new AdaptiveConcurrencyLimit(2, 1, 2);
+		limit.acquire();
+		limit.acquire();
+		assertEquals(2, limit.getInFlight());
+
+		var acquired = new CountDownLatch(1);
+		Thread.ofVirtual().start(() -> {
+			limit.acquire();
+			acquired.countDown();
+		});
+		assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+		limit.release(false, LATENCY);
+		assertTrue(acquired.await(1, TimeUnit.SECONDS));
+		assertEquals(2, limit.getInFlight());
+	}
+}
@@ -0,0 +1,55 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import lombok.SneakyThrows;
+import okhttp3.Headers;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class ContentEncodingTest {
+	@ParameterizedTest
+	@CsvSource(
+			delimiter = '|',
+			value = {
+				"gzip|true",
+				"GZIP|true",
+				"x-gzip|true",
+				"deflate, gzip, br|true",
+				"br;q=1.0, gzip;q=0.5|true",
+				"*|true",
+				"identity|false",
+				"deflate, br|false",
+				"gzip;q=0|false",
+				"gzip;q=0, *|false",
+				"*;q=0|false",
+				"''|false"
+			})
+	void shouldParseAcceptEncoding(String acceptEncoding, boolean expected) {
+		assertEquals(expected, ContentEncoding.acceptsGzip(List.of(acceptEncoding)));
+	}
+
+	@Test
+	void shouldVaryOnAcceptEncoding() {
+		assertEquals(List.of("Accept-Encoding"), ContentEncoding.varyOnAcceptEncoding(List.of()));
+		assertEquals(
+				List.of("Accept-Language", "Accept-Encoding"),
+				ContentEncoding.varyOnAcceptEncoding(List.of("Accept-Language")));
+		assertEquals(
+				List.of("accept-language, accept-encoding"),
+				ContentEncoding.varyOnAcceptEncoding(List.of("accept-language, accept-encoding")));
+		assertEquals(List.of("*"), ContentEncoding.varyOnAcceptEncoding(List.of("*")));
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldDecodeGzipBodies() {
+		var body = "Test response".getBytes();
+		var compressed = ContentEncoding.gzip(body);
+		assertArrayEquals(body, ContentEncoding.decode(Headers.of("Content-Encoding", "gzip"), compressed));
+		assertArrayEquals(compressed, ContentEncoding.decode(Headers.of(), compressed));
+	}
+}
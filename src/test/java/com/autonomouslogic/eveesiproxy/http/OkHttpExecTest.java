@@ -0,0 +1,61 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.SneakyThrows;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(10)
+public class OkHttpExecTest {
+	private final AtomicReference<Thread> interceptorThread = new AtomicReference<>();
+
+	private final OkHttpClient client = new OkHttpClient.Builder()
+			.addInterceptor(chain -> {
+				interceptorThread.set(Thread.currentThread());
+				return new Response.Builder()
+						.request(chain.request())
+						.protocol(Protocol.HTTP_1_1)
+						.code(200)
+						.message("OK")
+						.body(ResponseBody.create("body", MediaType.get("text/plain")))
+						.build();
+			})
+			.build();
+
+	@Test
+	@SneakyThrows
+	void shouldExecuteDirectlyOnVirtualThreads() {
+		var callerThread = new AtomicReference<Thread>();
+		var thread = Thread.ofVirtual().start(() -> {
+			callerThread.set(Thread.currentThread());
+			try (var response = OkHttpExec.execute(client.newCall(request()))) {
+				assertEquals(200, response.code());
+			}
+		});
+		thread.join();
+		assertEquals(callerThread.get(), interceptorThread.get());
+		assertTrue(interceptorThread.get().isVirtual());
+	}
+
+	@Test
+	void shouldUseDispatcherOnPlatformThreads() {
+		try (var response = OkHttpExec.execute(client.newCall(request()))) {
+			assertEquals(200, response.code());
+		}
+		assertNotEquals(Thread.currentThread(), interceptorThread.get());
+	}
+
+	private static Request request() {
+		return new Request.Builder().url("http://localhost/test").build();
+	}
+}
@@ -0,0 +1,104 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import lombok.SneakyThrows;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(10)
+public class PagePrefetchTest {
+	private final OkHttpClient client = new OkHttpClient();
+	private final Request request =
+			new Request.Builder().url("http://localhost/esi?page=2").build();
+
+	@Test
+	@SneakyThrows
+	void shouldReturnPrefetchedPages() {
+		try (var prefetch = new PagePrefetch<Integer>()) {
+			prefetch.add(2, request, PagePrefetchTest::response);
+			assertEquals(1, prefetch.size());
+			var response = prefetch.take(2).flatMap(PagePrefetch::join).orElseThrow();
+			assertEquals(200, response.code());
+			assertEquals(0, prefetch.size());
+			assertTrue(prefetch.take(2).isEmpty());
+		}
+	}
+
+	@Test
+	void shouldRequestPagesAgainIfPrefetchFails() {
+		try (var prefetch = new PagePrefetch<Integer>()) {
+			prefetch.add(2, request, r -> {
+				throw new UncheckedIOException(new IOException("test"));
+			});
+			assertTrue(prefetch.take(2).flatMap(PagePrefetch::join).isEmpty());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldCancelPagesNotTaken() {
+		var call = new CompletableFuture<Call>();
+		var cancelled = new CountDownLatch(1);
+		var prefetch = new PagePrefetch<Integer>();
+		prefetch.add(2, request, r -> {
+			var c = client.newCall(r);
+			r.tag(PagePrefetch.Cancellation.class).register(c);
+			call.complete(c);
+			while (!PagePrefetch.isCancelled(r)) {
+				Thread.onSpinWait();
+			}
+			cancelled.countDown();
+			return response(r);
+		});
+		assertFalse(call.join().isCanceled());
+		prefetch.close();
+		assertTrue(call.join().isCanceled());
+		cancelled.await();
+		assertEquals(0, prefetch.size());
+	}
+
+	@Test
+	void shouldCancelCallsRegisteredAfterCancellation() {
+		var cancellation = new PagePrefetch.Cancellation();
+		cancellation.cancel();
+		var call = client.newCall(request);
+		cancellation.register(call);
+		assertTrue(call.isCanceled());
+	}
+
+	@Test
+	void shouldTagPrefetchedRequests() {
+		var tagged = new CompletableFuture<Request>();
+		try (var prefetch = new PagePrefetch<Integer>()) {
+			prefetch.add(2, request, r -> {
+				tagged.complete(r);
+				return response(r);
+			});
+		}
+		assertNotNull(tagged.join().tag(PagePrefetch.Cancellation.class));
+		assertTrue(PagePrefetch.isCancelled(tagged.join()));
+		assertFalse(PagePrefetch.isCancelled(request));
+	}
+
+	private static Response response(Request request) {
+		return new Response.Builder()
+				.request(request)
+				.protocol(Protocol.HTTP_1_1)
+				.code(200)
+				.message("OK")
+				.build();
+	}
+}
@@ -0,0 +1,173 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(10)
+public class PriorityLimiterTest {
+	private static final Map<RequestPriority, Integer> WEIGHTS =
+			Map.of(RequestPriority.INTERACTIVE, 3, RequestPriority.BULK, 1);
+
+	@Test
+	void shouldAcquireAvailablePermits() {
+		var limiter = new PriorityLimiter(2, WEIGHTS);
+		assertTrue(limiter.tryAcquire(RequestPriority.BULK));
+		assertTrue(limiter.tryAcquire(RequestPriority.INTERACTIVE));
+		assertFalse(limiter.tryAcquire(RequestPriority.INTERACTIVE));
+		limiter.release();
+		assertTrue(limiter.tryAcquire(RequestPriority.INTERACTIVE));
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldShareWaitingPermitsByWeight() {
+		var limiter = new PriorityLimiter(1, WEIGHTS);
+		assertTrue(limiter.tryAcquire(RequestPriority.INTERACTIVE));
+		var order = new CopyOnWriteArrayList<RequestPriority>();
+		var threads = new ArrayList<Thread>();
+		for (var priority : List.of(RequestPriority.BULK, RequestPriority.INTERACTIVE)) {
+			for (int i = 0; i < 8; i++) {
+				threads.add(startWaiter(limiter, priority, order));
+			}
+		}
+		awaitWaiting(limiter, RequestPriority.BULK, 8);
+		awaitWaiting(limiter, RequestPriority.INTERACTIVE, 8);
+
+		for (int i = 0; i < 16; i++) {
+			limiter.release();
+			awaitSize(order, i + 1);
+		}
+		for (var thread : threads) {
+			thread.join();
+		}
+
+		var first = order.subList(0, 8);
+		assertEquals(
+				6, first.stream().filter(p -> p == RequestPriority.INTERACTIVE).count(), order.toString());
+		assertEquals(2, first.stream().filter(p -> p == RequestPriority.BULK).count(), order.toString());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldNotBankCreditWhileIdle() {
+		var limiter = new PriorityLimiter(1, WEIGHTS);
+		// Only bulk requests for a while.
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limiter.tryAcquire(RequestPriority.BULK));
+			limiter.release();
+		}
+		assertTrue(limiter.tryAcquire(RequestPriority.INTERACTIVE));
+		var order = new CopyOnWriteArrayList<RequestPriority>();
+		var threads = new ArrayList<Thread>();
+		for (var priority : List.of(RequestPriority.INTERACTIVE, RequestPriority.BULK)) {
+			for (int i = 0; i < 4; i++) {
+				threads.add(startWaiter(limiter, priority, order));
+			}
+		}
+		awaitWaiting(limiter, RequestPriority.INTERACTIVE, 4);
+		awaitWaiting(limiter, RequestPriority.BULK, 4);
+
+		for (int i = 0; i < 8; i++) {
+			limiter.release();
+			awaitSize(order, i + 1);
+		}
+		for (var thread : threads) {
+			thread.join();
+		}
+		// Bulk didn't build up a backlog of credit, so interactive still gets most of the first permits.
+		assertEquals(
+				3,
+				order.subList(0, 4).stream()
+						.filter(p -> p == RequestPriority.INTERACTIVE)
+						.count(),
+				order.toString());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldTakeTurnsBetweenTenants() {
+		var limiter = new PriorityLimiter(1, WEIGHTS);
+		assertTrue(limiter.tryAcquire(RequestPriority.BULK));
+		var order = new CopyOnWriteArrayList<String>();
+		var threads = new ArrayList<Thread>();
+		for (int i = 0; i < 6; i++) {
+			threads.add(startWaiter(limiter, RequestPriority.BULK, "runaway", order, "runaway"));
+			awaitWaiting(limiter, RequestPriority.BULK, i + 1);
+		}
+		threads.add(startWaiter(limiter, RequestPriority.BULK, "other", order, "other"));
+		awaitWaiting(limiter, RequestPriority.BULK, 7);
+
+		for (int i = 0; i < 7; i++) {
+			limiter.release();
+			awaitSize(order, i + 1);
+		}
+		for (var thread : threads) {
+			thread.join();
+		}
+		assertEquals(List.of("runaway", "other", "runaway", "runaway", "runaway", "runaway", "runaway"), order);
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldReleasePermitOnInterrupt() {
+		var limiter = new PriorityLimiter(1, WEIGHTS);
+		assertTrue(limiter.tryAcquire(RequestPriority.BULK));
+		var thread = Thread.ofVirtual().start(() -> {
+			assertThrows(InterruptedException.class, () -> limiter.acquire(RequestPriority.INTERACTIVE, "tenant"));
+		});
+		awaitWaiting(limiter, RequestPriority.INTERACTIVE, 1);
+		thread.interrupt();
+		thread.join();
+		assertEquals(0, limiter.getWaiting(RequestPriority.INTERACTIVE));
+		limiter.release();
+		assertTrue(limiter.tryAcquire(RequestPriority.BULK));
+	}
+
+	@Test
+	void shouldRejectInvalidSettings() {
+		assertThrows(IllegalArgumentException.class, () -> new PriorityLimiter(0, WEIGHTS));
+		assertThrows(
+				IllegalArgumentException.class,
+				() -> new PriorityLimiter(1, Map.of(RequestPriority.INTERACTIVE, 0, RequestPriority.BULK, 1)));
+	}
+
+	private static Thread startWaiter(PriorityLimiter limiter, RequestPriority priority, List<RequestPriority> order) {
+		return startWaiter(limiter, priority, "tenant", order, priority);
+	}
+
+	private static <T> Thread startWaiter(
+			PriorityLimiter limiter, RequestPriority priority, String tenant, List<T> order, T value) {
+		return Thread.ofVirtual().start(() -> {
+			try {
+				limiter.acquire(priority, tenant);
+				order.add(value);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	@SneakyThrows
+	private static void awaitWaiting(PriorityLimiter limiter, RequestPriority priority, int count) {
+		while (limiter.getWaiting(priority) < count) {
+			Thread.sleep(1);
+		}
+	}
+
+	@SneakyThrows
+	private static void awaitSize(List<?> list, int size) {
+		while (list.size() < size) {
+			Thread.sleep(1);
+		}
+	}
+}
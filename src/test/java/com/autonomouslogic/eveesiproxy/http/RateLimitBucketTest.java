@@ -0,0 +1,78 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+public class RateLimitBucketTest {
+	private static final Duration WINDOW = Duration.ofSeconds(10);
+
+	@Test
+	void shouldReserveWhileTokensRemain() {
+		var bucket = new RateLimitBucket(10, WINDOW, 0);
+		bucket.complete(0, 4L, null, 0);
+		assertEquals(0, bucket.tryReserve(2, 0));
+		assertEquals(0, bucket.tryReserve(2, 0));
+		assertEquals(2000, bucket.tryReserve(2, 0));
+	}
+
+	@Test
+	void shouldReturnTokensOnceTheyLeaveTheWindow() {
+		var bucket = new RateLimitBucket(10, WINDOW, 0);
+		assertEquals(0, bucket.tryReserve(2, 0));
+		bucket.complete(2, 2L, 2L, 100);
+		assertEquals(0, bucket.tryReserve(2, 200));
+		bucket.complete(2, 0L, 2L, 300);
+
+		assertEquals(0, bucket.getAvailable(300));
+		assertEquals(9800, bucket.tryReserve(2, 300));
+		assertEquals(2, bucket.getAvailable(10_100));
+		assertEquals(0, bucket.tryReserve(2, 10_100));
+		assertEquals(200, bucket.tryReserve(2, 10_100));
+		assertEquals(0, bucket.tryReserve(2, 10_300));
+	}
+
+	@Test
+	void shouldCountUsageWithoutRemainingHeader() {
+		var bucket = new RateLimitBucket(10, WINDOW, 0);
+		bucket.complete(0, 3L, null, 0);
+		bucket.complete(0, null, 2L, 100);
+		assertEquals(1, bucket.getAvailable(100));
+		assertEquals(3, bucket.getAvailable(10_100));
+	}
+
+	@Test
+	void shouldLetRequestsThroughAtAverageRateWhenUsageIsUnknown() {
+		var bucket = new RateLimitBucket(10, WINDOW, 0);
+		bucket.complete(0, 0L, null, 0);
+		// Two tokens at 10 per 10 seconds.
+		assertEquals(1500, bucket.tryReserve(2, 500));
+		assertEquals(0, bucket.tryReserve(2, 2000));
+		assertEquals(2000, bucket.tryReserve(2, 2000));
+	}
+
+	@Test
+	void shouldReleaseCancelledReservations() {
+		var bucket = new RateLimitBucket(10, WINDOW, 0);
+		bucket.complete(0, 2L, null, 0);
+		assertEquals(0, bucket.tryReserve(2, 0));
+		assertEquals(2000, bucket.tryReserve(2, 0));
+		bucket.cancel(2);
+		assertEquals(0, bucket.tryReserve(2, 0));
+	}
+
+	@Test
+	void shouldNotExceedLimit() {
+		var bucket = new RateLimitBucket(10, WINDOW, 0);
+		bucket.complete(0, 10L, 5L, 0);
+		assertEquals(10, bucket.getAvailable(20_000));
+	}
+
+	@Test
+	void shouldRejectInvalidLimits() {
+		assertThrows(IllegalArgumentException.class, () -> new RateLimitBucket(0, WINDOW, 0));
+		assertThrows(IllegalArgumentException.class, () -> new RateLimitBucket(10, Duration.ZERO, 0));
+	}
+}
@@ -0,0 +1,73 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.autonomouslogic.eveesiproxy.oauth.AuthedCharacter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import okhttp3.Request;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class RateLimitKeyResolverTest {
+	RateLimitKeyResolver resolver;
+
+	@BeforeEach
+	void setup() {
+		resolver = new RateLimitKeyResolver();
+		resolver.objectMapper = new ObjectMapper();
+	}
+
+	@Test
+	void shouldKeyPublicRequestsOnGroup() {
+		assertEquals("char-social", resolver.getKey("char-social", request(null)));
+	}
+
+	@Test
+	void shouldKeyAuthedRequestsOnTokenSubject() {
+		var key = resolver.getKey("char-social", request(createToken("CHARACTER:EVE:12345", "a")));
+		assertEquals("char-social character:12345", key);
+		// Different tokens for the same character share the key.
+		assertEquals(key, resolver.getKey("char-social", request(createToken("CHARACTER:EVE:12345", "b"))));
+		assertNotEquals(key, resolver.getKey("char-social", request(createToken("CHARACTER:EVE:54321", "a"))));
+	}
+
+	@Test
+	void shouldKeyProxyKeyRequestsOnCharacter() {
+		var character = AuthedCharacter.builder().characterId(999).build();
+		var request = request("opaque")
+				.newBuilder()
+				.tag(AuthedCharacter.class, character)
+				.build();
+		assertEquals("char-social character:999", resolver.getKey("char-social", request));
+	}
+
+	@Test
+	void shouldKeyOpaqueTokensOnHash() {
+		var key = resolver.getKey("char-social", request("opaque-1"));
+		assertTrue(key.startsWith("char-social token:"), key);
+		assertFalse(key.contains("opaque"), key);
+		assertNotEquals(key, resolver.getKey("char-social", request("opaque-2")));
+	}
+
+	private static Request request(String token) {
+		var builder = new Request.Builder().url("https://esi.evetech.net/latest/characters/12345/contacts");
+		if (token != null) {
+			builder.header("Authorization", "Bearer " + token);
+		}
+		return builder.build();
+	}
+
+	private static String createToken(String subject, String signature) {
+		var encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8))
+				+ "."
+				+ encoder.encodeToString(("{\"sub\":\"" + subject + "\"}").getBytes(StandardCharsets.UTF_8))
+				+ "."
+				+ signature;
+	}
+}
@@ -0,0 +1,267 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.SneakyThrows;
+import okhttp3.Headers;
+import okhttp3.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SegmentedCacheStoreTest {
+	private static final long MAX_SIZE = 1024L * 1024L;
+	private static final long SEGMENT_SIZE = 1024L;
+
+	@TempDir
+	File dir;
+
+	@Test
+	@SneakyThrows
+	void shouldStoreAndReadResponses() {
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			assertTrue(store.get("a").isEmpty());
+			store.put("a", response("body a"));
+			store.put("b", response("body b"));
+			assertResponse("body a", store.get("a").orElseThrow());
+			assertResponse("body b", store.get("b").orElseThrow());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldReplaceAndRemoveResponses() {
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			store.put("a", response("body 1"));
+			store.put("a", response("body 2"));
+			assertResponse("body 2", store.get("a").orElseThrow());
+			store.remove("a");
+			assertTrue(store.get("a").isEmpty());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldReadFromSealedSegments() {
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			for (int i = 0; i < 20; i++) {
+				store.put("key " + i, response("body " + i));
+			}
+			assertTrue(store.segmentCount() > 1);
+			for (int i = 0; i < 20; i++) {
+				assertResponse("body " + i, store.get("key " + i).orElseThrow());
+			}
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldRestoreIndexOnRestart() {
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			for (int i = 0; i < 20; i++) {
+				store.put("key " + i, response("body " + i));
+			}
+			store.remove("key 3");
+		}
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			for (int i = 0; i < 20; i++) {
+				if (i == 3) {
+					assertTrue(store.get("key " + i).isEmpty());
+				} else {
+					assertResponse("body " + i, store.get("key " + i).orElseThrow());
+				}
+			}
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldReplayRecordsWrittenAfterCheckpoint() {
+		var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE);
+		store.put("a", response("body a"));
+		store.maintain();
+		store.put("b", response("body b"));
+		store.remove("a");
+		// Reopen without closing, as if the process had been killed.
+		try (var reopened = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			assertTrue(reopened.get("a").isEmpty());
+			assertResponse("body b", reopened.get("b").orElseThrow());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldDropIncompleteRecordsOnRestart() {
+		var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE);
+		store.put("a", response("body a"));
+		store.maintain();
+		store.put("b", response("body b"));
+		var segments = dir.listFiles((d, name) -> name.startsWith("segment-"));
+		Arrays.sort(segments);
+		var last = segments[segments.length - 1];
+		try (var file = new RandomAccessFile(last, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+		try (var reopened = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			assertResponse("body a", reopened.get("a").orElseThrow());
+			assertTrue(reopened.get("b").isEmpty());
+			reopened.put("c", response("body c"));
+			assertResponse("body c", reopened.get("c").orElseThrow());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldCompactSparseSegments() {
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			for (int i = 0; i < 50; i++) {
+				store.put("key " + (i % 2), response("body " + i));
+			}
+			store.maintain();
+			// Compaction also runs in the background as segments roll, so only the end state is checked.
+			assertTrue(store.size() <= SEGMENT_SIZE * 2, "size " + store.size());
+			assertResponse("body 48", store.get("key 0").orElseThrow());
+			assertResponse("body 49", store.get("key 1").orElseThrow());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldEvictOldestSegmentsWhenFull() {
+		try (var store = new SegmentedCacheStore(dir, SEGMENT_SIZE * 3, SEGMENT_SIZE)) {
+			for (int i = 0; i < 50; i++) {
+				store.put("key " + i, response("body " + i));
+			}
+			store.maintain();
+			assertTrue(store.size() <= SEGMENT_SIZE * 3, "size " + store.size());
+			assertTrue(store.get("key 0").isEmpty());
+			assertResponse("body 49", store.get("key 49").orElseThrow());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldNotStoreResponsesLargerThanSegments() {
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			store.put("a", response("x".repeat((int) SEGMENT_SIZE)));
+			assertTrue(store.get("a").isEmpty());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldDeleteDroppedSegmentsOnceReadsAreDone() {
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			for (int i = 0; i < 20; i++) {
+				store.put("key " + i, response("body " + i));
+			}
+			var read = store.get("key 0").orElseThrow();
+			var firstSegment = segmentFiles()[0];
+			for (int i = 0; i < 20; i++) {
+				store.put("key " + i, response("body " + i));
+			}
+			store.maintain();
+			assertFalse(firstSegment.exists());
+			assertEquals(store.segmentCount(), segmentFiles().length);
+			assertResponse("body 0", read);
+			assertResponse("body 0", store.get("key 0").orElseThrow());
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldReadWhileSegmentsAreDropped() {
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, SEGMENT_SIZE)) {
+			for (int i = 0; i < 10; i++) {
+				store.put("key " + i, response("body " + i));
+			}
+			var done = new AtomicBoolean();
+			var reader = CompletableFuture.runAsync(() -> {
+				while (!done.get()) {
+					for (int i = 0; i < 10; i++) {
+						assertResponse("body " + i, store.get("key " + i).orElseThrow());
+					}
+				}
+			});
+			for (int round = 0; round < 50; round++) {
+				for (int i = 0; i < 10; i++) {
+					store.put("key " + i, response("body " + i));
+				}
+				store.maintain();
+			}
+			done.set(true);
+			reader.join();
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldStoreValuesLongerThan64KiB() {
+		var longValue = "x".repeat(100_000);
+		var longKey = "key " + longValue;
+		var response = new StoredResponse(
+				Protocol.HTTP_1_1,
+				200,
+				"OK",
+				Headers.of("x-long", longValue),
+				List.of(),
+				List.of(),
+				1000L,
+				2000L,
+				3000L,
+				ByteBuffer.wrap("body".getBytes(StandardCharsets.UTF_8)));
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, MAX_SIZE / 2)) {
+			store.put(longKey, response);
+			assertEquals(
+					longValue, store.get(longKey).orElseThrow().getHeaders().get("x-long"));
+		}
+		try (var store = new SegmentedCacheStore(dir, MAX_SIZE, MAX_SIZE / 2)) {
+			assertEquals(
+					longValue, store.get(longKey).orElseThrow().getHeaders().get("x-long"));
+		}
+	}
+
+	private File[] segmentFiles() {
+		var segments = dir.listFiles((d, name) -> name.startsWith("segment-"));
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static StoredResponse response(String body) {
+		return new StoredResponse(
+				Protocol.HTTP_1_1,
+				200,
+				"OK",
+				Headers.of("content-type", "text/plain", "etag", "hash"),
+				List.of("accept-language"),
+				List.of(List.of("en")),
+				1000L,
+				2000L,
+				3000L,
+				ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static void assertResponse(String expectedBody, StoredResponse response) {
+		assertEquals(Protocol.HTTP_1_1, response.getProtocol());
+		assertEquals(200, response.getCode());
+		assertEquals("OK", response.getMessage());
+		assertEquals(Headers.of("content-type", "text/plain", "etag", "hash"), response.getHeaders());
+		assertEquals(List.of("accept-language"), response.getVaryFields());
+		assertEquals(List.of(List.of("en")), response.getVaryValues());
+		assertEquals(1000L, response.getSentRequestAtMillis());
+		assertEquals(2000L, response.getReceivedResponseAtMillis());
+		assertEquals(3000L, response.getExpiresAt());
+		var body = new byte[response.getBody().remaining()];
+		response.getBody().duplicate().get(body);
+		assertEquals(expectedBody, new String(body, StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,105 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(10)
+public class StopGateTest {
+	@Test
+	@SneakyThrows
+	void shouldPassWhenNotStopped() {
+		var gate = new StopGate(Duration.ofMillis(100));
+		assertFalse(gate.isStopped());
+		assertFalse(gate.await());
+		assertFalse(gate.await());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldWaitUntilDeadline() {
+		var gate = new StopGate(Duration.ZERO);
+		var start = System.nanoTime();
+		gate.stop(Duration.ofMillis(300));
+		assertTrue(gate.isStopped());
+		assertTrue(gate.await());
+		var elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed >= 300 && elapsed < 1000, "elapsed: " + elapsed);
+		assertFalse(gate.isStopped());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldOnlyExtendDeadline() {
+		var gate = new StopGate(Duration.ZERO);
+		var start = System.nanoTime();
+		gate.stop(Duration.ofMillis(300));
+		gate.stop(Duration.ofMillis(100));
+		gate.await();
+		var elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed >= 300, "elapsed: " + elapsed);
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldReleaseWaitersInOrderSpacedOut() {
+		var gate = new StopGate(Duration.ofMillis(100));
+		gate.stop(Duration.ofMillis(200));
+		var released = new ConcurrentLinkedQueue<Integer>();
+		var releaseTimes = new ConcurrentLinkedQueue<Long>();
+		var futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 3; i++) {
+			var n = i;
+			futures.add(CompletableFuture.runAsync(() -> {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				released.add(n);
+				releaseTimes.add(System.nanoTime());
+			}));
+			Thread.sleep(20);
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+		assertEquals(List.of(0, 1, 2), new ArrayList<>(released));
+		var times = new ArrayList<>(releaseTimes);
+		for (int i = 1; i < times.size(); i++) {
+			var gap = TimeUnit.NANOSECONDS.toMillis(times.get(i) - times.get(i - 1));
+			assertTrue(gap >= 90, "gap: " + gap);
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldNotBlockOnInterruptedWaiters() {
+		var gate = new StopGate(Duration.ZERO);
+		gate.stop(Duration.ofMillis(300));
+		var interrupted = new Thread(() -> {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				// Expected.
+			}
+		});
+		interrupted.start();
+		Thread.sleep(50);
+		interrupted.interrupt();
+		interrupted.join();
+		var start = System.nanoTime();
+		gate.await();
+		var elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed < 1000, "elapsed: " + elapsed);
+	}
+}
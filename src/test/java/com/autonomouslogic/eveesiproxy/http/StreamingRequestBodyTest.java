@@ -0,0 +1,61 @@
+package com.autonomouslogic.eveesiproxy.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import lombok.SneakyThrows;
+import okhttp3.MediaType;
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+
+public class StreamingRequestBodyTest {
+	private static final String BODY = "request body";
+
+	@Test
+	void shouldReturnContentType() {
+		var contentType = MediaType.parse("application/json; charset=utf-8");
+		var body = create(contentType, 1024);
+		assertEquals(contentType, body.contentType());
+		assertEquals(BODY.length(), body.contentLength());
+	}
+
+	@Test
+	void shouldAllowNoContentType() {
+		assertNull(create(null, 1024).contentType());
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldReplayBodiesWithinTheReplayBuffer() {
+		var body = create(null, 1024);
+		assertEquals(BODY, write(body));
+		assertFalse(body.isOneShot());
+		assertEquals(BODY, write(body));
+	}
+
+	@Test
+	@SneakyThrows
+	void shouldNotReplayBodiesLargerThanTheReplayBuffer() {
+		var body = create(null, 4);
+		assertEquals(BODY, write(body));
+		assertTrue(body.isOneShot());
+		assertThrows(IOException.class, () -> write(body));
+	}
+
+	private static StreamingRequestBody create(MediaType contentType, int maxReplaySize) {
+		var in = new ByteArrayInputStream(BODY.getBytes(StandardCharsets.UTF_8));
+		return new StreamingRequestBody(in, contentType, BODY.length(), maxReplaySize);
+	}
+
+	private static String write(StreamingRequestBody body) throws IOException {
+		var sink = new Buffer();
+		body.writeTo(sink);
+		return sink.readUtf8();
+	}
+}
@@ -0,0 +1,94 @@
+package com.autonomouslogic.eveesiproxy.inject;
+
+import static com.autonomouslogic.eveesiproxy.test.TestConstants.MOCK_ESI_PORT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.autonomouslogic.eveesiproxy.EveEsiProxy;
+import com.autonomouslogic.eveesiproxy.test.DaggerTestComponent;
+import com.autonomouslogic.eveesiproxy.test.TestHttpUtils;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import java.util.List;
+import java.util.Map;
+import lombok.SneakyThrows;
+import lombok.extern.log4j.Log4j2;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junitpioneer.jupiter.SetEnvironmentVariable;
+
+/**
+ * Tests the protocols served by the Helidon server.
+ */
+@SetEnvironmentVariable(key = "ESI_BASE_URL", value = "http://localhost:" + MOCK_ESI_PORT)
+@SetEnvironmentVariable(key = "ESI_USER_AGENT", value = "test@example.com")
+@SetEnvironmentVariable(key = "PROXY_HTTP2_ENABLED", value = "true")
+@Timeout(30)
+@Log4j2
+public class HelidonModuleTest {
+	@Inject
+	EveEsiProxy proxy;
+
+	@Inject
+	@Named("test")
+	OkHttpClient client;
+
+	MockWebServer mockEsi;
+
+	@Inject
+	protected HelidonModuleTest() {}
+
+	@BeforeEach
+	@SneakyThrows
+	void setup() {
+		DaggerTestComponent.builder().build().inject(this);
+		mockEsi = new MockWebServer();
+		mockEsi.start(MOCK_ESI_PORT);
+		proxy.start();
+	}
+
+	@AfterEach
+	@SneakyThrows
+	void stop() {
+		try {
+			TestHttpUtils.assertNoMoreRequests(mockEsi);
+		} finally {
+			proxy.stop();
+			mockEsi.shutdown();
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"GET", "POST"})
+	@SneakyThrows
+	void shouldServeHttp2WithPriorKnowledge(String method) {
+		var requestBody = method.equals("POST") ? "Test request" : null;
+		TestHttpUtils.enqueueResponse(mockEsi, 200, "Test response", Map.of("X-Server-Header", "Test server header"));
+		var h2Client = client.newBuilder()
+				.protocols(List.of(Protocol.H2_PRIOR_KNOWLEDGE))
+				.build();
+
+		try (var proxyResponse = TestHttpUtils.callProxy(
+				h2Client,
+				proxy,
+				method,
+				"/esi?with=query",
+				Map.of("X-Client-Header", "Test client header"),
+				requestBody)) {
+			assertEquals(Protocol.H2_PRIOR_KNOWLEDGE, proxyResponse.protocol());
+			TestHttpUtils.assertResponse(
+					proxyResponse, 200, "Test response", Map.of("X-Server-Header", "Test server header"));
+		}
+		TestHttpUtils.assertRequest(
+				TestHttpUtils.takeRequest(mockEsi),
+				method,
+				"/esi?with=query",
+				Map.of("X-Client-Header", "Test client header"),
+				requestBody);
+	}
+}
@@ -2,6 +2,7 @@ package com.autonomouslogic.eveesiproxy.test;
 
 import com.autonomouslogic.eveesiproxy.handler.IndexServiceTest;
 import com.autonomouslogic.eveesiproxy.handler.LoginServiceTest;
+import com.autonomouslogic.eveesiproxy.handler.MetricsServiceTest;
 import com.autonomouslogic.eveesiproxy.handler.ProxyServiceCacheTest;
 import com.autonomouslogic.eveesiproxy.handler.ProxyServiceCursorTest;
 import com.autonomouslogic.eveesiproxy.handler.ProxyServiceErrorLimitTest;
@@ -14,6 +15,7 @@ import com.autonomouslogic.eveesiproxy.handler.ProxyServiceStressTest;
 import com.autonomouslogic.eveesiproxy.handler.ProxyServiceUserAgentTest;
 import com.autonomouslogic.eveesiproxy.http.EsiUrlGroupResolverTest;
 import com.autonomouslogic.eveesiproxy.inject.HelidonModule;
+import com.autonomouslogic.eveesiproxy.inject.HelidonModuleTest;
 import com.autonomouslogic.eveesiproxy.inject.JacksonModule;
 import com.autonomouslogic.eveesiproxy.inject.OkHttpModule;
 import com.autonomouslogic.eveesiproxy.inject.ThymeleafModule;
@@ -36,6 +38,8 @@ public interface TestComponent {
 
 	void inject(LoginServiceTest test);
 
+	void inject(MetricsServiceTest test);
+
 	void inject(ProxyServiceCacheTest test);
 
 	void inject(ProxyServiceCursorTest test);
@@ -57,4 +61,6 @@ public interface TestComponent {
 	void inject(ProxyServiceStressTest test);
 
 	void inject(EsiUrlGroupResolverTest test);
+
+	void inject(HelidonModuleTest test);
 }